@@ -2,6 +2,7 @@ package moe.dituon.petpet.mirai
 
 import moe.dituon.petpet.plugin.*
 import moe.dituon.petpet.share.Encoder
+import moe.dituon.petpet.share.Quantizer
 import net.mamoe.mirai.console.data.AutoSavePluginConfig
 import net.mamoe.mirai.console.data.ValueDescription
 import net.mamoe.mirai.console.data.value
@@ -69,6 +70,15 @@ object MiraiPluginConfig : AutoSavePluginConfig("PetPet")
     @ValueDescription("GIF质量, 仅适用于ANIMATED_LIB编码器, 1为质量最佳, 超过20不会有明显性能提升")
     val gifQuality: Int by value(5)
 
+    @ValueDescription("GIF帧差分, 只编码与前一帧不同的区域以减小体积, 不适用于BUFFERED_STREAM编码器")
+    val gifFrameDiff: Boolean by value(false)
+
+    @ValueDescription("GIF颜色量化器, NEU_QUANT质量最好, MEDIAN_CUT速度更快, 可在模板data.json中单独指定")
+    val gifQuantizer: Quantizer by value(Quantizer.NEU_QUANT)
+
+    @ValueDescription("GIF体积上限 (字节), 超出时自动缩小尺寸, 抽帧或减少颜色, 填入0不限制")
+    val gifMaxBytes: Int by value(0)
+
     @ValueDescription("是否使用headless模式")
     val headless: Boolean by value(true)
 
@@ -114,6 +124,9 @@ object MiraiPluginConfig : AutoSavePluginConfig("PetPet")
         gifMaxSize = gifMaxSize,
         gifEncoder = gifEncoder,
         gifQuality = gifQuality,
+        gifFrameDiff = gifFrameDiff,
+        gifQuantizer = gifQuantizer,
+        gifMaxBytes = gifMaxBytes,
         threadPoolSize = gifEncoderThreadPoolSize,
         headless = headless,
         autoUpdate = autoUpdate,
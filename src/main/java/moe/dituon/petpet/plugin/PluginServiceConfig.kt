@@ -5,6 +5,7 @@ import kotlinx.serialization.decodeFromString
 import kotlinx.serialization.json.Json
 import moe.dituon.petpet.share.BaseServiceConfig
 import moe.dituon.petpet.share.Encoder
+import moe.dituon.petpet.share.Quantizer
 import moe.dituon.petpet.share.encodeDefaultsIgnoreUnknownKeysJson
 
 //interface Nudge {
@@ -62,6 +63,9 @@ data class PluginServiceConfig(
     val gifMaxSize: List<Int> = emptyList(),
     val gifEncoder: Encoder = Encoder.ANIMATED_LIB,
     val gifQuality: Int = 5,
+    val gifFrameDiff: Boolean = false,
+    val gifQuantizer: Quantizer = Quantizer.NEU_QUANT,
+    val gifMaxBytes: Int = 0,
 
     val threadPoolSize: Int = 0,
     val headless: Boolean = true,
@@ -77,6 +81,9 @@ data class PluginServiceConfig(
         gifMaxSize = gifMaxSize,
         gifEncoder = gifEncoder,
         gifQuality = gifQuality,
+        gifFrameDiff = gifFrameDiff,
+        gifQuantizer = gifQuantizer,
+        gifMaxBytes = gifMaxBytes,
         threadPoolSize = threadPoolSize,
         headless = headless
     )
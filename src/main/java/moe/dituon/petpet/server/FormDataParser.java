@@ -100,7 +100,8 @@ public class FormDataParser extends RequestParser {
             ServerPetService.LOGGER.info("DEBUG[FORM DATA KEY]: " + key);
             assert key != null;
 
-            super.imagePair = service.generateImage(
+            setRequest(
+                    service,
                     key,
                     new GifAvatarExtraDataProvider(
                             getImageListLambda("fromAvatar"),
@@ -114,7 +115,7 @@ public class FormDataParser extends RequestParser {
                             getString("groupName"),
                             map.get("textList") == null ? Collections.emptyList() :
                                     Arrays.asList(map.get("textList").value.split(" "))
-                    ), null
+                    )
             );
         } catch (AssertionError e) {
             throw new IllegalArgumentException();
@@ -27,7 +27,8 @@ public class GETParser extends RequestParser {
 
         String randomAvatarListStr = get("randomAvatarList");
 
-        super.imagePair = service.generateImage(
+        setRequest(
+                service,
                 get("key"),
                 BaseConfigFactory.getGifAvatarExtraDataFromUrls(
                         get("fromAvatar"), get("toAvatar"), get("groupAvatar"), get("botAvatar"),
@@ -37,7 +38,7 @@ public class GETParser extends RequestParser {
                         get("toName") != null ? get("toName") : "to",
                         get("groupName") != null ? get("groupName") : "group",
                         textList
-                ), null
+                )
         );
     }
 
@@ -6,7 +6,8 @@ import moe.dituon.petpet.share.TextExtraData;
 public class POSTParser extends RequestParser {
     public POSTParser(ServerPetService service, String postBody) {
         RequestDTO request = RequestDTO.parse(postBody);
-        super.imagePair = service.generateImage(
+        setRequest(
+                service,
                 request.getKey(),
                 BaseConfigFactory.getGifAvatarExtraDataFromUrls(
                         request.getFrom().getAvatar(),
@@ -19,7 +20,7 @@ public class POSTParser extends RequestParser {
                         request.getTo().getName(),
                         request.getGroup().getName(),
                         request.getTextList()
-                ), null
+                )
         );
     }
 }
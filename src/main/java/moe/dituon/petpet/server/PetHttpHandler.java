@@ -64,7 +64,12 @@ public class PetHttpHandler implements HttpHandler {
 
         } catch (Exception ex) {
             ex.printStackTrace();
-            handleResponse(httpExchange, 400, ex.toString());
+            if (httpExchange.getResponseCode() == -1) {
+                handleResponse(httpExchange, 400, ex.toString());
+            } else {
+                // 响应头已发送, 只能中断连接
+                httpExchange.close();
+            }
         }
     }
 
@@ -80,16 +85,6 @@ public class PetHttpHandler implements HttpHandler {
         }
     }
 
-    static public void handleResponse(HttpExchange httpExchange, InputStream input, String mime) throws IOException {
-        input.reset();
-        httpExchange.getResponseHeaders().add("Content-Type", mime);
-        httpExchange.sendResponseHeaders(200, input.available());
-        OutputStream out = httpExchange.getResponseBody();
-        input.transferTo(out);
-        out.flush();
-        out.close();
-    }
-
     private void handleResponseIndex(HttpExchange httpExchange) throws IOException {
         httpExchange.getResponseHeaders().add("Content-Type", "application/json;charset=utf-8");
         httpExchange.sendResponseHeaders(200, indexJsonBytes.length);
@@ -100,8 +95,22 @@ public class PetHttpHandler implements HttpHandler {
         out.close();
     }
 
+    /**
+     * 以分块传输编码返回图片, GIF 每帧编码后立即发送
+     */
     private void finish(HttpExchange httpExchange, RequestParser parser) throws IOException {
-        handleResponse(httpExchange, parser.getImagePair().getFirst(), ("image/" + parser.getImagePair().getSecond()).intern());
+        parser.writeImage(format -> {
+            try {
+                httpExchange.getResponseHeaders().add("Content-Type", ("image/" + format).intern());
+                httpExchange.sendResponseHeaders(200, 0);
+                return httpExchange.getResponseBody();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        OutputStream out = httpExchange.getResponseBody();
+        out.flush();
+        out.close();
         parser.close();
     }
 }
@@ -5,7 +5,11 @@ import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import kotlin.Pair;
 import moe.dituon.petpet.share.BaseConfigFactory;
+import moe.dituon.petpet.share.ImageDeformer;
+import moe.dituon.petpet.share.ImageSynthesis;
+import moe.dituon.petpet.share.RenderScheduler;
 import moe.dituon.petpet.share.TextExtraData;
+import moe.dituon.petpet.share.filter.DisplacementFilter;
 
 import java.io.File;
 import java.io.IOException;
@@ -75,6 +79,10 @@ public class PreviewHttpHandler implements HttpHandler {
             });
             var nowTime = System.currentTimeMillis();
             ServerPetService.LOGGER.info("Generate " + service.getDataMap().size() + " images in " + (nowTime - time) + "ms");
+            ServerPetService.LOGGER.info("Deform remap cache: " + ImageDeformer.getRemapCache().getStats());
+            ServerPetService.LOGGER.info("Displacement map cache: " + DisplacementFilter.getStats());
+            ServerPetService.LOGGER.info("Avatar derivative cache: " + ImageSynthesis.getDerivativeCache().getStats());
+            ServerPetService.LOGGER.info("Render scheduler: " + RenderScheduler.getStats());
             mime = "image/gif";
         } catch (Exception ex) {
             throw new RuntimeException(ex);
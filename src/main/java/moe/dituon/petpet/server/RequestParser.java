@@ -1,18 +1,66 @@
 package moe.dituon.petpet.server;
 
 import kotlin.Pair;
+import moe.dituon.petpet.share.BasePetService;
+import moe.dituon.petpet.share.GifAvatarExtraDataProvider;
+import moe.dituon.petpet.share.TextExtraData;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.function.Function;
 
 public abstract class RequestParser {
     protected Pair<InputStream, String> imagePair;
+    protected BasePetService service;
+    protected String key;
+    protected GifAvatarExtraDataProvider gifAvatarExtraDataProvider;
+    protected TextExtraData textExtraData;
+
+    /**
+     * 记录请求参数, 图片在 {@link #writeImage} 或 {@link #getImagePair} 时合成
+     */
+    protected void setRequest(
+            BasePetService service, String key,
+            GifAvatarExtraDataProvider gifAvatarExtraDataProvider, TextExtraData textExtraData
+    ) {
+        this.service = service;
+        this.key = key;
+        this.gifAvatarExtraDataProvider = gifAvatarExtraDataProvider;
+        this.textExtraData = textExtraData;
+    }
 
     public Pair<InputStream, String> getImagePair() {
+        if (imagePair == null && service != null) {
+            imagePair = service.generateImage(key, gifAvatarExtraDataProvider, textExtraData, null);
+        }
         return imagePair;
     }
 
+    /**
+     * 合成图片并直接写入输出流
+     *
+     * @param outputProvider 由图片格式获取输出流, 在写入前调用
+     * @return 图片格式
+     */
+    public String writeImage(Function<String, OutputStream> outputProvider) {
+        // 已合成 (或由子类直接设置) 的结果
+        if (imagePair != null || service == null) {
+            var pair = getImagePair();
+            try {
+                pair.getFirst().transferTo(outputProvider.apply(pair.getSecond()));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return pair.getSecond();
+        }
+        return service.generateImage(key, gifAvatarExtraDataProvider, textExtraData, null, outputProvider);
+    }
+
     public void close() {
         imagePair = null;
+        gifAvatarExtraDataProvider = null;
+        textExtraData = null;
     }
 }
-
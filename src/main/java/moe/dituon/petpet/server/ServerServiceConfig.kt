@@ -6,6 +6,7 @@ import kotlinx.serialization.encodeToString
 import kotlinx.serialization.json.Json
 import moe.dituon.petpet.share.BaseServiceConfig
 import moe.dituon.petpet.share.Encoder
+import moe.dituon.petpet.share.Quantizer
 import moe.dituon.petpet.share.encodeDefaultsPrettyJson
 
 //@Serializable
@@ -28,6 +29,9 @@ data class ServerServiceConfig(
     val gifMaxSize: List<Int> = emptyList(),
     val gifEncoder: Encoder = Encoder.ANIMATED_LIB,
     val gifQuality: Int = 5,
+    val gifFrameDiff: Boolean = false,
+    val gifQuantizer: Quantizer = Quantizer.NEU_QUANT,
+    val gifMaxBytes: Int = 0,
     val serviceThreadPoolSize: Int = 0,
     val headless: Boolean = true
 ) {
@@ -42,6 +46,9 @@ data class ServerServiceConfig(
         gifMaxSize = gifMaxSize,
         gifEncoder = gifEncoder,
         gifQuality = gifQuality,
+        gifFrameDiff = gifFrameDiff,
+        gifQuantizer = gifQuantizer,
+        gifMaxBytes = gifMaxBytes,
         threadPoolSize = serviceThreadPoolSize,
         headless = headless
     )
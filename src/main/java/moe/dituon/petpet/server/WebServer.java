@@ -2,10 +2,10 @@ package moe.dituon.petpet.server;
 
 import com.sun.net.httpserver.HttpServer;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.BindException;
 import java.net.InetSocketAddress;
 import java.util.concurrent.Executors;
@@ -36,8 +36,14 @@ public class WebServer {
 
             try(InputStream stream = this.getClass().getResourceAsStream("/index.html")) {
                 if (stream == null) throw new Exception();
-                InputStream html = new ByteArrayInputStream(stream.readAllBytes());
-                httpServer.createContext("/", exchange -> PetHttpHandler.handleResponse(exchange, html, "text/html"));
+                byte[] html = stream.readAllBytes();
+                httpServer.createContext("/", exchange -> {
+                    exchange.getResponseHeaders().add("Content-Type", "text/html");
+                    exchange.sendResponseHeaders(200, html.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(html);
+                    }
+                });
 
                 ServerPetService.LOGGER.info("WebUI-URL: http://127.0.0.1:" + service.port + '/');
                 if (!service.usePreview) ServerPetService.LOGGER.warning("WebUI preview is disabled");
@@ -1,5 +1,9 @@
 package moe.dituon.petpet.share;
 
+import java.util.Collections;
+import java.util.Map;
+import java.util.function.DoubleUnaryOperator;
+
 public class ArithmeticParser {
     private String str;
 
@@ -11,8 +15,15 @@ public class ArithmeticParser {
         str = str.replace(r, String.valueOf(num));
     }
 
-    //from https://stackoverflow.com/questions/3422673
     public double eval() {
+        return compile(str).eval(Collections.emptyMap());
+    }
+
+    /**
+     * 预解析表达式, 可多次求值; 小写标识符 (sqrt, sin, cos, tan 除外) 作为变量在求值时代入
+     */
+    //from https://stackoverflow.com/questions/3422673
+    public static Expression compile(String str) {
         return new Object() {
             int pos = -1, ch;
 
@@ -29,76 +40,115 @@ public class ArithmeticParser {
                 return false;
             }
 
-            double parse() {
+            Expression parse() {
                 nextChar();
-                double x = parseExpression();
+                Expression x = parseExpression();
                 if (pos < str.length()) throw new RuntimeException("Unexpected: " + (char) ch);
                 return x;
             }
 
-            double parseExpression() {
-                double x = parseTerm();
+            Expression parseExpression() {
+                Expression x = parseTerm();
                 for (; ; ) {
-                    if (eat('+')) x += parseTerm(); // addition
-                    else if (eat('-')) x -= parseTerm(); // subtraction
-                    else return x;
+                    Expression a = x;
+                    if (eat('+')) { // addition
+                        Expression b = parseTerm();
+                        x = v -> a.eval(v) + b.eval(v);
+                    } else if (eat('-')) { // subtraction
+                        Expression b = parseTerm();
+                        x = v -> a.eval(v) - b.eval(v);
+                    } else return x;
                 }
             }
 
-            double parseTerm() {
-                double x = parseFactor();
+            Expression parseTerm() {
+                Expression x = parseFactor();
                 for (; ; ) {
-                    if (eat('*')) x *= parseFactor(); // multiplication
-                    else if (eat('/')) x /= parseFactor(); // division
-                    else return x;
+                    Expression a = x;
+                    if (eat('*')) { // multiplication
+                        Expression b = parseFactor();
+                        x = v -> a.eval(v) * b.eval(v);
+                    } else if (eat('/')) { // division
+                        Expression b = parseFactor();
+                        x = v -> a.eval(v) / b.eval(v);
+                    } else return x;
                 }
             }
 
-            double parseFactor() {
-                if (eat('+')) return +parseFactor(); // unary plus
-                if (eat('-')) return -parseFactor(); // unary minus
+            Expression parseFactor() {
+                if (eat('+')) return parseFactor(); // unary plus
+                if (eat('-')) { // unary minus
+                    Expression a = parseFactor();
+                    return v -> -a.eval(v);
+                }
 
-                double x;
+                Expression x;
                 int startPos = this.pos;
                 if (eat('(')) { // parentheses
                     x = parseExpression();
                     if (!eat(')')) throw new RuntimeException("Missing ')'");
                 } else if ((ch >= '0' && ch <= '9') || ch == '.') { // numbers
                     while ((ch >= '0' && ch <= '9') || ch == '.') nextChar();
-                    x = Double.parseDouble(str.substring(startPos, this.pos));
-                } else if (ch >= 'a' && ch <= 'z') { // functions
+                    double num = Double.parseDouble(str.substring(startPos, this.pos));
+                    x = v -> num;
+                } else if (ch >= 'a' && ch <= 'z') { // functions & variables
                     while (ch >= 'a' && ch <= 'z') nextChar();
-                    String func = str.substring(startPos, this.pos);
-                    if (eat('(')) {
-                        x = parseExpression();
-                        if (!eat(')')) throw new RuntimeException("Missing ')' after argument to " + func);
+                    String name = str.substring(startPos, this.pos);
+                    DoubleUnaryOperator func = getFunction(name);
+                    if (func == null) {
+                        x = v -> {
+                            Number num = v.get(name);
+                            if (num == null) throw new RuntimeException("Unknown variable: " + name);
+                            return num.doubleValue();
+                        };
                     } else {
-                        x = parseFactor();
-                    }
-                    switch (func) {
-                        case "sqrt":
-                            x = Math.sqrt(x);
-                            break;
-                        case "sin":
-                            x = Math.sin(Math.toRadians(x));
-                            break;
-                        case "cos":
-                            x = Math.cos(Math.toRadians(x));
-                            break;
-                        case "tan":
-                            x = Math.tan(Math.toRadians(x));
-                            break;
-                        default:
-                            throw new RuntimeException("Unknown function: " + func);
+                        Expression arg;
+                        if (eat('(')) {
+                            arg = parseExpression();
+                            if (!eat(')')) throw new RuntimeException("Missing ')' after argument to " + name);
+                        } else {
+                            arg = parseFactor();
+                        }
+                        x = v -> func.applyAsDouble(arg.eval(v));
                     }
                 } else {
                     throw new RuntimeException("Unexpected: " + (char) ch);
                 }
 
-                if (eat('^')) x = Math.pow(x, parseFactor()); // exponentiation
+                if (eat('^')) { // exponentiation
+                    Expression a = x;
+                    Expression b = parseFactor();
+                    x = v -> Math.pow(a.eval(v), b.eval(v));
+                }
 
                 return x;
             }
         }.parse();
     }
-}
\ No newline at end of file
+
+    private static DoubleUnaryOperator getFunction(String name) {
+        switch (name) {
+            case "sqrt":
+                return Math::sqrt;
+            case "sin":
+                return x -> Math.sin(Math.toRadians(x));
+            case "cos":
+                return x -> Math.cos(Math.toRadians(x));
+            case "tan":
+                return x -> Math.tan(Math.toRadians(x));
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * 预解析的表达式, 线程安全
+     */
+    @FunctionalInterface
+    public interface Expression {
+        /**
+         * @param variables 变量名 -> 值
+         */
+        double eval(Map<String, ? extends Number> variables);
+    }
+}
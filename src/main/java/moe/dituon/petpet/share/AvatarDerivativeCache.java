@@ -0,0 +1,259 @@
+package moe.dituon.petpet.share;
+
+import kotlinx.serialization.json.Json;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.WritableRaster;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * 预处理后的头像缓存 (裁切, 风格化, 滤镜, 圆形, 重采样的结果), 按 (源图像, 预处理参数) 索引, 按总字节数淘汰最久未使用的图像
+ * <br/>
+ * 源图像以编码数据 (解码时登记) 或像素内容的摘要标识, 每次请求重新下载的同一头像也能命中; 标识按图像对象缓存, 同一对象只计算一次.
+ * 缓存的图像在模板与请求间共享, 不可修改
+ */
+public class AvatarDerivativeCache {
+    public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+    protected final LinkedHashMap<List<Object>, BufferedImage> cache = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * 源图像的标识, 不持有源图像
+     */
+    protected final Map<BufferedImage, Object> digests = new WeakHashMap<>();
+    protected long maxBytes;
+    protected long bytes = 0;
+    protected long hits = 0;
+    protected long misses = 0;
+    protected long evictions = 0;
+
+    public AvatarDerivativeCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 获取预处理后的头像, 未命中时调用 builder 处理, 处理过程不持有锁
+     *
+     * @param params 预处理参数, 参数相同时 builder 对内容相同的源图像的结果必须相同
+     */
+    public BufferedImage get(BufferedImage source, List<Object> params, Supplier<BufferedImage> builder) {
+        if (maxBytes == 0) return builder.get();
+        List<Object> key = List.of(getDigest(source), params);
+        synchronized (this) {
+            BufferedImage image = cache.get(key);
+            if (image != null) {
+                hits++;
+                return image;
+            }
+            misses++;
+        }
+        BufferedImage image = builder.get();
+        // 未经处理的源图像无需缓存
+        if (image != source) put(key, image);
+        return image;
+    }
+
+    /**
+     * 样式与滤镜列表的标识, 内容相同的列表 (包括不同模板中的) 标识相同
+     *
+     * @return 含有随机效果的滤镜 (噪点) 时为 null, 结果不应缓存
+     */
+    public static Object getFilterKey(List<AvatarStyle> styleList, List<AvatarFilter> filterList) {
+        if (filterList.stream().anyMatch(filter -> filter instanceof AvatarNoiseFilter)) return null;
+        List<String> filters = filterList.stream()
+                .map(filter -> Json.Default.encodeToString(AvatarFilter.Companion.serializer(), filter))
+                .collect(Collectors.toList());
+        return List.of(styleList, filters);
+    }
+
+    /**
+     * 预处理参数, 两种头像模型共用同一格式, 修改时两者的缓存项保持一致
+     *
+     * @param filterKey {@link #getFilterKey} 的结果
+     * @param index     帧序号, 仅在含有动画滤镜时区分
+     * @return 结果不应缓存或无需处理 (返回源图像) 时为 null
+     */
+    public static List<Object> getParams(
+            Object filterKey, List<AvatarStyle> styleList, List<AvatarFilter> filterList,
+            CropType cropType, int[] cropPos, boolean round, boolean antialias,
+            int resampleSize, boolean preResampling, int index
+    ) {
+        if (filterKey == null) return null;
+        if (cropType == CropType.NONE && styleList.isEmpty() && filterList.isEmpty()
+                && !round && resampleSize == 0) return null;
+        return List.of(
+                filterKey, cropType, Arrays.toString(cropPos), round, antialias, resampleSize, preResampling,
+                filterList.stream().anyMatch(AvatarFilter::hasAnimation) ? index : 0
+        );
+    }
+
+    /**
+     * 预缩放后以像素为单位的整数滤镜参数 (间距, 半径) 按缩放比例调整
+     *
+     * @param min 调整后的最小值
+     */
+    public static int scaleFilterPixels(int value, float scale, int min) {
+        return scale == 1F ? value : Math.max(min, Math.round(value * scale));
+    }
+
+    protected synchronized void put(List<Object> key, BufferedImage image) {
+        long size = getBytes(image);
+        if (size > maxBytes) return;
+        BufferedImage old = cache.put(key, image);
+        if (old != null) bytes -= getBytes(old);
+        bytes += size;
+        evict();
+    }
+
+    protected void evict() {
+        Iterator<BufferedImage> iterator = cache.values().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            bytes -= getBytes(iterator.next());
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * @param maxBytes 缓存上限, 为 0 时禁用缓存
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = Math.max(maxBytes, 0);
+        evict();
+    }
+
+    public synchronized void clear() {
+        cache.clear();
+        bytes = 0;
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(cache.size(), bytes, maxBytes, hits, misses, evictions);
+    }
+
+    /**
+     * 登记源图像的标识, 之后不再读取其像素计算摘要
+     *
+     * @param key 编码数据的摘要 (与帧序号), 内容不同的图像标识必须不同
+     */
+    public void setSourceKey(BufferedImage source, Object key) {
+        synchronized (digests) {
+            digests.put(source, key);
+        }
+    }
+
+    protected Object getDigest(BufferedImage source) {
+        synchronized (digests) {
+            Object digest = digests.get(source);
+            if (digest != null) return digest;
+        }
+        Object digest = computeDigest(source);
+        synchronized (digests) {
+            digests.put(source, digest);
+        }
+        return digest;
+    }
+
+    /**
+     * 图像尺寸, 类型与像素数据的 SHA-256 摘要
+     */
+    protected static Object computeDigest(BufferedImage image) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        md.update(ByteBuffer.allocate(12).putInt(width).putInt(height).putInt(image.getType()).array());
+
+        WritableRaster raster = image.getRaster();
+        DataBuffer buffer = raster.getDataBuffer();
+        // 标准类型且数据缓冲区只含此图像的像素时直接读取, 否则 (调色板, 子图像等) 按行读取 ARGB
+        boolean whole = raster.getParent() == null && buffer.getNumBanks() == 1 && buffer.getOffset() == 0;
+        switch (whole ? image.getType() : BufferedImage.TYPE_CUSTOM) {
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR:
+            case BufferedImage.TYPE_4BYTE_ABGR_PRE:
+                md.update(((DataBufferByte) buffer).getData());
+                break;
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_INT_ARGB_PRE:
+            case BufferedImage.TYPE_INT_BGR:
+                updateInts(md, ((DataBufferInt) buffer).getData(), buffer.getSize());
+                break;
+            default:
+                int[] row = new int[width];
+                for (int y = 0; y < height; y++) {
+                    image.getRGB(0, y, width, 1, row, 0, width);
+                    updateInts(md, row, width);
+                }
+        }
+        return new BigInteger(1, md.digest());
+    }
+
+    /**
+     * 编码数据 (图像文件) 的 SHA-256 摘要, 远小于解码后的像素数据
+     */
+    public static Object digestBytes(byte[] data) {
+        try {
+            return new BigInteger(1, MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static void updateInts(MessageDigest md, int[] data, int length) {
+        ByteBuffer bytes = ByteBuffer.allocate(Math.min(length, 4096) * 4);
+        for (int i = 0; i < length; i += 4096) {
+            int n = Math.min(4096, length - i);
+            bytes.clear();
+            bytes.asIntBuffer().put(data, i, n);
+            md.update(bytes.array(), 0, n * 4);
+        }
+    }
+
+    protected static long getBytes(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8 + 64;
+    }
+
+    public static class Stats {
+        public final int size;
+        public final long bytes;
+        public final long maxBytes;
+        public final long hits;
+        public final long misses;
+        public final long evictions;
+
+        public Stats(int size, long bytes, long maxBytes, long hits, long misses, long evictions) {
+            this.size = size;
+            this.bytes = bytes;
+            this.maxBytes = maxBytes;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+        }
+
+        @Override
+        public String toString() {
+            return "size=" + size + " bytes=" + bytes + "/" + maxBytes
+                    + " hits=" + hits + " misses=" + misses + " evictions=" + evictions;
+        }
+    }
+}
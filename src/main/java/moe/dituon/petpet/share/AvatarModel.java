@@ -3,12 +3,12 @@ package moe.dituon.petpet.share;
 import com.jhlabs.image.*;
 import kotlinx.serialization.json.JsonArray;
 import kotlinx.serialization.json.JsonElement;
-import kotlinx.serialization.json.JsonPrimitive;
-import net.coobird.thumbnailator.Thumbnails;
+import moe.dituon.petpet.share.filter.DisplacementFilter;
+import moe.dituon.petpet.share.filter.PetpetOilFilter;
+import moe.dituon.petpet.share.filter.PixelPipeline;
 
 import java.awt.geom.Point2D;
 import java.awt.image.BufferedImage;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -31,6 +31,11 @@ public class AvatarModel {
     private short posIndex = 0;
     private boolean antialias;
     private boolean resampling;
+    private boolean preResampling;
+    /**
+     * 样式与滤镜的缓存标识, 为 null 时不缓存预处理结果
+     */
+    private Object derivativeKey;
     private AvatarPosType posType;
     private DeformData deformData = null;
     private CropType cropType;
@@ -42,31 +47,42 @@ public class AvatarModel {
     @Deprecated
     public AvatarModel(AvatarData data, AvatarExtraDataProvider extraData, Type imageType) {
         setImage(data.getType(), extraData);
-        buildData(data, imageType);
+        buildData(new RenderPlan.AvatarPlan(data, imageType));
     }
 
     public AvatarModel(AvatarData data, GifAvatarExtraDataProvider extraData, Type imageType) {
-        setImage(data.getType(), extraData);
-        buildData(data, imageType);
-    }
-
-    private void buildData(AvatarData data, Type imageType) {
-        type = data.getType();
-        posType = data.getPosType();
-        setPos(data.getPos(), this.imageType = imageType);
-        cropType = data.getCropType();
-        setCrop(data.getCrop());
-        fitType = data.getFit();
-        styleList = data.getStyle();
-        filterList = data.getFilter();
-        angle = data.getAngle();
-        opacity = data.getOpacity();
-        round = data.getRound();
-        rotate = data.getRotate();
-        transformOrigin = data.getOrigin();
-        onTop = data.getAvatarOnTop();
-        antialias = Boolean.TRUE.equals(data.getAntialias());
-        resampling = Boolean.TRUE.equals(data.getResampling());
+        this(new RenderPlan.AvatarPlan(data, imageType), extraData);
+    }
+
+    /**
+     * 由预编译的渲染计划构建, 只需读取头像并处理图像
+     */
+    public AvatarModel(RenderPlan.AvatarPlan plan, GifAvatarExtraDataProvider extraData) {
+        setImage(plan.type, extraData);
+        buildData(plan);
+    }
+
+    private void buildData(RenderPlan.AvatarPlan plan) {
+        type = plan.type;
+        imageType = plan.imageType;
+        posType = plan.posType;
+        pos = plan.isDynamicPos() ? plan.resolvePos(getImageWidth(), getImageHeight()) : plan.getPos();
+        deformData = plan.deformData;
+        cropType = plan.cropType;
+        cropPos = plan.cropPos;
+        fitType = plan.fitType;
+        styleList = plan.styleList;
+        filterList = plan.filterList;
+        angle = plan.angle;
+        opacity = plan.opacity;
+        round = plan.round;
+        rotate = plan.rotate;
+        transformOrigin = plan.transformOrigin;
+        onTop = plan.onTop;
+        antialias = plan.antialias;
+        resampling = plan.resampling;
+        preResampling = plan.preResampling;
+        derivativeKey = AvatarDerivativeCache.getFilterKey(styleList, filterList);
         buildImage();
     }
 
@@ -111,67 +127,6 @@ public class AvatarModel {
         }
     }
 
-    private void setPos(JsonArray posElements, Type imageType) {
-        int i = 0;
-        switch (posType) {
-            case ZOOM:
-                switch (imageType) {
-                    case GIF:
-                        pos = new int[posElements.size()][4];
-                        for (JsonElement je : posElements) {
-                            JsonArray ja = (JsonArray) je;
-                            if (ja.size() != 4) {
-                                return;
-                            }
-                            pos[i++] = JsonArrayToIntArray(ja);
-                        }
-                        break;
-                    case IMG:
-                        pos[i] = JsonArrayToIntArray(posElements);
-                        break;
-                }
-                break;
-            case DEFORM:
-                switch (imageType) {
-                    case GIF:
-                        try {
-                            deformData = DeformData.fromGifPos(posElements);
-                            break;
-                        } catch (Exception ignored) {
-                        }
-                    case IMG:
-                        deformData = DeformData.fromImgPos(posElements);
-                        break;
-                }
-        }
-    }
-
-    private void setCrop(int[] crop) {
-        if (crop == null || crop.length == 0) return;
-        cropPos = crop.length == 2 ? new int[]{0, 0, crop[0], crop[1]} : crop;
-    }
-
-    private int[] JsonArrayToIntArray(JsonArray ja) {
-        int[] result = new int[ja.size()];
-        short i = 0;
-        for (JsonElement je : ja) {
-            if (je instanceof JsonArray) {
-                return JsonArrayToIntArray((JsonArray) je);
-            }
-            String str = ((JsonPrimitive) je).getContent();
-            try {
-                result[i] = Integer.parseInt(str);
-            } catch (NumberFormatException ignored) {
-                ArithmeticParser parser = new ArithmeticParser(str);
-                parser.put("width", this.getImageWidth());
-                parser.put("height", this.getImageHeight());
-                result[i] = (int) parser.eval();
-            }
-            i++;
-        }
-        return result;
-    }
-
     private void buildImage() {
         if (imageType == Type.GIF && !filterList.isEmpty() && filterList.stream().anyMatch(AvatarFilter::hasAnimation)) {
             int maxLength = filterList.stream()
@@ -193,51 +148,84 @@ public class AvatarModel {
         }
     }
 
+    /**
+     * 预处理头像, 参数相同的结果在模板与请求间缓存
+     */
     public BufferedImage buildImage(int index, BufferedImage image) {
+        List<Object> params = AvatarDerivativeCache.getParams(derivativeKey, styleList, filterList,
+                cropType, cropPos, round, antialias, getResampleSize(), preResampling, index);
+        if (params == null) return processImage(index, image);
+        return ImageSynthesis.getDerivativeCache().get(image, params, () -> processImage(index, image));
+    }
+
+    protected BufferedImage processImage(int index, BufferedImage image) {
         if (cropType != CropType.NONE) {
             image = ImageSynthesis.cropImage(image, cropType, cropPos);
         }
 
-        if (!styleList.isEmpty()) image = buildStyledImage(image);
+        // 源图像远大于绘制尺寸时先缩放, 滤镜参数按缩放比例调整
+        int resampleSize = getResampleSize();
+        boolean preResample = preResampling && ImageSynthesis.shouldPreResample(image, resampleSize, filterList);
+        float filterScale = 1F;
+        if (preResample) {
+            int width = image.getWidth();
+            image = ImageSynthesis.resampleImage(image, resampleSize);
+            filterScale = (float) image.getWidth() / width;
+        }
 
-        if (!filterList.isEmpty()) image = buildFilteredImage(index, image);
+        // 相邻的逐像素样式与滤镜合并为一次遍历
+        PixelPipeline pixels = new PixelPipeline();
+        if (!styleList.isEmpty()) image = buildStyledImage(image, pixels);
+
+        if (!filterList.isEmpty()) image = buildFilteredImage(index, image, pixels, filterScale);
+
+        image = pixels.flush(image);
 
         if (round) {
             image = ImageSynthesis.convertCircular(image, antialias);
         }
 
-        if (resampling && posType == AvatarPosType.ZOOM) {
-            int aw = 0, ah = 0, maxSize = 0;
-            for (int[] p : pos) {
-                if (p[2] > aw) aw = p[2];
-                if (p[3] > ah) ah = p[3];
-                maxSize = Math.max(aw, ah);
-            }
-
-            try {
-                image = Thumbnails.of(image).size(maxSize, maxSize).keepAspectRatio(true).asBufferedImage();
-            } catch (IOException ex) {
-                throw new RuntimeException(ex);
-            }
+        if (resampleSize > 0 && !preResample) {
+            image = ImageSynthesis.resampleImage(image, resampleSize);
         }
 
         return image;
     }
 
+    /**
+     * 重采样尺寸, 为所有帧中绘制区域的最大边长; 不重采样时为 0
+     */
+    protected int getResampleSize() {
+        if (!resampling || posType != AvatarPosType.ZOOM) return 0;
+        int maxSize = 0;
+        for (int[] p : pos) {
+            maxSize = Math.max(maxSize, Math.max(p[2], p[3]));
+        }
+        return maxSize;
+    }
+
     protected BufferedImage buildStyledImage(BufferedImage image) {
+        PixelPipeline pixels = new PixelPipeline();
+        return pixels.flush(buildStyledImage(image, pixels));
+    }
+
+    /**
+     * @param pixels 逐像素的样式加入流水线, 由调用者输出
+     */
+    protected BufferedImage buildStyledImage(BufferedImage image, PixelPipeline pixels) {
         for (AvatarStyle style : styleList) {
             switch (style) {
                 case FLIP:
-                    image = ImageSynthesis.flipImage(image);
+                    image = ImageSynthesis.flipImage(pixels.flush(image));
                     break;
                 case MIRROR:
-                    image = ImageSynthesis.mirrorImage(image);
+                    image = ImageSynthesis.mirrorImage(pixels.flush(image));
                     break;
                 case GRAY:
-                    image = ImageSynthesis.grayImage(image);
+                    pixels.gray();
                     break;
                 case BINARIZATION:
-                    image = ImageSynthesis.binarizeImage(image);
+                    pixels.binarize();
                     break;
             }
         }
@@ -249,15 +237,42 @@ public class AvatarModel {
     }
 
     protected BufferedImage buildFilteredImage(int i, BufferedImage image) {
+        PixelPipeline pixels = new PixelPipeline();
+        return pixels.flush(buildFilteredImage(i, image, pixels, 1F));
+    }
+
+    /**
+     * @param pixels 逐像素的滤镜 (对比度, HSB) 加入流水线, 由调用者输出; 其他滤镜执行前先输出流水线
+     * @param scale  图像相对源图像的缩放比例, 以像素为单位的滤镜参数 (半径, 间距) 按此比例缩放
+     */
+    protected BufferedImage buildFilteredImage(int i, BufferedImage image, PixelPipeline pixels, float scale) {
         for (AvatarFilter filter : filterList) {
+            if (filter instanceof AvatarContrastFilter) {
+                AvatarContrastFilter contrastFilter = (AvatarContrastFilter) filter;
+                pixels.contrast(
+                        getNElement(contrastFilter.getContrast(), i) + 1f,
+                        getNElement(contrastFilter.getBrightness(), i) + 1f
+                );
+                continue;
+            }
+            if (filter instanceof AvatarHSBFilter) {
+                AvatarHSBFilter hsbFilter = (AvatarHSBFilter) filter;
+                pixels.hsb(
+                        getNElement(hsbFilter.getHue(), i),
+                        getNElement(hsbFilter.getSaturation(), i),
+                        getNElement(hsbFilter.getBrightness(), i)
+                );
+                continue;
+            }
+            image = pixels.flush(image);
             if (filter instanceof AvatarSwirlFilter) {
                 AvatarSwirlFilter swirlFilter = (AvatarSwirlFilter) filter;
-                TwirlFilter tFilter = new TwirlFilter();
-                tFilter.setRadius(getNElement(swirlFilter.getRadius(), i));
-                tFilter.setAngle(getNElement(swirlFilter.getAngle(), i) / 2);
-                tFilter.setCentreX(getNElement(swirlFilter.getX(), i));
-                tFilter.setCentreY(getNElement(swirlFilter.getY(), i));
-                image = tFilter.filter(image, null);
+                image = DisplacementFilter.twirl(image,
+                        getNElement(swirlFilter.getRadius(), i) * scale,
+                        getNElement(swirlFilter.getAngle(), i) / 2,
+                        getNElement(swirlFilter.getX(), i),
+                        getNElement(swirlFilter.getY(), i)
+                );
             } else if (filter instanceof AvatarBulgeFilter) {
                 AvatarBulgeFilter bulgeFilter = (AvatarBulgeFilter) filter;
 
@@ -265,7 +280,7 @@ public class AvatarModel {
                 int y = Math.round(image.getHeight() * getNElement(bulgeFilter.getY(), i));
 
                 float radius = getNElement(bulgeFilter.getRadius(), i) != 0
-                        ? getNElement(bulgeFilter.getRadius(), i)
+                        ? getNElement(bulgeFilter.getRadius(), i) * scale
                         : Math.min(x, y);
 
                 image = ImageSynthesis.bulgePinchImage(
@@ -274,21 +289,8 @@ public class AvatarModel {
             } else if (filter instanceof AvatarBlurFilter) {
                 AvatarBlurFilter blurFilter = (AvatarBlurFilter) filter;
                 BoxBlurFilter bFilter = new BoxBlurFilter();
-                bFilter.setRadius(getNElement(blurFilter.getRadius(), i));
+                bFilter.setRadius(getNElement(blurFilter.getRadius(), i) * scale);
                 image = bFilter.filter(image, null);
-            } else if (filter instanceof AvatarContrastFilter) {
-                AvatarContrastFilter contrastFilter = (AvatarContrastFilter) filter;
-                ContrastFilter cFilter = new ContrastFilter();
-                cFilter.setContrast(getNElement(contrastFilter.getContrast(), i) + 1f);
-                cFilter.setBrightness(getNElement(contrastFilter.getBrightness(), i) + 1f);
-                image = cFilter.filter(image, null);
-            } else if (filter instanceof AvatarHSBFilter) {
-                AvatarHSBFilter hsbFilter = (AvatarHSBFilter) filter;
-                HSBAdjustFilter hFilter = new HSBAdjustFilter();
-                hFilter.setHFactor(getNElement(hsbFilter.getHue(), i));
-                hFilter.setSFactor(getNElement(hsbFilter.getSaturation(), i));
-                hFilter.setBFactor(getNElement(hsbFilter.getBrightness(), i));
-                image = hFilter.filter(image, null);
             } else if (filter instanceof AvatarHalftoneFilter) {
                 AvatarHalftoneFilter halftoneFilter = (AvatarHalftoneFilter) filter;
                 ColorHalftoneFilter cFilter = new ColorHalftoneFilter();
@@ -306,7 +308,8 @@ public class AvatarModel {
                 cFilter.setCyanScreenAngle(angle);
                 cFilter.setMagentaScreenAngle(angle);
                 cFilter.setYellowScreenAngle(angle);
-                image = ImageSynthesis.grayImage(cFilter.filter(image, null));
+                image = cFilter.filter(image, null);
+                pixels.gray();
             } else if (filter instanceof AvatarNoiseFilter) {
                 AvatarNoiseFilter noiseFilter = (AvatarNoiseFilter) filter;
                 NoiseFilter nFilter = new NoiseFilter();
@@ -317,20 +320,22 @@ public class AvatarModel {
                 image = dFilter.filter(image, null);
             } else if (filter instanceof AvatarSwimFilter) {
                 AvatarSwimFilter swimFilter = (AvatarSwimFilter) filter;
-                SwimFilter sFilter = new SwimFilter();
-                sFilter.setScale(getNElement(swimFilter.getScale(), i));
-                sFilter.setStretch(getNElement(swimFilter.getStretch(), i));
-                sFilter.setAmount(getNElement(swimFilter.getAmount(), i));
-                sFilter.setAngle(getNElement(swimFilter.getAngle(), i));
-                sFilter.setTurbulence(getNElement(swimFilter.getTurbulence(), i));
-                sFilter.setTime(getNElement(swimFilter.getTime(), i));
-                image = sFilter.filter(image, null);
+                image = DisplacementFilter.swim(image,
+                        getNElement(swimFilter.getScale(), i) * scale,
+                        getNElement(swimFilter.getStretch(), i),
+                        getNElement(swimFilter.getAmount(), i) * scale,
+                        getNElement(swimFilter.getAngle(), i),
+                        getNElement(swimFilter.getTurbulence(), i),
+                        getNElement(swimFilter.getTime(), i)
+                );
             } else if (filter instanceof AvatarOilFilter) {
                 AvatarOilFilter oilFilter = (AvatarOilFilter) filter;
                 PetpetOilFilter oFilter = new PetpetOilFilter();
                 oFilter.setLevels((int) getNElement(oilFilter.getLevels(), i));
-                oFilter.setSkip((int) getNElement(oilFilter.getSkip(), i));
-                oFilter.setRange((int) getNElement(oilFilter.getRange(), i));
+                oFilter.setSkip(AvatarDerivativeCache.scaleFilterPixels(
+                        (int) getNElement(oilFilter.getSkip(), i), scale, 1));
+                oFilter.setRange(AvatarDerivativeCache.scaleFilterPixels(
+                        (int) getNElement(oilFilter.getRange(), i), scale, 0));
                 image = oFilter.filter(image, null);
             }
         }
@@ -414,7 +419,7 @@ public class AvatarModel {
     }
 
     /**
-     * 获取坐标(索引越界会返回最后的坐标)
+     * 获取坐标(索引越界会返回最后的坐标), 返回的数组可能与其它请求共享, 不应修改
      */
     public int[] getPos(short i) {
         if (i >= pos.length) return pos[pos.length - 1];
@@ -37,6 +37,9 @@ data class BaseServiceConfig(
     val gifMaxSize: List<Int> = emptyList(),
     val gifEncoder: Encoder = Encoder.ANIMATED_LIB,
     val gifQuality: Int = 5,
+    val gifFrameDiff: Boolean = false,
+    val gifQuantizer: Quantizer = Quantizer.NEU_QUANT,
+    val gifMaxBytes: Int = 0,
     val threadPoolSize: Int = 0,
     val headless: Boolean = true
 ) {
@@ -53,7 +56,31 @@ data class BaseServiceConfig(
 }
 
 enum class Encoder {
-    BUFFERED_STREAM, ANIMATED_LIB
+    BUFFERED_STREAM, ANIMATED_LIB,
+
+    /**
+     * 基于 ANIMATED_LIB, 所有帧共用一个全局调色板
+     */
+    GLOBAL_PALETTE,
+
+    /**
+     * 基于 GLOBAL_PALETTE, 调色板由模板背景预先计算并缓存 (预留部分颜色给头像), 每次渲染只需映射像素
+     * <br/>
+     * 背景为随机或动态生成时退化为 GLOBAL_PALETTE
+     */
+    TEMPLATE_PALETTE
+}
+
+enum class Quantizer {
+    /**
+     * NeuQuant 神经网络量化, 质量最好
+     */
+    NEU_QUANT,
+
+    /**
+     * 基于颜色直方图的中位切分, 速度快, 适用于颜色较少的卡通风格模板
+     */
+    MEDIAN_CUT
 }
 
 enum class Type {
@@ -71,7 +98,11 @@ data class TemplateDTO(
     val format: String? = "png", //未实装
     val inRandomList: Boolean? = true,
     var reverse: Boolean? = false,
-    val hidden: Boolean? = false
+    val hidden: Boolean? = false,
+    /**
+     * 颜色量化器, 为空时使用服务配置
+     */
+    val quantizer: Quantizer? = null
 ) {
     constructor(type: Type) : this(type, emptyList(), emptyList())
 
@@ -200,6 +231,16 @@ enum class AvatarStyle {
 sealed class AvatarFilter {
     abstract fun hasAnimation(): Boolean
     abstract val maxLength: Int
+
+    /**
+     * 逐像素的颜色变换, 效果与图像分辨率无关
+     */
+    open fun isPointwise() = false
+
+    /**
+     * 在缩小的图像上以按比例缩放的参数执行时, 效果与缩小前执行相近
+     */
+    open fun isScalable() = isPointwise()
 }
 
 object FloatArraySerializer : JsonTransformingSerializer<FloatArray>(FloatArraySerializer()) {
@@ -222,6 +263,7 @@ data class AvatarSwirlFilter(
 ) : AvatarFilter() {
     override val maxLength = intArrayOf(radius.size, angle.size, x.size, y.size).maxOrNull() ?: 1
     override fun hasAnimation() = maxLength > 1
+    override fun isScalable() = true
 }
 
 @Serializable
@@ -239,6 +281,7 @@ data class AvatarBulgeFilter(
 ) : AvatarFilter() {
     override val maxLength = arrayOf(radius.size, strength.size, x.size, y.size).maxOrNull() ?: 1
     override fun hasAnimation() = maxLength > 1
+    override fun isScalable() = true
 }
 
 @Serializable
@@ -261,6 +304,7 @@ data class AvatarSwimFilter(
         arrayOf(scale.size, stretch.size, angle.size, amount.size, turbulence.size, time.size).maxOrNull() ?: 1
 
     override fun hasAnimation() = maxLength > 1
+    override fun isScalable() = true
 }
 
 @Serializable
@@ -271,6 +315,7 @@ data class AvatarBlurFilter(
 ) : AvatarFilter() {
     override val maxLength = radius.size
     override fun hasAnimation() = maxLength > 1
+    override fun isScalable() = true
 }
 
 @Serializable
@@ -283,6 +328,7 @@ data class AvatarContrastFilter(
 ) : AvatarFilter() {
     override val maxLength = arrayOf(brightness.size, contrast.size).maxOrNull() ?: 1
     override fun hasAnimation() = maxLength > 1
+    override fun isPointwise() = true
 }
 
 @Serializable
@@ -297,6 +343,7 @@ data class AvatarHSBFilter(
 ) : AvatarFilter() {
     override val maxLength = arrayOf(hue.size, saturation.size, brightness.size).maxOrNull() ?: 1
     override fun hasAnimation() = maxLength > 1
+    override fun isPointwise() = true
 }
 
 @Serializable
@@ -363,6 +410,7 @@ data class AvatarOilFilter(
 ) : AvatarFilter() {
     override val maxLength = arrayOf(skip.size, range.size, levels.size).maxOrNull() ?: 1
     override fun hasAnimation() = maxLength > 1
+    override fun isScalable() = true
 }
 
 @Serializable
@@ -382,7 +430,8 @@ data class AvatarData @JvmOverloads constructor(
     var rotate: Boolean = false,
     var avatarOnTop: Boolean = true,
     var antialias: Boolean? = null,
-    var resampling: Boolean? = null
+    var resampling: Boolean? = null,
+    var preResampling: Boolean = true
 )
 
 @Deprecated("使用GifAvatarExtraDataProvider以保证对GIF格式的解析")
@@ -420,5 +469,32 @@ data class GifRenderParams(
     val maxSize: List<Int>?,
     val antialias: Boolean,
     val quality: Int = 5,
-    val reverse: Boolean = false
-)
\ No newline at end of file
+    val reverse: Boolean = false,
+    /**
+     * 模板预计算的调色板, 仅用于 TEMPLATE_PALETTE 编码器
+     */
+    val palette: GifPalette? = null,
+    /**
+     * 只编码与前一帧不同的区域, 不适用于 BUFFERED_STREAM
+     */
+    val frameDiff: Boolean = false,
+    val quantizer: Quantizer = Quantizer.NEU_QUANT,
+    /**
+     * 输出体积上限 (字节), 0 为不限制, 不适用于 BUFFERED_STREAM
+     */
+    val maxBytes: Int = 0,
+    /**
+     * 调色板颜色数, 小于 256 时使用 MEDIAN_CUT 量化
+     */
+    val paletteSize: Int = GifPalette.PALETTE_SIZE
+) {
+    /**
+     * 按体积上限的估算结果调整参数, 抽帧时延时相应增加
+     */
+    fun withBudget(budget: GifSizeBudget) = copy(
+        maxSize = budget.maxSize ?: maxSize,
+        delay = delay * budget.frameStep,
+        paletteSize = budget.paletteSize,
+        maxBytes = 0
+    )
+}
\ No newline at end of file
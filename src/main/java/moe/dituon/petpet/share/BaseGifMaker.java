@@ -1,15 +1,13 @@
 package moe.dituon.petpet.share;
 
-import moe.dituon.petpet.share.FastAnimatedGifEncoder.FrameData;
-
-import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
+import java.util.function.Function;
+import java.util.function.IntFunction;
 
 public class BaseGifMaker {
 
@@ -20,212 +18,208 @@ public class BaseGifMaker {
 
     public InputStream makeGIF(List<AvatarModel> avatarList, List<TextModel> textList,
                                BufferedImage[] stickers, GifRenderParams params) {
-        switch (params.getEncoder()) {
-            case ANIMATED_LIB:
-                return makeGifUseAnimatedLib(avatarList, textList, stickers, params);
-            case BUFFERED_STREAM:
-                return makeGifUseBufferedStream(avatarList, textList, stickers, params);
-        }
-        throw new RuntimeException();
+        OutputBuffer output = new OutputBuffer();
+        makeGIF(avatarList, textList, stickers, params, output);
+        return output.toInputStream();
+    }
+
+    /**
+     * 每帧编码后立即写入输出流, 输出流不会被关闭
+     */
+    public void makeGIF(List<AvatarModel> avatarList, List<TextModel> textList,
+                        BufferedImage[] stickers, GifRenderParams params, OutputStream output) {
+        makeGIF(stickers.length, maxSize -> fi -> ImageSynthesis.synthesisOpaqueImage(
+                stickers[fi], avatarList, textList,
+                params.getAntialias(), (short) fi, maxSize
+        ), params, output);
     }
 
     public InputStream makeGifUseBufferedStream(
             List<AvatarModel> avatarList, List<TextModel> textList,
             BufferedImage[] stickers, GifRenderParams params
     ) {
-        try {
-            //遍历获取GIF长度(图片文件数量)
-            CountDownLatch latch = new CountDownLatch(stickers.length);
-            BufferedImage[] images = new BufferedImage[stickers.length];
-            for (int i = 0; i < stickers.length; i++) {
-                int fi = i;
-                ImageSynthesis.threadPool.execute(() -> {
-                    BufferedImage image = ImageSynthesis.synthesisImage(
-                            stickers[fi], avatarList, textList,
-                            params.getAntialias(), false,
-                            (short) fi, params.getMaxSize()
-                    );
-                    BufferedImage temp =
-                            new BufferedImage(image.getWidth(), image.getHeight(),
-                                    BufferedImage.TYPE_3BYTE_BGR);
-                    Graphics2D g = temp.createGraphics();
-                    g.drawImage(image, 0, 0, null);
-                    images[fi] = temp;
-                    latch.countDown();
-                });
-            }
-            BufferedGifEncoder gifEncoder =
-                    new BufferedGifEncoder(BufferedImage.TYPE_3BYTE_BGR, params.getDelay(), true);
-            latch.await();
-            if (params.getReverse()) {
-                for (int s = images.length - 1; s >= 0; s--) gifEncoder.addFrame(images[s]);
-            } else {
-                for (BufferedImage image : images) gifEncoder.addFrame(image);
-            }
-            gifEncoder.finish();
-            return gifEncoder.getOutput();
-        } catch (InterruptedException | IOException e) {
-            throw new RuntimeException(e);
-        }
+        OutputBuffer output = new OutputBuffer();
+        makeGifUseBufferedStream(stickers.length, fi -> ImageSynthesis.synthesisOpaqueImage(
+                stickers[fi], avatarList, textList,
+                params.getAntialias(), (short) fi, params.getMaxSize()
+        ), params, output);
+        return output.toInputStream();
     }
 
     public InputStream makeGifUseAnimatedLib
             (List<AvatarModel> avatarList, List<TextModel> textList,
              BufferedImage[] stickers, GifRenderParams params) {
-        try {
-            //遍历获取GIF长度(图片文件数量)
-            CountDownLatch latch = new CountDownLatch(stickers.length);
-            FrameData[] frames = new FrameData[stickers.length];
-            int[] size = new int[2];
-            for (int i = 0; i < stickers.length; i++) {
-                int fi = i;
-                ImageSynthesis.threadPool.execute(() -> {
-                    BufferedImage image = ImageSynthesis.synthesisImage(
-                            stickers[fi], avatarList, textList,
-                            params.getAntialias(), false, (short) fi, params.getMaxSize()
-                    );
-                    BufferedImage temp =
-                            new BufferedImage(image.getWidth(), image.getHeight(),
-                                    BufferedImage.TYPE_3BYTE_BGR);
-                    Graphics2D g = temp.createGraphics();
-                    g.drawImage(image, 0, 0, null);
-                    g.dispose();
-                    FrameData frameData = new FrameData(temp, params.getQuality());
-                    frames[fi] = frameData;
-                    if (fi == 0) {
-                        size[0] = temp.getWidth();
-                        size[1] = temp.getHeight();
-                    }
-                    latch.countDown();
-                });
-            }
+        OutputBuffer output = new OutputBuffer();
+        makeGifUseAnimatedLib(stickers.length, fi -> ImageSynthesis.synthesisOpaqueImage(
+                stickers[fi], avatarList, textList,
+                params.getAntialias(), (short) fi, params.getMaxSize()
+        ), params, output);
+        return output.toInputStream();
+    }
 
-            FastAnimatedGifEncoder gifEncoder = new FastAnimatedGifEncoder();
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
-            gifEncoder.start(output);
-            gifEncoder.setRepeat(0);
-            gifEncoder.setDelay(params.getDelay());
-            gifEncoder.setQuality(params.getQuality());
+    public InputStream makeGIF(List<AvatarModel> avatarList, List<TextModel> textList,
+                               BufferedImage sticker, GifRenderParams params) {
+        OutputBuffer output = new OutputBuffer();
+        makeGIF(avatarList, textList, sticker, params, output);
+        return output.toInputStream();
+    }
+
+    /**
+     * 每帧编码后立即写入输出流, 输出流不会被关闭
+     */
+    public void makeGIF(List<AvatarModel> avatarList, List<TextModel> textList,
+                        BufferedImage sticker, GifRenderParams params, OutputStream output) {
+        makeGIF(getMaxFrameLength(avatarList), maxSize -> fi -> ImageSynthesis.synthesisOpaqueImage(
+                sticker, avatarList, textList,
+                params.getAntialias(), (short) fi, maxSize
+        ), params, output);
+    }
 
-            latch.await();
-            gifEncoder.setSize(size[0], size[1]);
-            if (params.getReverse()) {
-                for (int s = frames.length - 1; s >= 0; s--) gifEncoder.addFrame(frames[s]);
-            } else {
-                for (FrameData frame : frames) gifEncoder.addFrame(frame);
+    /**
+     * 设置了体积上限时, 先由采样帧估算体积, 再以调整后的参数合成
+     *
+     * @param length          帧数
+     * @param rendererFactory 由 gifMaxSize 创建帧合成函数 (在线程池中调用)
+     */
+    protected void makeGIF(
+            int length, Function<List<Integer>, IntFunction<BufferedImage>> rendererFactory,
+            GifRenderParams params, OutputStream output
+    ) {
+        if (params.getMaxBytes() > 0 && params.getEncoder() != Encoder.BUFFERED_STREAM) {
+            GifSizeBudget budget = GifSizeBudget.plan(length, rendererFactory, params);
+            if (budget.isAdjusted()) {
+                int step = budget.frameStep;
+                makeGIF(GifSizeBudget.frameLength(length, step), maxSize -> {
+                    IntFunction<BufferedImage> renderer = rendererFactory.apply(maxSize);
+                    return fi -> renderer.apply(fi * step);
+                }, params.withBudget(budget), output);
+                return;
             }
-            gifEncoder.finish();
-            return new ByteArrayInputStream(output.toByteArray());
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
         }
-    }
 
-    public InputStream makeGIF(List<AvatarModel> avatarList, List<TextModel> textList,
-                               BufferedImage sticker, GifRenderParams params) {
+        IntFunction<BufferedImage> renderer = rendererFactory.apply(params.getMaxSize());
         switch (params.getEncoder()) {
             case ANIMATED_LIB:
-                return makeGifUseAnimatedLib(avatarList, textList, sticker, params);
+                makeGifUseAnimatedLib(length, renderer, params, output);
+                return;
             case BUFFERED_STREAM:
-                return makeGifUseBufferedStream(avatarList, textList, sticker, params);
+                makeGifUseBufferedStream(length, renderer, params, output);
+                return;
+            case TEMPLATE_PALETTE:
+                if (params.getPalette() != null) {
+                    makeGifUsePalette(length, renderer, params.getPalette(), params, output);
+                } else {
+                    // 模板调色板尚未生成时使用全局调色板
+                    makeGifUseGlobalPalette(length, renderer, params, output);
+                }
+                return;
+            case GLOBAL_PALETTE:
+                makeGifUseGlobalPalette(length, renderer, params, output);
+                return;
         }
-        throw new RuntimeException();
+        throw new IllegalArgumentException("Unsupported encoder: " + params.getEncoder());
     }
 
-    private InputStream makeGifUseBufferedStream(
+    public InputStream makeGifUseAnimatedLib(
             List<AvatarModel> avatarList, List<TextModel> textList,
             BufferedImage sticker, GifRenderParams params) {
-        try {
-            int maxFrameLength = 1;
-            for (AvatarModel avatar : avatarList) {
-                maxFrameLength = Math.max(maxFrameLength, avatar.getImageList().size());
-            }
-
-            CountDownLatch latch = new CountDownLatch(maxFrameLength);
-            BufferedImage[] images = new BufferedImage[maxFrameLength];
-            for (short i = 0; i < maxFrameLength; i++) {
-                short fi = i;
-                ImageSynthesis.threadPool.execute(() -> {
-                    BufferedImage image = ImageSynthesis.synthesisImage(
-                            sticker, avatarList, textList,
-                            params.getAntialias(), false, fi, params.getMaxSize()
-                    );
-                    BufferedImage temp =
-                            new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
-                    Graphics2D g = temp.createGraphics();
-                    g.drawImage(image, 0, 0, null);
-                    images[fi] = temp;
-                    latch.countDown();
-                });
-            }
+        OutputBuffer output = new OutputBuffer();
+        makeGifUseAnimatedLib(getMaxFrameLength(avatarList), fi -> ImageSynthesis.synthesisOpaqueImage(
+                sticker, avatarList, textList,
+                params.getAntialias(), (short) fi, params.getMaxSize()
+        ), params, output);
+        return output.toInputStream();
+    }
 
+    /**
+     * @param length   帧数
+     * @param renderer 合成指定索引的帧 (在线程池中调用)
+     */
+    protected void makeGifUseBufferedStream(
+            int length, IntFunction<BufferedImage> renderer, GifRenderParams params, OutputStream output
+    ) {
+        try (var lease = RenderScheduler.lease()) {
             BufferedGifEncoder gifEncoder =
-                    new BufferedGifEncoder(BufferedImage.TYPE_3BYTE_BGR, params.getDelay(), true);
-            latch.await();
-            if (params.getReverse()) {
-                for (int s = images.length - 1; s >= 0; s--) gifEncoder.addFrame(images[s]);
-            } else {
-                for (BufferedImage image : images) gifEncoder.addFrame(image);
-            }
+                    new BufferedGifEncoder(BufferedImage.TYPE_3BYTE_BGR, params.getDelay(), true, output);
+            FramePipeline.run(lease.getPool(), length, params.getReverse(),
+                    fi -> FastAnimatedGifEncoder.toBGRImage(renderer.apply(fi)),
+                    image -> {
+                        try {
+                            gifEncoder.addFrame(image);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
             gifEncoder.finish();
-            return gifEncoder.getOutput();
         } catch (InterruptedException | IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    public InputStream makeGifUseAnimatedLib(
-            List<AvatarModel> avatarList, List<TextModel> textList,
-            BufferedImage sticker, GifRenderParams params) {
-        try {
-            int maxFrameLength = 1;
-            for (AvatarModel avatar : avatarList) {
-                maxFrameLength = Math.max(maxFrameLength, avatar.getImageList().size());
-            }
+    /**
+     * 帧的合成与量化在线程池中进行, 每帧在其之前的帧写入后立即写入输出流
+     *
+     * @param length   帧数
+     * @param renderer 合成指定索引的帧 (在线程池中调用)
+     */
+    protected void makeGifUseAnimatedLib(
+            int length, IntFunction<BufferedImage> renderer, GifRenderParams params, OutputStream output
+    ) {
+        makeGifUsePalette(length, renderer, null, params, output);
+    }
 
-            CountDownLatch latch = new CountDownLatch(maxFrameLength);
-            FrameData[] frames = new FrameData[maxFrameLength];
-            int[] size = new int[2];
-            for (short i = 0; i < maxFrameLength; i++) {
-                short fi = i;
-                ImageSynthesis.threadPool.execute(() -> {
-                    BufferedImage image = ImageSynthesis.synthesisImage(
-                            sticker, avatarList, textList,
-                            params.getAntialias(), false, fi, params.getMaxSize()
-                    );
-                    BufferedImage temp =
-                            new BufferedImage(image.getWidth(), image.getHeight(),
-                                    BufferedImage.TYPE_3BYTE_BGR);
-                    Graphics2D g = temp.createGraphics();
-                    g.drawImage(image, 0, 0, null);
-                    FrameData frameData = new FrameData(temp, params.getQuality());
-                    frames[fi] = frameData;
-                    if (fi == 0) {
-                        size[0] = temp.getWidth();
-                        size[1] = temp.getHeight();
-                    }
-                    latch.countDown();
-                });
-            }
+    /**
+     * 先合成全部帧, 从所有帧中采样训练一个全局调色板, 再并行映射像素
+     * <br/>
+     * 省去每帧的 NeuQuant 训练与局部颜色表, 但需要同时持有全部帧
+     *
+     * @param length   帧数
+     * @param renderer 合成指定索引的帧 (在线程池中调用)
+     */
+    protected void makeGifUseGlobalPalette(
+            int length, IntFunction<BufferedImage> renderer, GifRenderParams params, OutputStream output
+    ) {
+        List<BufferedImage> images = ImageSynthesis.execImageList(
+                length, fi -> FastAnimatedGifEncoder.toBGRImage(renderer.apply(fi))
+        );
+        GifPalette palette = GifPalette.learn(
+                images, params.getQuality(), ColorQuantizer.of(params.getQuantizer(), params.getPaletteSize())
+        );
+        makeGifUsePalette(length, images::get, palette, params, output);
+    }
 
+    /**
+     * 使用给定的调色板, 帧在线程池中合成后直接映射像素
+     *
+     * @param length   帧数
+     * @param renderer 合成指定索引的帧 (在线程池中调用)
+     * @param palette  共用的调色板, 为 null 时每帧单独训练
+     */
+    protected void makeGifUsePalette(
+            int length, IntFunction<BufferedImage> renderer, GifPalette palette,
+            GifRenderParams params, OutputStream output
+    ) {
+        try (var lease = RenderScheduler.lease()) {
             FastAnimatedGifEncoder gifEncoder = new FastAnimatedGifEncoder();
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
             gifEncoder.start(output);
-            gifEncoder.setDelay(params.getDelay());
             gifEncoder.setRepeat(0);
+            gifEncoder.setDelay(params.getDelay());
             gifEncoder.setQuality(params.getQuality());
+            gifEncoder.setQuantizer(ColorQuantizer.of(params.getQuantizer(), params.getPaletteSize()));
 
-            latch.await();
-            gifEncoder.setSize(size[0], size[1]);
-            if (params.getReverse()) {
-                for (int s = frames.length - 1; s >= 0; s--) gifEncoder.addFrame(frames[s]);
-            } else {
-                for (FrameData frame : frames) gifEncoder.addFrame(frame);
-            }
-            gifEncoder.finish();
-            return new ByteArrayInputStream(output.toByteArray());
+            gifEncoder.addFrames(lease.getPool(), length, params.getReverse(),
+                    renderer, palette, params.getFrameDiff());
+            if (!gifEncoder.finish()) throw new UncheckedIOException(new IOException("GIF 写入失败"));
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         }
     }
-}
\ No newline at end of file
+
+    protected static int getMaxFrameLength(List<AvatarModel> avatarList) {
+        int maxFrameLength = 1;
+        for (AvatarModel avatar : avatarList) {
+            maxFrameLength = Math.max(maxFrameLength, avatar.getImageList().size());
+        }
+        return maxFrameLength;
+    }
+}
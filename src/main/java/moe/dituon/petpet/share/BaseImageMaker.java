@@ -4,11 +4,11 @@ import kotlin.Pair;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.function.Function;
 
 public class BaseImageMaker {
     protected BaseGifMaker gifMaker;
@@ -32,27 +32,38 @@ public class BaseImageMaker {
     public Pair<InputStream, String> makeImage(
             ArrayList<AvatarModel> avatarList, ArrayList<TextModel> textList,
             BufferedImage sticker, GifRenderParams params) {
+        OutputBuffer output = new OutputBuffer();
+        String format = makeImage(avatarList, textList, sticker, params, f -> output);
+        return new Pair<>(output.toInputStream(), format);
+    }
+
+    /**
+     * @param outputProvider 由图片格式 (["gif", "png"]) 获取输出流, 在写入前调用; 输出流不会被关闭
+     * @return 图片格式
+     */
+    public String makeImage(
+            ArrayList<AvatarModel> avatarList, ArrayList<TextModel> textList,
+            BufferedImage sticker, GifRenderParams params, Function<String, OutputStream> outputProvider) {
         for (AvatarModel avatar : avatarList) {
-            if (avatar.isGif()) return new Pair<>(
-                    gifMaker.makeGIF(avatarList, textList, sticker, params),
-                    "gif"
-            );
+            if (avatar.isGif()) {
+                gifMaker.makeGIF(avatarList, textList, sticker, params, outputProvider.apply("gif"));
+                return "gif";
+            }
         }
+        BufferedImage image = ImageSynthesis.synthesisImage(
+                sticker, avatarList, textList, params.getAntialias(), true
+        );
         try {
-            return new Pair<>(
-                    bufferedImageToInputStream(ImageSynthesis.synthesisImage(
-                            sticker, avatarList, textList, params.getAntialias(), true
-                    )),
-                    "png"
-            );
+            ImageIO.write(image, "png", outputProvider.apply("png"));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        return "png";
     }
 
     public static InputStream bufferedImageToInputStream(BufferedImage bf) throws IOException {
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        OutputBuffer os = new OutputBuffer();
         ImageIO.write(bf, "png", os);
-        return new ByteArrayInputStream(os.toByteArray());
+        return os.toInputStream();
     }
 }
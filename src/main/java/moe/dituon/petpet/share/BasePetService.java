@@ -11,7 +11,8 @@ import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.*;
 import java.util.concurrent.Callable;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 
@@ -24,6 +25,9 @@ public class BasePetService {
     protected boolean antialias = true;
     protected boolean resampling = true;
     protected int quality = 10;
+    protected boolean frameDiff = false;
+    protected Quantizer quantizer = Quantizer.NEU_QUANT;
+    protected int gifMaxBytes = 0;
     private List<Integer> gifMaxSize = null;
     public Encoder encoder = Encoder.ANIMATED_LIB;
 
@@ -32,6 +36,8 @@ public class BasePetService {
     protected HashMap<String, String[]> aliaMap = new HashMap<>(DEFAULT_INITIAL_CAPACITY);
     protected HashMap<String, Callable<BufferedImage[]>> backgroundLambdaMap = new HashMap<>(DEFAULT_INITIAL_CAPACITY);
     protected WeakHashMap<String, BufferedImage[]> backgroundCacheMap = new WeakHashMap<>(DEFAULT_INITIAL_CAPACITY);
+    protected HashMap<String, RenderPlan> planMap = new HashMap<>(DEFAULT_INITIAL_CAPACITY);
+    protected Map<String, GifPalette> paletteCacheMap = new ConcurrentHashMap<>(DEFAULT_INITIAL_CAPACITY);
     public String keyListString = "";
 
     //    protected int serviceThreadPoolSize = DEFAULT_THREAD_POOL_SIZE;
@@ -82,7 +88,10 @@ public class BasePetService {
         data.getAvatar().forEach(avatar -> {
             if (avatar.getResampling() == null) avatar.setResampling(resampling);
         });
+        RenderPlan plan = new RenderPlan(data);
         dataMap.put(key.intern(), data);
+        planMap.put(key, plan);
+        paletteCacheMap.remove(key);
 
         String path = dataRoot.getAbsolutePath() + File.separator + key + File.separator;
         File[] files = new File(path).listFiles();
@@ -111,6 +120,7 @@ public class BasePetService {
                     throw new RuntimeException(e);
                 }
             }).toArray(BufferedImage[]::new);
+            ImageSynthesis.setSharedBackgrounds(result);
             backgroundCacheMap.put(key, result);
             return result;
         });
@@ -137,7 +147,11 @@ public class BasePetService {
             if (avatar.getResampling() == null) avatar.setResampling(resampling);
         });
 
+        RenderPlan plan = new RenderPlan(data);
         dataMap.put(key, data);
+        planMap.put(key, plan);
+        paletteCacheMap.remove(key);
+        ImageSynthesis.setSharedBackgrounds(backgroundList.toArray(BufferedImage[]::new));
         backgroundLambdaMap.put(key, () -> backgroundList.toArray(BufferedImage[]::new));
 
         if (!Boolean.TRUE.equals(data.getHidden())) putAlia(key, data);
@@ -191,6 +205,10 @@ public class BasePetService {
         setGifMaxSize(config.getGifMaxSize());
         encoder = config.getGifEncoder();
         quality = config.getGifQuality();
+        frameDiff = config.getGifFrameDiff();
+        quantizer = config.getGifQuantizer();
+        gifMaxBytes = Math.max(config.getGifMaxBytes(), 0);
+        paletteCacheMap.clear();
         setThreadPoolSize(config.getThreadPoolSize());
 //        setServiceThreadPoolSize(config.getServiceThreadPoolSize());
         if (config.getHeadless()) System.setProperty("java.awt.headless", "true");
@@ -219,15 +237,36 @@ public class BasePetService {
             GifAvatarExtraDataProvider gifAvatarExtraDataProvider,
             TextExtraData textExtraData,
             List<TextData> additionTextDataList
+    ) {
+        OutputBuffer output = new OutputBuffer();
+        String format = generateImage(key, gifAvatarExtraDataProvider, textExtraData, additionTextDataList,
+                f -> output);
+        return new Pair<>(output.toInputStream(), format);
+    }
+
+    /**
+     * 将图片直接写入输出流, GIF 每帧编码后立即写入, 不在内存中保留完整结果
+     *
+     * @param outputProvider 由图片格式 (["gif", "png"...]) 获取输出流, 在写入前调用; 输出流不会被关闭
+     * @return 图片格式
+     */
+    public String generateImage(
+            @NotNull String key,
+            GifAvatarExtraDataProvider gifAvatarExtraDataProvider,
+            TextExtraData textExtraData,
+            List<TextData> additionTextDataList,
+            Function<String, OutputStream> outputProvider
     ) {
         if (!dataMap.containsKey(key) && !aliaMap.containsKey(key)) {
             throw new RuntimeException("无效的key: “" + key + "”");
         }
         try {
-            TemplateDTO data = dataMap.containsKey(key) ? dataMap.get(key) : dataMap.get(aliaMap.get(key)[0]);
-            BufferedImage[] backgrounds = backgroundLambdaMap.get(key).call();
+            String templateKey = dataMap.containsKey(key) ? key : aliaMap.get(key)[0];
+            TemplateDTO data = dataMap.get(templateKey);
+            BufferedImage[] backgrounds = backgroundLambdaMap.get(templateKey).call();
             return generateImage(
-                    data, backgrounds, gifAvatarExtraDataProvider, textExtraData, additionTextDataList
+                    planMap.get(templateKey), backgrounds, getTemplatePalette(templateKey, data, backgrounds),
+                    gifAvatarExtraDataProvider, textExtraData, additionTextDataList, outputProvider
             );
         } catch (FileNotFoundException ex) {
             throw new RuntimeException("无法读取 " + key + " 背景文件", ex);
@@ -243,78 +282,134 @@ public class BasePetService {
             TextExtraData textExtraData,
             List<TextData> additionTextDataList
     ) throws FileNotFoundException {
-        ArrayList<TextModel> textList = new ArrayList<>();
-        // add from KeyData
-        if (!data.getText().isEmpty()) {
-            data.getText().forEach(textElement ->
-                    textList.add(new TextModel(textElement, textExtraData))
-            );
-        }
-        // add from params
-        if (additionTextDataList != null) {
-            additionTextDataList.forEach(textElement ->
-                    textList.add(new TextModel(textElement, textExtraData))
-            );
-        }
+        return generateImage(
+                data, backgrounds, null, gifAvatarExtraDataProvider, textExtraData, additionTextDataList
+        );
+    }
 
-        ArrayList<AvatarModel> avatarList = new ArrayList<>(data.getAvatar().size());
+    /**
+     * @param palette 模板预计算的调色板, 仅用于 TEMPLATE_PALETTE 编码器, 可为 null
+     */
+    protected Pair<InputStream, String> generateImage(
+            TemplateDTO data,
+            BufferedImage[] backgrounds,
+            GifPalette palette,
+            GifAvatarExtraDataProvider gifAvatarExtraDataProvider,
+            TextExtraData textExtraData,
+            List<TextData> additionTextDataList
+    ) throws FileNotFoundException {
+        OutputBuffer output = new OutputBuffer();
+        String format = generateImage(data, backgrounds, palette,
+                gifAvatarExtraDataProvider, textExtraData, additionTextDataList, f -> output);
+        return new Pair<>(output.toInputStream(), format);
+    }
 
-        if (!data.getAvatar().isEmpty()) {
-            data.getAvatar().forEach(avatarData ->
-                    avatarList.add(new AvatarModel(avatarData, gifAvatarExtraDataProvider, data.getType()))
-            );
-        }
+    /**
+     * @param outputProvider 由图片格式获取输出流, 在写入前调用
+     * @return 图片格式
+     */
+    protected String generateImage(
+            TemplateDTO data,
+            BufferedImage[] backgrounds,
+            GifPalette palette,
+            GifAvatarExtraDataProvider gifAvatarExtraDataProvider,
+            TextExtraData textExtraData,
+            List<TextData> additionTextDataList,
+            Function<String, OutputStream> outputProvider
+    ) throws FileNotFoundException {
+        return generateImage(new RenderPlan(data), backgrounds, palette,
+                gifAvatarExtraDataProvider, textExtraData, additionTextDataList, outputProvider);
+    }
+
+    /**
+     * @param plan 由 putKeyData 预编译的渲染计划, 本方法只绑定头像与文字
+     * @return 图片格式
+     */
+    protected String generateImage(
+            RenderPlan plan,
+            BufferedImage[] backgrounds,
+            GifPalette palette,
+            GifAvatarExtraDataProvider gifAvatarExtraDataProvider,
+            TextExtraData textExtraData,
+            List<TextData> additionTextDataList,
+            Function<String, OutputStream> outputProvider
+    ) throws FileNotFoundException {
+        ArrayList<TextModel> textList = plan.bindTexts(textExtraData, additionTextDataList);
+        ArrayList<AvatarModel> avatarList = plan.bindAvatars(gifAvatarExtraDataProvider);
 
-        int delay = data.getDelay() != null ? data.getDelay() : 65;
         GifRenderParams renderParams = new GifRenderParams(
-                encoder, delay, gifMaxSize, antialias, quality,
-                Boolean.TRUE.equals(data.getReverse())
+                encoder, plan.delay, gifMaxSize, antialias, quality,
+                plan.reverse, palette, frameDiff, getQuantizer(plan),
+                gifMaxBytes, GifPalette.PALETTE_SIZE
         );
 
-        switch (data.getType()) {
+        switch (plan.type) {
             case GIF:
                 BufferedImage[] stickers;
 
-                if (data.getBackground() != null) { //从配置文件读背景
-                    stickers = new BackgroundModel(data.getBackground(), avatarList, textList).getImages();
+                if (plan.background != null) { //从配置文件读背景
+                    stickers = new BackgroundModel(plan.background, avatarList, textList).getImages();
                 } else {
                     stickers = backgrounds;
                 }
 
-                InputStream inputStream = gifMaker.makeGIF(
-                        avatarList, textList, stickers, renderParams
-                );
-                return new Pair<>(inputStream, "gif");
+                gifMaker.makeGIF(avatarList, textList, stickers, renderParams, outputProvider.apply("gif"));
+                return "gif";
             case IMG:
-                BufferedImage sticker = getBackgroundImage(backgrounds, data, avatarList, textList);
+                BufferedImage sticker = getBackgroundImage(backgrounds, plan.background, avatarList, textList);
                 assert sticker != null;
-                return imageMaker.makeImage(avatarList, textList, sticker, renderParams);
+                return imageMaker.makeImage(avatarList, textList, sticker, renderParams, outputProvider);
         }
 
         throw new RuntimeException(); //never
     }
 
+    /**
+     * 获取模板背景的调色板, 首次使用时计算并缓存
+     *
+     * @param key 模板索引 (非别名), 同一模板的各别名共用一份调色板
+     * @return 非 TEMPLATE_PALETTE 编码器, 非 GIF 模板或背景由配置生成时返回 null
+     */
+    protected GifPalette getTemplatePalette(String key, TemplateDTO data, BufferedImage[] backgrounds) {
+        if (encoder != Encoder.TEMPLATE_PALETTE || data.getType() != Type.GIF
+                || data.getBackground() != null || backgrounds.length == 0) return null;
+        return paletteCacheMap.computeIfAbsent(key, k -> GifPalette.learnWithReserved(
+                backgrounds, quality, ColorQuantizer.of(getQuantizer(data))
+        ));
+    }
+
+    /**
+     * @return 模板指定的量化器, 未指定时使用服务配置
+     */
+    protected Quantizer getQuantizer(TemplateDTO data) {
+        return data.getQuantizer() != null ? data.getQuantizer() : quantizer;
+    }
+
+    protected Quantizer getQuantizer(RenderPlan plan) {
+        return plan.quantizer != null ? plan.quantizer : quantizer;
+    }
+
     private BufferedImage getBackgroundImage(
             BufferedImage[] backgrounds,
-            TemplateDTO data,
+            BackgroundData backgroundData,
             ArrayList<AvatarModel> avatarList,
             ArrayList<TextModel> textList
     ) throws FileNotFoundException {
         boolean isEmpty = backgrounds.length == 0;
-        if (isEmpty && data.getBackground() == null) { //没有背景图片和背景配置
+        if (isEmpty && backgroundData == null) { //没有背景图片和背景配置
             throw new FileNotFoundException();
         }
-        if (isEmpty && data.getBackground() != null) { //无背景图片(读取背景配置
-            return new BackgroundModel(data.getBackground(), avatarList, textList).getImage();
+        if (isEmpty && backgroundData != null) { //无背景图片(读取背景配置
+            return new BackgroundModel(backgroundData, avatarList, textList).getImage();
         }
         assert !isEmpty;
         var background = backgrounds[random.nextInt(backgrounds.length)];
 
-        if (data.getBackground() == null) return background;  //无背景配置(读取随机背景图片
+        if (backgroundData == null) return background;  //无背景配置(读取随机背景图片
 
         //有配置项和图片
         return new BackgroundModel(
-                data.getBackground(), avatarList, textList, background
+                backgroundData, avatarList, textList, background
         ).getImage();
     }
 
@@ -346,8 +441,7 @@ public class BasePetService {
     public void setThreadPoolSize(int size) {
         assert size >= 0;
         gifEncoderThreadPoolSize = size == 0 ? DEFAULT_THREAD_POOL_SIZE : size;
-        ImageSynthesis.threadPool.shutdown();
-        ImageSynthesis.threadPool = Executors.newFixedThreadPool(gifEncoderThreadPoolSize);
+        RenderScheduler.resize(gifEncoderThreadPoolSize);
     }
 
 //    public void setServiceThreadPoolSize(int size) {
@@ -5,6 +5,7 @@ import javax.imageio.metadata.IIOInvalidTreeException;
 import javax.imageio.metadata.IIOMetadata;
 import javax.imageio.metadata.IIOMetadataNode;
 import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 import java.awt.image.RenderedImage;
 import java.io.*;
 
@@ -14,9 +15,22 @@ public class BufferedGifEncoder {
     protected ImageWriteParam params;
     protected IIOMetadata metadata;
     protected ImageOutputStream image;
+    protected OutputStream outputStream;
+    protected OutputBuffer buffer;
     protected InputStream output;
 
+    /**
+     * 输出到内存, 完成后由 {@link #getOutput()} 获取
+     */
     public BufferedGifEncoder(int imageType, int delay, boolean loop) throws IOException {
+        this(imageType, delay, loop, new OutputBuffer());
+        buffer = (OutputBuffer) outputStream;
+    }
+
+    /**
+     * 每帧编码后立即写入给定的输出流, 输出流不会被关闭
+     */
+    public BufferedGifEncoder(int imageType, int delay, boolean loop, OutputStream outputStream) throws IOException {
         writer = ImageIO.getImageWritersBySuffix("gif").next();
         params = writer.getDefaultWriteParam();
 
@@ -25,33 +39,12 @@ public class BufferedGifEncoder {
 
         configureRootMetadata(delay, loop);
 
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
-        image = ImageIO.createImageOutputStream(os);
+        this.outputStream = outputStream;
+        image = new MemoryCacheImageOutputStream(outputStream);
         writer.setOutput(image);
         writer.prepareWriteSequence(null);
     }
 
-    public byte[] getBytes(ImageOutputStream ios) {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream(255);
-        try {
-            ios.seek(0);
-        } catch (IOException e1) {
-            e1.printStackTrace();
-        }
-
-        while (true) {
-            try {
-                bos.write(ios.readByte());
-            } catch (EOFException e) {
-                break;
-            } catch (IOException e) {
-                BasePetService.LOGGER.warning("Error processing the Image Stream", e);
-                break;
-            }
-        }
-        return bos.toByteArray();
-    }
-
     private void configureRootMetadata(int delay, boolean loop) throws IIOInvalidTreeException {
         String metaFormatName = metadata.getNativeMetadataFormatName();
         IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(metaFormatName);
@@ -88,6 +81,9 @@ public class BufferedGifEncoder {
 
     public void addFrame(RenderedImage img) throws IOException {
         writer.writeToSequence(new IIOImage(img, null, metadata), params);
+        // 将已编码的帧写入输出流, 并释放缓存
+        image.flush();
+        outputStream.flush();
     }
 
     public InputStream getOutput() {
@@ -96,6 +92,8 @@ public class BufferedGifEncoder {
 
     public void finish() throws IOException {
         writer.endWriteSequence();
-        output = new ByteArrayInputStream(getBytes(image));
+        image.close();
+        outputStream.flush();
+        if (buffer != null) output = buffer.toInputStream();
     }
 }
\ No newline at end of file
@@ -0,0 +1,34 @@
+package moe.dituon.petpet.share;
+
+/**
+ * 颜色量化器, 由像素训练 GIF 调色板
+ */
+public interface ColorQuantizer {
+    ColorQuantizer NEU_QUANT = GifPalette::learn;
+    ColorQuantizer MEDIAN_CUT = MedianCutQuantizer::quantize;
+
+    /**
+     * @param pixels  BGR 像素
+     * @param quality 采样间隔, 越小质量越好
+     */
+    GifPalette quantize(byte[] pixels, int quality);
+
+    static ColorQuantizer of(Quantizer type) {
+        if (type == null) return NEU_QUANT;
+        switch (type) {
+            case MEDIAN_CUT:
+                return MEDIAN_CUT;
+            case NEU_QUANT:
+            default:
+                return NEU_QUANT;
+        }
+    }
+
+    /**
+     * @param paletteSize 颜色数, 小于 256 时固定使用 MEDIAN_CUT (NeuQuant 只能输出 256 色)
+     */
+    static ColorQuantizer of(Quantizer type, int paletteSize) {
+        if (paletteSize >= GifPalette.PALETTE_SIZE) return of(type);
+        return (pixels, quality) -> MedianCutQuantizer.quantize(pixels, quality, paletteSize);
+    }
+}
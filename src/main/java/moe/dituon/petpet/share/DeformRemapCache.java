@@ -0,0 +1,174 @@
+package moe.dituon.petpet.share;
+
+import java.awt.geom.Point2D;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * 变形头像的重映射表缓存, 按 (四角坐标, 头像尺寸) 索引, 按总字节数淘汰最久未使用的表
+ * <br/>
+ * 模板每帧的四角坐标固定, 头像尺寸种类有限, 因此目标像素到源像素的映射可在请求间复用
+ */
+public class DeformRemapCache {
+    public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+    protected final LinkedHashMap<Key, Remap> cache = new LinkedHashMap<>(16, 0.75f, true);
+    protected long maxBytes;
+    protected long bytes = 0;
+    protected long hits = 0;
+    protected long misses = 0;
+    protected long evictions = 0;
+
+    public DeformRemapCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 获取重映射表, 未命中时调用 builder 构建, 构建过程不持有锁
+     */
+    public Remap get(Point2D[] point, int width, int height, Supplier<Remap> builder) {
+        Key key = new Key(point, width, height);
+        synchronized (this) {
+            Remap remap = cache.get(key);
+            if (remap != null) {
+                hits++;
+                return remap;
+            }
+            misses++;
+        }
+        Remap remap = builder.get();
+        put(key, remap);
+        return remap;
+    }
+
+    protected synchronized void put(Key key, Remap remap) {
+        if (remap.getBytes() > maxBytes) return;
+        Remap old = cache.put(key, remap);
+        if (old != null) bytes -= old.getBytes();
+        bytes += remap.getBytes();
+        evict();
+    }
+
+    protected void evict() {
+        Iterator<Remap> iterator = cache.values().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            bytes -= iterator.next().getBytes();
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * @param maxBytes 缓存上限, 为 0 时禁用缓存
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = Math.max(maxBytes, 0);
+        evict();
+    }
+
+    public synchronized void clear() {
+        cache.clear();
+        bytes = 0;
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(cache.size(), bytes, maxBytes, hits, misses, evictions);
+    }
+
+    /**
+     * 目标图像中四边形内各像素对应的源像素索引
+     */
+    public static class Remap {
+        public final int width;
+        public final int height;
+        /**
+         * 目标像素的连续区间 [start, end), 为目标数组中的下标
+         */
+        protected final int[] spans;
+        /**
+         * 按区间顺序排列的源像素下标
+         */
+        protected final int[] sources;
+
+        public Remap(int width, int height, int[] spans, int[] sources) {
+            this.width = width;
+            this.height = height;
+            this.spans = spans;
+            this.sources = sources;
+        }
+
+        /**
+         * 按映射表从 src 收集像素写入 dst
+         */
+        public void apply(int[] src, int[] dst) {
+            int k = 0;
+            for (int i = 0; i < spans.length; i += 2) {
+                for (int d = spans[i], end = spans[i + 1]; d < end; d++) {
+                    dst[d] = src[sources[k++]];
+                }
+            }
+        }
+
+        public long getBytes() {
+            return 4L * (spans.length + sources.length) + 32;
+        }
+    }
+
+    public static class Stats {
+        public final int size;
+        public final long bytes;
+        public final long maxBytes;
+        public final long hits;
+        public final long misses;
+        public final long evictions;
+
+        public Stats(int size, long bytes, long maxBytes, long hits, long misses, long evictions) {
+            this.size = size;
+            this.bytes = bytes;
+            this.maxBytes = maxBytes;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+        }
+
+        @Override
+        public String toString() {
+            return "size=" + size + " bytes=" + bytes + "/" + maxBytes
+                    + " hits=" + hits + " misses=" + misses + " evictions=" + evictions;
+        }
+    }
+
+    protected static class Key {
+        final double[] point;
+        final int width;
+        final int height;
+        final int hash;
+
+        Key(Point2D[] point, int width, int height) {
+            this.point = new double[point.length * 2];
+            for (int i = 0; i < point.length; i++) {
+                this.point[i * 2] = point[i].getX();
+                this.point[i * 2 + 1] = point[i].getY();
+            }
+            this.width = width;
+            this.height = height;
+            this.hash = 31 * (31 * Arrays.hashCode(this.point) + width) + height;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return width == key.width && height == key.height && Arrays.equals(point, key.point);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
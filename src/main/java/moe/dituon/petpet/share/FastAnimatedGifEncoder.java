@@ -3,11 +3,31 @@ package moe.dituon.petpet.share;
 import com.madgag.gif.fmsware.AnimatedGifEncoder;
 import com.madgag.gif.fmsware.NeuQuant;
 
+import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.function.IntFunction;
 
 public class FastAnimatedGifEncoder extends AnimatedGifEncoder {
+    public static final int COLOR_DEPTH = 8;
+
+    protected FrameData currentFrame;
+    protected byte[] globalColorTab;
+    protected ColorQuantizer quantizer = ColorQuantizer.NEU_QUANT;
+    protected FrameData pendingFrame;
+    protected int pendingCount;
+
+    /**
+     * 设置每帧单独训练调色板时使用的量化器
+     */
+    public void setQuantizer(ColorQuantizer quantizer) {
+        this.quantizer = quantizer;
+    }
+
     /**
      * 等效于父类的addFrame, 单线程处理BufferedImage(构建FrameData)
      *
@@ -17,16 +37,23 @@ public class FastAnimatedGifEncoder extends AnimatedGifEncoder {
     @Override
     public boolean addFrame(BufferedImage image) {
         FrameData frame = new FrameData(image, (byte) sample);
-        addFrame(frame);
+        try {
+            addFrame(frame);
+        } catch (UncheckedIOException e) {
+            return false;
+        }
         return true;
     }
 
     public void addFrame(FrameData frame) {
         try {
+            if (firstFrame && !sizeSet) setSize(frame.width, frame.height);
+            currentFrame = frame;
             pixels = frame.pixels;
 //            getImagePixels(); // convert to correct format if necessary
             analyzePixels(frame); // build color table & map pixels
             if (firstFrame) {
+                globalColorTab = colorTab;
                 writeLSD(); // logical screen descriptior
                 writePalette(); // global color table
                 if (repeat >= 0) {
@@ -36,13 +63,131 @@ public class FastAnimatedGifEncoder extends AnimatedGifEncoder {
             }
             writeGraphicCtrlExt(); // write graphic control extension
             writeImageDesc(); // image descriptor
-            if (!firstFrame) {
+            if (hasLocalPalette()) {
                 writePalette(); // local color table
             }
-            writePixels(); // encode and write pixel data
+            writePixels(); // write precompressed pixel data
+            out.flush(); // 流式输出时, 每帧写入后立即发送
             firstFrame = false;
-        } catch (IOException ignored) {
+        } catch (IOException e) {
+            // 输出流已关闭 (如客户端断开连接) 时中止编码
+            throw new UncheckedIOException(e);
+        } finally {
+            currentFrame = null;
+        }
+    }
+
+    /**
+     * 在线程池中构建帧, 按顺序写入
+     * <br/>
+     * 与前一帧完全相同的帧不会被编码, 而是合并到前一帧中 (延时累加)
+     *
+     * @param renderer  合成指定索引的帧 (在线程池中调用)
+     * @param palette   所有帧共用的调色板, 为 null 时每帧单独训练
+     * @param frameDiff 只写入与前一帧不同的矩形区域, 区域内未变化的像素设为透明
+     */
+    public void addFrames(
+            ExecutorService pool, int length, boolean reverse,
+            IntFunction<BufferedImage> renderer, GifPalette palette, boolean frameDiff
+    ) throws InterruptedException {
+        int quality = sample;
+        ColorQuantizer quantizer = this.quantizer;
+        if (frameDiff) setDispose(1); // do not dispose, 未变化的像素沿用前一帧
+        FramePipeline.runPaired(pool, length, reverse,
+                fi -> toBGRImage(renderer.apply(fi)),
+                (previous, image) -> {
+                    if (previous != null && isSameImage(previous, image)) return null;
+                    return new FrameData(image, frameDiff ? previous : null, palette, quantizer, quality);
+                },
+                this::queueFrame);
+        flushFrame();
+    }
+
+    /**
+     * 暂存一帧, 直到确定其后没有相同的帧时再写入
+     *
+     * @param frame 为 null 时表示与前一帧相同, 延长前一帧的延时
+     */
+    protected void queueFrame(FrameData frame) {
+        if (frame == null) {
+            pendingCount++;
+            return;
+        }
+        flushFrame();
+        pendingFrame = frame;
+        pendingCount = 1;
+    }
+
+    /**
+     * 写入暂存的帧, 延时为合并的帧数之和
+     */
+    protected void flushFrame() {
+        if (pendingFrame == null) return;
+        int frameDelay = delay;
+        delay = Math.min(frameDelay * pendingCount, 0xffff);
+        try {
+            addFrame(pendingFrame);
+        } finally {
+            delay = frameDelay;
+            pendingFrame = null;
+            pendingCount = 0;
+        }
+    }
+
+    /**
+     * @param a TYPE_3BYTE_BGR 图像
+     * @param b TYPE_3BYTE_BGR 图像
+     */
+    protected static boolean isSameImage(BufferedImage a, BufferedImage b) {
+        if (a == b) return true;
+        if (a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight()) return false;
+        return Arrays.equals(
+                ((DataBufferByte) a.getRaster().getDataBuffer()).getData(),
+                ((DataBufferByte) b.getRaster().getDataBuffer()).getData()
+        );
+    }
+
+    /**
+     * 与首帧共用调色板 (全局颜色表) 的帧不再写入局部颜色表
+     */
+    protected boolean hasLocalPalette() {
+        return !firstFrame && colorTab != globalColorTab;
+    }
+
+    @Override
+    protected void writeGraphicCtrlExt() throws IOException {
+        if (currentFrame.transIndex < 0) {
+            super.writeGraphicCtrlExt();
+            return;
         }
+        out.write(0x21); // extension introducer
+        out.write(0xf9); // GCE label
+        out.write(4); // data block size
+        int disp = dispose >= 0 ? dispose & 7 : 1;
+        // packed fields: disposal method, transparent color flag
+        out.write(disp << 2 | 1);
+        writeShort(delay);
+        out.write(currentFrame.transIndex);
+        out.write(0); // block terminator
+    }
+
+    @Override
+    protected void writeImageDesc() throws IOException {
+        out.write(0x2c); // image separator
+        writeShort(currentFrame.x); // image position
+        writeShort(currentFrame.y);
+        writeShort(currentFrame.width); // image size
+        writeShort(currentFrame.height);
+        // packed fields
+        out.write(hasLocalPalette() ? 0x80 | palSize : 0);
+    }
+
+    /**
+     * 像素数据已在构建 FrameData 时于线程池中完成 LZW 压缩, 此处只写入
+     */
+    @Override
+    protected void writePixels() throws IOException {
+        out.write(currentFrame.imageData);
     }
 
     protected void analyzePixels(FrameData frame) {
@@ -51,7 +196,7 @@ public class FastAnimatedGifEncoder extends AnimatedGifEncoder {
         indexedPixels = frame.indexedPixels;
 
         pixels = null;
-        colorDepth = 8;
+        colorDepth = COLOR_DEPTH;
         palSize = 7;
         // get closest match to transparent color if specified
         if (transparent != null) {
@@ -63,33 +208,199 @@ public class FastAnimatedGifEncoder extends AnimatedGifEncoder {
         public byte[] pixels;
         public byte[] colorTab;
         public NeuQuant neuQuant;
+        public final GifPalette palette;
+        /**
+         * 图像区域 (与前一帧比较时为变化区域的外接矩形)
+         */
+        public final int x;
+        public final int y;
+        public final int width;
+        public final int height;
+        /**
+         * 透明色索引, -1 为不透明
+         */
+        public final int transIndex;
         byte[] indexedPixels;
+        /**
+         * LZW 压缩后的图像数据块
+         */
+        byte[] imageData;
         boolean[] usedEntry = new boolean[256];
 
+        /**
+         * 为该帧单独训练调色板
+         *
+         * @param image 非 TYPE_3BYTE_BGR 的图像会先被转换
+         */
         public FrameData(BufferedImage image, int quality) {
-            pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
-            neuQuant = new NeuQuant(pixels, pixels.length, Math.max(quality, 1));
-            colorTab = neuQuant.process();
-            // convert map from BGR to RGB
-            for (int i = 0; i < colorTab.length; i += 3) {
-                byte temp = colorTab[i];
-                colorTab[i] = colorTab[i + 2];
-                colorTab[i + 2] = temp;
-                usedEntry[i / 3] = false;
+            this(toBGRImage(image), null, null, ColorQuantizer.NEU_QUANT, quality);
+        }
+
+        /**
+         * 使用共用的调色板, 只进行像素映射
+         *
+         * @param image 非 TYPE_3BYTE_BGR 的图像会先被转换
+         */
+        public FrameData(BufferedImage image, GifPalette palette) {
+            this(toBGRImage(image), null, palette, null, 0);
+        }
+
+        /**
+         * @param image     TYPE_3BYTE_BGR 图像
+         * @param previous  输出顺序中的前一帧 (TYPE_3BYTE_BGR), 不为 null 时只编码变化区域
+         * @param palette   共用的调色板, 为 null 时由变化区域训练
+         * @param quantizer 训练调色板使用的量化器
+         */
+        public FrameData(
+                BufferedImage image, BufferedImage previous,
+                GifPalette palette, ColorQuantizer quantizer, int quality
+        ) {
+            byte[] src = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+            int imageWidth = image.getWidth();
+            int imageHeight = image.getHeight();
+            if (previous == null || previous.getWidth() != imageWidth || previous.getHeight() != imageHeight) {
+                x = 0;
+                y = 0;
+                width = imageWidth;
+                height = imageHeight;
+                pixels = src;
+                this.palette = palette != null ? palette : quantizer.quantize(pixels, quality);
+                neuQuant = this.palette.neuQuant;
+                colorTab = this.palette.colorTab;
+                indexedPixels = mapPixels(pixels, null);
+                transIndex = -1;
+                imageData = GifLZWEncoder.compress(indexedPixels, COLOR_DEPTH);
+                return;
             }
 
-            int nPix = pixels.length / 3;
-            indexedPixels = new byte[nPix];
+            byte[] prev = ((DataBufferByte) previous.getRaster().getDataBuffer()).getData();
+            int[] rect = diffBounds(src, prev, imageWidth, imageHeight);
+            x = rect[0];
+            y = rect[1];
+            width = rect[2];
+            height = rect[3];
+
+            // 裁剪变化区域, 并标记未变化的像素
+            int nPix = width * height;
+            pixels = new byte[nPix * 3];
+            boolean[] unchanged = new boolean[nPix];
+            int changedCount = 0;
+            int rowBytes = width * 3;
+            for (int row = 0; row < height; row++) {
+                int offset = ((y + row) * imageWidth + x) * 3;
+                System.arraycopy(src, offset, pixels, row * rowBytes, rowBytes);
+                for (int col = 0, k = offset; col < width; col++, k += 3) {
+                    if (src[k] == prev[k] && src[k + 1] == prev[k + 1] && src[k + 2] == prev[k + 2]) {
+                        unchanged[row * width + col] = true;
+                    } else {
+                        changedCount++;
+                    }
+                }
+            }
+
+            this.palette = palette != null ? palette : quantizer.quantize(pixels, quality);
+            neuQuant = this.palette.neuQuant;
+            colorTab = this.palette.colorTab;
 
+            indexedPixels = mapPixels(pixels, unchanged);
+            int trans = -1;
+            for (int i = 0; i < usedEntry.length; i++) {
+                if (!usedEntry[i]) {
+                    trans = i;
+                    break;
+                }
+            }
+            byte[] opaquePixels = indexedPixels;
+            if (changedCount < nPix) {
+                // 不透明版本: 完整映射变化区域
+                opaquePixels = indexedPixels.clone();
+                int k = 0;
+                for (int i = 0; i < nPix; i++, k += 3) {
+                    if (unchanged[i]) {
+                        opaquePixels[i] = (byte) this.palette.map(pixels[k] & 0xff, pixels[k + 1] & 0xff, pixels[k + 2] & 0xff);
+                    }
+                }
+            }
+            byte[] opaqueData = GifLZWEncoder.compress(opaquePixels, COLOR_DEPTH);
+            if (trans >= 0 && opaquePixels != indexedPixels) {
+                for (int i = 0; i < nPix; i++) {
+                    if (unchanged[i]) indexedPixels[i] = (byte) trans;
+                }
+                byte[] transData = GifLZWEncoder.compress(indexedPixels, COLOR_DEPTH);
+                // 透明像素打断了连续色块时, 不透明版本可能更小
+                if (transData.length < opaqueData.length) {
+                    transIndex = trans;
+                    imageData = transData;
+                    return;
+                }
+            }
+            indexedPixels = opaquePixels;
+            transIndex = -1;
+            imageData = opaqueData;
+        }
+
+        /**
+         * @param skip 跳过的像素, 可为 null
+         */
+        protected byte[] mapPixels(byte[] pixels, boolean[] skip) {
+            int nPix = pixels.length / 3;
+            byte[] indexed = new byte[nPix];
+            int lastColor = -1;
+            int lastIndex = 0;
             int k = 0;
-            for (int i = 0; i < nPix; i++) {
-                int index =
-                        neuQuant.map(pixels[k++] & 0xff,
-                                pixels[k++] & 0xff,
-                                pixels[k++] & 0xff);
-                usedEntry[index] = true;
-                indexedPixels[i] = (byte) index;
+            for (int i = 0; i < nPix; i++, k += 3) {
+                if (skip != null && skip[i]) continue;
+                int color = (pixels[k] & 0xff) | (pixels[k + 1] & 0xff) << 8 | (pixels[k + 2] & 0xff) << 16;
+                // 连续相同的像素直接沿用上一个结果
+                if (color != lastColor) {
+                    lastColor = color;
+                    lastIndex = palette.map(pixels[k] & 0xff, pixels[k + 1] & 0xff, pixels[k + 2] & 0xff);
+                    usedEntry[lastIndex] = true;
+                }
+                indexed[i] = (byte) lastIndex;
             }
+            return indexed;
         }
+
+        /**
+         * @return 两帧中不同像素的外接矩形 {x, y, width, height}, 两帧相同时为左上角 1x1 区域
+         */
+        protected static int[] diffBounds(byte[] a, byte[] b, int width, int height) {
+            int rowBytes = width * 3;
+            int top = 0;
+            while (top < height && Arrays.equals(
+                    a, top * rowBytes, (top + 1) * rowBytes,
+                    b, top * rowBytes, (top + 1) * rowBytes)) top++;
+            if (top == height) return new int[]{0, 0, 1, 1};
+            int bottom = height - 1;
+            while (bottom > top && Arrays.equals(
+                    a, bottom * rowBytes, (bottom + 1) * rowBytes,
+                    b, bottom * rowBytes, (bottom + 1) * rowBytes)) bottom--;
+
+            int left = width;
+            int right = -1;
+            for (int row = top; row <= bottom; row++) {
+                int start = row * rowBytes;
+                int first = Arrays.mismatch(a, start, start + rowBytes, b, start, start + rowBytes);
+                if (first < 0) continue;
+                left = Math.min(left, first / 3);
+                for (int k = start + rowBytes - 1; k >= start + first; k--) {
+                    if (a[k] != b[k]) {
+                        right = Math.max(right, (k - start) / 3);
+                        break;
+                    }
+                }
+            }
+            return new int[]{left, top, right - left + 1, bottom - top + 1};
+        }
+    }
+
+    public static BufferedImage toBGRImage(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_3BYTE_BGR) return image;
+        BufferedImage temp = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g2d = temp.createGraphics();
+        g2d.drawImage(image, 0, 0, null);
+        g2d.dispose();
+        return temp;
     }
 }
@@ -0,0 +1,99 @@
+package moe.dituon.petpet.share;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/**
+ * 有序帧流水线: 帧在线程池中并行构建, 按输出顺序依次交给写入方
+ * <br/>
+ * 第 N 帧在 0..N 帧全部就绪后立即写入, 同时处理中的帧数不超过 window, 以限制峰值内存
+ */
+public class FramePipeline {
+    public static final int DEFAULT_WINDOW_SIZE = BasePetService.DEFAULT_THREAD_POOL_SIZE * 2;
+
+    /**
+     * @param pool     构建帧使用的线程池
+     * @param length   帧数
+     * @param reverse  倒序输出 (写入顺序为 length-1 .. 0)
+     * @param producer 构建帧, 参数为帧索引 (在线程池中调用)
+     * @param consumer 写入帧 (在调用线程中按顺序调用)
+     */
+    public static <T> void run(
+            ExecutorService pool, int length, boolean reverse,
+            IntFunction<T> producer, Consumer<T> consumer
+    ) throws InterruptedException {
+        run(pool, length, reverse, getWindowSize(pool), producer, consumer);
+    }
+
+    public static <T> void run(
+            ExecutorService pool, int length, boolean reverse, int window,
+            IntFunction<T> producer, Consumer<T> consumer
+    ) throws InterruptedException {
+        drain(length, reverse, window, fi -> pool.submit(() -> producer.apply(fi)), consumer);
+    }
+
+    /**
+     * 两级流水线: 帧先在线程池中合成, 再与输出顺序中的前一帧一同在线程池中编码
+     *
+     * @param producer 合成帧, 参数为帧索引 (在线程池中调用)
+     * @param encoder  编码帧, 参数为 (前一帧, 当前帧), 首帧的前一帧为 null (在线程池中调用)
+     * @param consumer 写入帧 (在调用线程中按顺序调用)
+     */
+    public static <S, T> void runPaired(
+            ExecutorService pool, int length, boolean reverse,
+            IntFunction<S> producer, BiFunction<S, S, T> encoder, Consumer<T> consumer
+    ) throws InterruptedException {
+        var previous = new AtomicReference<CompletableFuture<S>>();
+        drain(length, reverse, getWindowSize(pool), fi -> {
+            CompletableFuture<S> cur = CompletableFuture.supplyAsync(() -> producer.apply(fi), pool);
+            CompletableFuture<S> prev = previous.getAndSet(cur);
+            return prev == null
+                    ? cur.thenApplyAsync(image -> encoder.apply(null, image), pool)
+                    : prev.thenCombineAsync(cur, encoder, pool);
+        }, consumer);
+    }
+
+    /**
+     * 按输出顺序提交帧, 同时处理中的帧数不超过 window
+     */
+    protected static <T> void drain(
+            int length, boolean reverse, int window,
+            IntFunction<Future<T>> submitter, Consumer<T> consumer
+    ) throws InterruptedException {
+        window = Math.max(window, 1);
+        ArrayDeque<Future<T>> queue = new ArrayDeque<>(Math.min(window, length));
+        int submitted = 0;
+        try {
+            while (submitted < length || !queue.isEmpty()) {
+                while (submitted < length && queue.size() < window) {
+                    int fi = reverse ? length - 1 - submitted : submitted;
+                    queue.add(submitter.apply(fi));
+                    submitted++;
+                }
+                consumer.accept(queue.poll().get());
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            for (Future<T> future : queue) future.cancel(true);
+        }
+    }
+
+    public static int getWindowSize(ExecutorService pool) {
+        if (pool instanceof RenderScheduler) {
+            return ((RenderScheduler) pool).getWindowSize();
+        }
+        if (pool instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor) pool).getMaximumPoolSize() * 2;
+        }
+        return DEFAULT_WINDOW_SIZE;
+    }
+}
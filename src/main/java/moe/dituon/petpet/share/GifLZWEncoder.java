@@ -0,0 +1,206 @@
+package moe.dituon.petpet.share;
+
+import java.util.Arrays;
+
+/**
+ * GIF 图像数据的 LZW 压缩 (改写自 com.madgag.gif.fmsware.LZWEncoder, 输出字节一致)
+ * <br/>
+ * 每帧可独立压缩, 哈希表与输出缓冲区按线程复用, 供线程池中的 FrameData 预压缩使用
+ */
+public class GifLZWEncoder {
+    private static final ThreadLocal<GifLZWEncoder> threadLocal = ThreadLocal.withInitial(GifLZWEncoder::new);
+
+    private static final int RETAINED_BUFFER_SIZE = 1 << 22;
+    private static final int EOF = -1;
+    private static final int BITS = 12;
+    private static final int HSIZE = 5003;
+    private static final int MAX_MAX_CODE = 1 << BITS;
+    private static final int[] MASKS = {
+            0x0000, 0x0001, 0x0003, 0x0007, 0x000F, 0x001F, 0x003F, 0x007F, 0x00FF,
+            0x01FF, 0x03FF, 0x07FF, 0x0FFF, 0x1FFF, 0x3FFF, 0x7FFF, 0xFFFF
+    };
+
+    private final int[] hashTable = new int[HSIZE];
+    private final int[] codeTable = new int[HSIZE];
+    private final byte[] packet = new byte[256];
+    private byte[] buffer = new byte[8192];
+    private int bufferLength;
+
+    private byte[] pixels;
+    private int remaining;
+    private int curPixel;
+
+    private int nBits;
+    private int maxCode;
+    private int freeEntry;
+    private boolean clearFlag;
+    private int initBits;
+    private int clearCode;
+    private int eofCode;
+    private int curAccum;
+    private int curBits;
+    private int packetLength;
+
+    protected GifLZWEncoder() {
+    }
+
+    /**
+     * 在当前线程压缩索引像素
+     *
+     * @param indexedPixels 调色板索引
+     * @param colorDepth    色深 (位)
+     * @return 完整的图像数据块 (最小码长 + 数据子块 + 块终止符)
+     */
+    public static byte[] compress(byte[] indexedPixels, int colorDepth) {
+        return threadLocal.get().encode(indexedPixels, colorDepth);
+    }
+
+    protected byte[] encode(byte[] indexedPixels, int colorDepth) {
+        int initCodeSize = Math.max(2, colorDepth);
+        pixels = indexedPixels;
+        remaining = indexedPixels.length;
+        curPixel = 0;
+        bufferLength = 0;
+
+        write(initCodeSize);
+        compress(initCodeSize + 1);
+        write(0);
+
+        pixels = null;
+        byte[] result = Arrays.copyOf(buffer, bufferLength);
+        if (buffer.length > RETAINED_BUFFER_SIZE) buffer = new byte[8192];
+        return result;
+    }
+
+    private void compress(int initBits) {
+        this.initBits = initBits;
+        clearFlag = false;
+        nBits = initBits;
+        maxCode = maxCode(nBits);
+        clearCode = 1 << (initBits - 1);
+        eofCode = clearCode + 1;
+        freeEntry = clearCode + 2;
+        packetLength = 0;
+        curAccum = 0;
+        curBits = 0;
+
+        int ent = nextPixel();
+        int hShift = 0;
+        for (int fCode = HSIZE; fCode < 65536; fCode *= 2) ++hShift;
+        hShift = 8 - hShift;
+
+        clearHash();
+        output(clearCode);
+
+        int c;
+        outer:
+        while ((c = nextPixel()) != EOF) {
+            int fCode = (c << BITS) + ent;
+            int i = (c << hShift) ^ ent;
+            if (hashTable[i] == fCode) {
+                ent = codeTable[i];
+                continue;
+            } else if (hashTable[i] >= 0) {
+                int disp = i == 0 ? 1 : HSIZE - i;
+                do {
+                    if ((i -= disp) < 0) i += HSIZE;
+                    if (hashTable[i] == fCode) {
+                        ent = codeTable[i];
+                        continue outer;
+                    }
+                } while (hashTable[i] >= 0);
+            }
+            output(ent);
+            ent = c;
+            if (freeEntry < MAX_MAX_CODE) {
+                codeTable[i] = freeEntry++;
+                hashTable[i] = fCode;
+            } else {
+                clearBlock();
+            }
+        }
+        output(ent);
+        output(eofCode);
+    }
+
+    private void clearBlock() {
+        clearHash();
+        freeEntry = clearCode + 2;
+        clearFlag = true;
+        output(clearCode);
+    }
+
+    private void clearHash() {
+        Arrays.fill(hashTable, -1);
+    }
+
+    private static int maxCode(int nBits) {
+        return (1 << nBits) - 1;
+    }
+
+    private int nextPixel() {
+        if (remaining == 0) return EOF;
+        --remaining;
+        return pixels[curPixel++] & 0xff;
+    }
+
+    private void output(int code) {
+        curAccum &= MASKS[curBits];
+        if (curBits > 0) {
+            curAccum |= (code << curBits);
+        } else {
+            curAccum = code;
+        }
+        curBits += nBits;
+
+        while (curBits >= 8) {
+            charOut((byte) (curAccum & 0xff));
+            curAccum >>= 8;
+            curBits -= 8;
+        }
+
+        if (freeEntry > maxCode || clearFlag) {
+            if (clearFlag) {
+                maxCode = maxCode(nBits = initBits);
+                clearFlag = false;
+            } else {
+                ++nBits;
+                maxCode = nBits == BITS ? MAX_MAX_CODE : maxCode(nBits);
+            }
+        }
+
+        if (code == eofCode) {
+            while (curBits > 0) {
+                charOut((byte) (curAccum & 0xff));
+                curAccum >>= 8;
+                curBits -= 8;
+            }
+            flushPacket();
+        }
+    }
+
+    private void charOut(byte c) {
+        packet[packetLength++] = c;
+        if (packetLength >= 254) flushPacket();
+    }
+
+    private void flushPacket() {
+        if (packetLength <= 0) return;
+        write(packetLength);
+        ensureCapacity(packetLength);
+        System.arraycopy(packet, 0, buffer, bufferLength, packetLength);
+        bufferLength += packetLength;
+        packetLength = 0;
+    }
+
+    private void write(int b) {
+        ensureCapacity(1);
+        buffer[bufferLength++] = (byte) b;
+    }
+
+    private void ensureCapacity(int length) {
+        if (bufferLength + length > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, bufferLength + length));
+        }
+    }
+}
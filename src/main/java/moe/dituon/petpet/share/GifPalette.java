@@ -0,0 +1,242 @@
+package moe.dituon.petpet.share;
+
+import com.madgag.gif.fmsware.NeuQuant;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * GIF 调色板 (256色), 可被多帧共用
+ */
+public class GifPalette {
+    public static final int PALETTE_SIZE = 256;
+    /**
+     * 预留给头像等动态元素的颜色立方体 (每通道级数)
+     */
+    public static final int RESERVED_LEVELS = 4;
+    public static final int RESERVED_SIZE = RESERVED_LEVELS * RESERVED_LEVELS * RESERVED_LEVELS;
+
+    /**
+     * RGB 顺序的颜色表
+     */
+    public final byte[] colorTab;
+    protected final NeuQuant neuQuant;
+
+    /**
+     * 按绿色分量排序的颜色索引, 用于非 NeuQuant 调色板的最近颜色查找
+     */
+    protected int[] sortedIndex;
+    protected int[] sortedGreen;
+    protected int[] greenStart;
+
+    private static final int CACHE_VALID = 1 << 9;
+    /**
+     * 颜色查找表, 以各通道高 5 位为索引, 低 3 位作为标签与颜色索引一同存储, 命中时结果与完整查找一致
+     * <br/>
+     * 单个元素的读写是原子的, 共用调色板的多个线程可以同时填充
+     */
+    private final int[] cache = new int[1 << 15];
+
+    protected GifPalette(NeuQuant neuQuant) {
+        this.neuQuant = neuQuant;
+        this.colorTab = neuQuant.process();
+        // convert map from BGR to RGB
+        for (int i = 0; i < colorTab.length; i += 3) {
+            byte temp = colorTab[i];
+            colorTab[i] = colorTab[i + 2];
+            colorTab[i + 2] = temp;
+        }
+    }
+
+    /**
+     * @param colorTab RGB 颜色表, 不足 256 色时以黑色补齐
+     */
+    protected GifPalette(byte[] colorTab, int colorCount) {
+        this.neuQuant = null;
+        this.colorTab = Arrays.copyOf(colorTab, PALETTE_SIZE * 3);
+        buildIndex(colorCount);
+    }
+
+    /**
+     * @param pixels  BGR 像素
+     * @param quality 采样间隔, 越小质量越好
+     */
+    public static GifPalette learn(byte[] pixels, int quality) {
+        return new GifPalette(new NeuQuant(pixels, pixels.length, Math.max(quality, 1)));
+    }
+
+    /**
+     * 从全部帧中交错采样像素, 训练一个全局调色板
+     * <br/>
+     * 采样总量约等于一帧, 训练耗时与单帧相同
+     *
+     * @param images  TYPE_3BYTE_BGR 图像
+     * @param quality 采样间隔, 越小质量越好
+     */
+    public static GifPalette learn(List<BufferedImage> images, int quality) {
+        return learn(images, quality, ColorQuantizer.NEU_QUANT);
+    }
+
+    /**
+     * @see #learn(List, int)
+     */
+    public static GifPalette learn(List<BufferedImage> images, int quality, ColorQuantizer quantizer) {
+        if (images.size() == 1) return quantizer.quantize(getPixels(images.get(0)), quality);
+        int step = images.size();
+        int total = 0;
+        for (BufferedImage image : images) {
+            total += (getPixels(image).length / 3 + step - 1) / step;
+        }
+        byte[] samples = new byte[total * 3];
+        int k = 0;
+        for (int f = 0; f < images.size(); f++) {
+            byte[] pixels = getPixels(images.get(f));
+            int nPix = pixels.length / 3;
+            // 每帧使用不同的起始偏移, 避免与图像宽度对齐
+            for (int i = f % step; i < nPix; i += step) {
+                int p = i * 3;
+                samples[k++] = pixels[p];
+                samples[k++] = pixels[p + 1];
+                samples[k++] = pixels[p + 2];
+            }
+        }
+        return quantizer.quantize(k == samples.length ? samples : Arrays.copyOf(samples, k), quality);
+    }
+
+    /**
+     * 从模板背景学习调色板, 并预留 {@link #RESERVED_SIZE} 个均匀分布的颜色给头像等动态元素
+     * <br/>
+     * 结果与请求无关, 可按模板缓存复用, 之后每次渲染只需进行像素映射
+     *
+     * @param backgrounds 背景图像 (任意类型)
+     * @param quality     采样间隔, 越小质量越好
+     */
+    public static GifPalette learnWithReserved(BufferedImage[] backgrounds, int quality) {
+        return learnWithReserved(backgrounds, quality, ColorQuantizer.NEU_QUANT);
+    }
+
+    /**
+     * @see #learnWithReserved(BufferedImage[], int)
+     */
+    public static GifPalette learnWithReserved(BufferedImage[] backgrounds, int quality, ColorQuantizer quantizer) {
+        var images = new ArrayList<BufferedImage>(backgrounds.length);
+        for (BufferedImage bg : backgrounds) images.add(FastAnimatedGifEncoder.toBGRImage(bg));
+        GifPalette learned = learn(images, quality, quantizer);
+
+        // 统计背景像素命中次数, 保留最常用的颜色
+        int[] counts = new int[PALETTE_SIZE];
+        int step = Math.max(quality, 1);
+        for (BufferedImage image : images) {
+            byte[] pixels = getPixels(image);
+            for (int p = 0; p < pixels.length; p += 3 * step) {
+                counts[learned.map(pixels[p] & 0xff, pixels[p + 1] & 0xff, pixels[p + 2] & 0xff)]++;
+            }
+        }
+        Integer[] order = new Integer[PALETTE_SIZE];
+        for (int i = 0; i < PALETTE_SIZE; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> counts[b] - counts[a]);
+
+        byte[] tab = new byte[PALETTE_SIZE * 3];
+        int n = 0;
+        for (int i = 0; i < PALETTE_SIZE - RESERVED_SIZE && counts[order[i]] > 0; i++) {
+            System.arraycopy(learned.colorTab, order[i] * 3, tab, n++ * 3, 3);
+        }
+        int maxLevel = RESERVED_LEVELS - 1;
+        for (int r = 0; r < RESERVED_LEVELS; r++) {
+            for (int g = 0; g < RESERVED_LEVELS; g++) {
+                for (int b = 0; b < RESERVED_LEVELS; b++) {
+                    tab[n * 3] = (byte) (r * 255 / maxLevel);
+                    tab[n * 3 + 1] = (byte) (g * 255 / maxLevel);
+                    tab[n * 3 + 2] = (byte) (b * 255 / maxLevel);
+                    n++;
+                }
+            }
+        }
+        return new GifPalette(tab, n);
+    }
+
+    /**
+     * @return 最接近的颜色索引
+     */
+    public int map(int b, int g, int r) {
+        int key = (r >> 3) << 10 | (g >> 3) << 5 | (b >> 3);
+        int tag = CACHE_VALID | (r & 7) << 6 | (g & 7) << 3 | (b & 7);
+        int entry = cache[key];
+        if (entry >>> 8 == tag) return entry & 0xff;
+        int index = neuQuant != null ? neuQuant.map(b, g, r) : search(b, g, r);
+        cache[key] = tag << 8 | index;
+        return index;
+    }
+
+    protected void buildIndex(int colorCount) {
+        Integer[] order = new Integer[colorCount];
+        for (int i = 0; i < colorCount; i++) order[i] = i;
+        Arrays.sort(order, Comparator.comparingInt(i -> colorTab[i * 3 + 1] & 0xff));
+        sortedIndex = new int[colorCount];
+        sortedGreen = new int[colorCount];
+        for (int i = 0; i < colorCount; i++) {
+            sortedIndex[i] = order[i];
+            sortedGreen[i] = colorTab[order[i] * 3 + 1] & 0xff;
+        }
+        greenStart = new int[256];
+        int k = 0;
+        for (int g = 0; g < 256; g++) {
+            while (k < colorCount && sortedGreen[k] < g) k++;
+            greenStart[g] = k;
+        }
+    }
+
+    /**
+     * 以绿色分量为起点向两侧扩展查找, 绿色差的平方不小于当前最小距离时停止
+     */
+    protected int search(int b, int g, int r) {
+        int best = 0;
+        int bestDist = Integer.MAX_VALUE;
+        int up = greenStart[g];
+        int down = up - 1;
+        while (up < sortedIndex.length || down >= 0) {
+            if (up < sortedIndex.length) {
+                int dg = sortedGreen[up] - g;
+                if (dg * dg >= bestDist) {
+                    up = sortedIndex.length;
+                } else {
+                    int i = sortedIndex[up++];
+                    int dist = distance(i, b, g, r);
+                    if (dist < bestDist) {
+                        bestDist = dist;
+                        best = i;
+                    }
+                }
+            }
+            if (down >= 0) {
+                int dg = g - sortedGreen[down];
+                if (dg * dg >= bestDist) {
+                    down = -1;
+                } else {
+                    int i = sortedIndex[down--];
+                    int dist = distance(i, b, g, r);
+                    if (dist < bestDist) {
+                        bestDist = dist;
+                        best = i;
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    private int distance(int i, int b, int g, int r) {
+        int dr = (colorTab[i * 3] & 0xff) - r;
+        int dg = (colorTab[i * 3 + 1] & 0xff) - g;
+        int db = (colorTab[i * 3 + 2] & 0xff) - b;
+        return dr * dr + dg * dg + db * db;
+    }
+
+    protected static byte[] getPixels(BufferedImage image) {
+        return ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+    }
+}
@@ -0,0 +1,210 @@
+package moe.dituon.petpet.share;
+
+import moe.dituon.petpet.share.FastAnimatedGifEncoder.FrameData;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * GIF 体积预算, 编码少量采样帧估算输出体积, 超出上限时选择抽帧间隔, 颜色数与缩放比例
+ * <br/>
+ * 只有采样帧会被重复合成, 完整的 GIF 只合成一次
+ */
+public class GifSizeBudget {
+    public static final int SAMPLE_COUNT = 5;
+    /**
+     * 估算值乘以该系数后与上限比较, 为采样误差预留余量
+     */
+    public static final float SAFETY_FACTOR = 1.15F;
+    public static final float MIN_SCALE = 0.25F;
+    public static final int MAX_FRAME_STEP = 3;
+    /**
+     * 抽帧后至少保留的帧数
+     */
+    public static final int MIN_FRAME_LENGTH = 4;
+    public static final int REDUCED_PALETTE_SIZE = 128;
+    /**
+     * 以选定参数重新估算并修正缩放比例的次数
+     */
+    public static final int REFINE_TIMES = 2;
+
+    /**
+     * 逻辑屏幕描述符, 全局颜色表, 循环扩展与结束符
+     */
+    protected static final int HEADER_BYTES = 13 + 768 + 19 + 1;
+    /**
+     * 图形控制扩展与图像描述符
+     */
+    protected static final int FRAME_HEADER_BYTES = 8 + 10;
+    protected static final int LOCAL_PALETTE_BYTES = 768;
+
+    /**
+     * 缩放后的 gifMaxSize, 为 null 时不缩放
+     */
+    public final List<Integer> maxSize;
+    /**
+     * 每 frameStep 帧保留一帧
+     */
+    public final int frameStep;
+    public final int paletteSize;
+    /**
+     * 按以上参数估算的输出字节数
+     */
+    public final long estimatedBytes;
+
+    protected GifSizeBudget(List<Integer> maxSize, int frameStep, int paletteSize, long estimatedBytes) {
+        this.maxSize = maxSize;
+        this.frameStep = frameStep;
+        this.paletteSize = paletteSize;
+        this.estimatedBytes = estimatedBytes;
+    }
+
+    public boolean isAdjusted() {
+        return maxSize != null || frameStep > 1 || paletteSize < GifPalette.PALETTE_SIZE;
+    }
+
+    /**
+     * @param length          帧数
+     * @param rendererFactory 由 gifMaxSize 创建帧合成函数
+     * @param params          maxBytes 需大于 0
+     */
+    public static GifSizeBudget plan(
+            int length, Function<List<Integer>, IntFunction<BufferedImage>> rendererFactory, GifRenderParams params
+    ) {
+        int maxBytes = params.getMaxBytes();
+        Estimate estimate = estimate(length, 1, rendererFactory.apply(params.getMaxSize()),
+                params, GifPalette.PALETTE_SIZE);
+        double ratio = estimate.bytes * SAFETY_FACTOR / maxBytes;
+        if (ratio <= 1) return new GifSizeBudget(null, 1, GifPalette.PALETTE_SIZE, estimate.bytes);
+
+        // 超出较多时抽帧, 体积近似与帧数成正比
+        int step = 1;
+        if (ratio > 2) {
+            step = (int) Math.min(Math.ceil(ratio / 2), Math.min(MAX_FRAME_STEP, length / MIN_FRAME_LENGTH));
+            step = Math.max(step, 1);
+            ratio = ratio * frameLength(length, step) / length;
+        }
+        // 模板预计算的调色板不能减少颜色
+        int paletteSize = ratio > 1 && params.getPalette() == null
+                ? REDUCED_PALETTE_SIZE : GifPalette.PALETTE_SIZE;
+        // 体积近似与像素数成正比, 颜色减少的收益由重新估算得出
+        double scale = ratio > 1 ? Math.max(MIN_SCALE, Math.sqrt(1 / ratio)) : 1;
+
+        int width = estimate.width;
+        int height = estimate.height;
+        for (int i = 0; ; i++) {
+            List<Integer> maxSize = scale < 1 ? scaledMaxSize(width, height, scale) : null;
+            estimate = estimate(length, step,
+                    rendererFactory.apply(maxSize != null ? maxSize : params.getMaxSize()), params, paletteSize);
+            double over = estimate.bytes * SAFETY_FACTOR / maxBytes;
+            if (over <= 1 || scale <= MIN_SCALE || i >= REFINE_TIMES) {
+                return new GifSizeBudget(maxSize, step, paletteSize, estimate.bytes);
+            }
+            scale = Math.max(MIN_SCALE, scale * Math.sqrt(1 / over));
+        }
+    }
+
+    /**
+     * @return 抽帧后的帧数
+     */
+    public static int frameLength(int length, int step) {
+        return (length + step - 1) / step;
+    }
+
+    protected static List<Integer> scaledMaxSize(int width, int height, double scale) {
+        return List.of(
+                Math.max(1, (int) Math.round(width * scale)),
+                Math.max(1, (int) Math.round(height * scale)),
+                0 // 不限帧数, 总是缩放
+        );
+    }
+
+    /**
+     * 在线程池中合成并编码采样帧, 按帧数外推整个 GIF 的体积
+     * <br/>
+     * 帧差分时每个采样为相邻的两帧, 以差分后的大小估算
+     */
+    protected static Estimate estimate(
+            int length, int step, IntFunction<BufferedImage> renderer, GifRenderParams params, int paletteSize
+    ) {
+        int frameLength = frameLength(length, step);
+        int sampleCount = Math.min(SAMPLE_COUNT, frameLength);
+        boolean frameDiff = params.getFrameDiff() && frameLength > 1;
+        int[] indexes = new int[frameDiff ? sampleCount * 2 : sampleCount];
+        // 均匀采样, 包含首帧与末帧
+        for (int s = 0; s < sampleCount; s++) {
+            int fi = sampleCount > 1 ? s * (frameLength - 1) / (sampleCount - 1) : 0;
+            if (frameDiff) {
+                fi = Math.min(fi, frameLength - 2);
+                indexes[s * 2] = fi * step;
+                indexes[s * 2 + 1] = (fi + 1) * step;
+            } else {
+                indexes[s] = fi * step;
+            }
+        }
+        List<BufferedImage> images = ImageSynthesis.execImageList(
+                indexes.length, i -> FastAnimatedGifEncoder.toBGRImage(renderer.apply(indexes[i]))
+        );
+
+        int quality = params.getQuality();
+        ColorQuantizer quantizer = ColorQuantizer.of(params.getQuantizer(), paletteSize);
+        GifPalette palette = params.getPalette();
+        if (palette == null && (params.getEncoder() == Encoder.GLOBAL_PALETTE
+                || params.getEncoder() == Encoder.TEMPLATE_PALETTE)) {
+            palette = GifPalette.learn(images, quality, quantizer);
+        }
+
+        long first = new FrameData(images.get(0), null, palette, quantizer, quality).imageData.length;
+        // 采样帧在输出中的位置与编码大小, 其余帧按相邻采样线性插值
+        int[] positions = new int[sampleCount];
+        long[] sizes = new long[sampleCount];
+        for (int s = 0; s < sampleCount; s++) {
+            if (frameDiff) {
+                positions[s] = indexes[s * 2 + 1] / step;
+                sizes[s] = new FrameData(images.get(s * 2 + 1), images.get(s * 2),
+                        palette, quantizer, quality).imageData.length;
+            } else {
+                positions[s] = indexes[s] / step;
+                sizes[s] = s == 0 ? first : new FrameData(images.get(s), null,
+                        palette, quantizer, quality).imageData.length;
+            }
+        }
+        long frameHeader = FRAME_HEADER_BYTES + (palette == null ? LOCAL_PALETTE_BYTES : 0);
+        long bytes = HEADER_BYTES + first + FRAME_HEADER_BYTES
+                + interpolate(positions, sizes, 1, frameLength) + (frameLength - 1) * frameHeader;
+        return new Estimate(bytes, images.get(0).getWidth(), images.get(0).getHeight());
+    }
+
+    /**
+     * @param positions 递增的采样位置
+     * @return [from, to) 区间内各帧插值大小之和
+     */
+    protected static long interpolate(int[] positions, long[] sizes, int from, int to) {
+        long sum = 0;
+        int j = 0;
+        for (int f = from; f < to; f++) {
+            while (j < positions.length - 1 && positions[j + 1] <= f) j++;
+            if (f <= positions[j] || j == positions.length - 1) {
+                sum += sizes[j];
+            } else {
+                int p0 = positions[j], p1 = positions[j + 1];
+                sum += sizes[j] + (sizes[j + 1] - sizes[j]) * (f - p0) / (p1 - p0);
+            }
+        }
+        return sum;
+    }
+
+    protected static class Estimate {
+        final long bytes;
+        final int width;
+        final int height;
+
+        Estimate(long bytes, int width, int height) {
+            this.bytes = bytes;
+            this.width = width;
+            this.height = height;
+        }
+    }
+}
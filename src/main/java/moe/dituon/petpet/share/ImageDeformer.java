@@ -3,6 +3,10 @@ package moe.dituon.petpet.share;
 import java.awt.*;
 import java.awt.geom.Point2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
 
 // TODO 支持图片变形
 // 应该用3D库进行3D运算...伪3D效率比较低... 欢迎Pr!
@@ -17,56 +21,235 @@ public class ImageDeformer {
         return Math.max(Math.max(v1, v2), Math.max(v3, v4));
     }
 
+    protected static final DeformRemapCache remapCache = new DeformRemapCache(DeformRemapCache.DEFAULT_MAX_BYTES);
+
     public static BufferedImage computeImage(BufferedImage image, Point2D[] point) {
+        return computeImage(image, point, false);
+    }
+
+    /**
+     * 按扫描线光栅化目标四边形, 每行只计算一次行相关的反向变换项, 直接读写像素数组
+     * <br/>
+     * 最近像素采样时映射表只与四角坐标和头像尺寸有关, 由 remapCache 缓存
+     *
+     * @param point    变形后的四角坐标 (Point2D[4]{左上角, 左下角, 右下角, 右上角})
+     * @param bilinear 双线性插值采样, 否则取最近的像素
+     */
+    public static BufferedImage computeImage(BufferedImage image, Point2D[] point, boolean bilinear) {
         int w = image.getWidth();
         int h = image.getHeight();
+        if (!bilinear) {
+            DeformRemapCache.Remap remap = remapCache.get(point, w, h, () -> buildRemap(point, w, h));
+            BufferedImage result = new BufferedImage(remap.width, remap.height, BufferedImage.TYPE_INT_ARGB);
+            remap.apply(getPixels(image), ((DataBufferInt) result.getRaster().getDataBuffer()).getData());
+            return result;
+        }
 
-        Point2D ip0 = new Point2D.Double(0, 0);
-        Point2D ip1 = new Point2D.Double(0, h);
-        Point2D ip2 = new Point2D.Double(w, h);
-        Point2D ip3 = new Point2D.Double(w, 0);
+        Projection projection = new Projection(point, w, h);
+        BufferedImage result = new BufferedImage(
+                projection.resultWidth, projection.resultHeight, BufferedImage.TYPE_INT_ARGB);
+        int[] src = getPixels(image);
+        int[] dst = ((DataBufferInt) result.getRaster().getDataBuffer()).getData();
+        Matrix3D m = projection.deformedToOrigin;
+        projection.scan((y, from, to) -> {
+            double rowX = m.m01 * y;
+            double rowY = m.m11 * y;
+            double rowZ = m.m21 * y;
+            int offset = y * projection.resultWidth;
+            for (int x = from; x < to; x++) {
+                double tx = m.m00 * x + rowX + m.m02;
+                double ty = m.m10 * x + rowY + m.m12;
+                double tz = m.m20 * x + rowZ + m.m22;
+                dst[offset + x] = sampleBilinear(src, w, h, tx / tz, ty / tz);
+            }
+        });
+        return result;
+    }
 
-        Matrix3D originToDeformed = computeProjectionMatrix(
-                new Point2D[]{point[0], point[1], point[2], point[3]},
-                new Point2D[]{ip0, ip1, ip2, ip3}
+    /**
+     * 构建最近像素采样的映射表
+     */
+    protected static DeformRemapCache.Remap buildRemap(Point2D[] point, int w, int h) {
+        Projection projection = new Projection(point, w, h);
+        int[][] spans = {new int[16]};
+        int[] sources = new int[projection.resultWidth * projection.resultHeight];
+        int[] count = {0, 0}; // 区间数组长度, 源像素个数
+        Matrix3D m = projection.deformedToOrigin;
+        projection.scan((y, from, to) -> {
+            if (count[0] + 2 > spans[0].length) spans[0] = Arrays.copyOf(spans[0], spans[0].length * 2);
+            int offset = y * projection.resultWidth;
+            spans[0][count[0]++] = offset + from;
+            spans[0][count[0]++] = offset + to;
+            // 行内不变的部分, 求值顺序与逐点变换一致
+            double rowX = m.m01 * y;
+            double rowY = m.m11 * y;
+            double rowZ = m.m21 * y;
+            for (int x = from; x < to; x++) {
+                double tx = m.m00 * x + rowX + m.m02;
+                double ty = m.m10 * x + rowY + m.m12;
+                double tz = m.m20 * x + rowZ + m.m22;
+                sources[count[1]++] = nearestIndex(w, h, tx / tz, ty / tz);
+            }
+        });
+        return new DeformRemapCache.Remap(
+                projection.resultWidth, projection.resultHeight,
+                Arrays.copyOf(spans[0], count[0]), Arrays.copyOf(sources, count[1])
         );
-        Matrix3D deformedToOrigin = new Matrix3D(originToDeformed);
-        deformedToOrigin.invert();
-
-        Point2D deformedip0 = new Point2D.Double(0, 0);
-        Point2D deformedip1 = new Point2D.Double(0, h);
-        Point2D deformedip2 = new Point2D.Double(w, h);
-        Point2D deformedip3 = new Point2D.Double(w, 0);
-        originToDeformed.transform(deformedip0);
-        originToDeformed.transform(deformedip1);
-        originToDeformed.transform(deformedip2);
-        originToDeformed.transform(deformedip3);
-        Polygon deformedArea = new Polygon();
-        deformedArea.addPoint((int) deformedip0.getX(), (int) deformedip0.getY());
-        deformedArea.addPoint((int) deformedip1.getX(), (int) deformedip1.getY());
-        deformedArea.addPoint((int) deformedip2.getX(), (int) deformedip2.getY());
-        deformedArea.addPoint((int) deformedip3.getX(), (int) deformedip3.getY());
-
-        int deformedWidth = deformedArea.getBounds().width;
-        int deformedHeight = deformedArea.getBounds().getBounds().height;
-        BufferedImage result = new BufferedImage(
-                Math.max(deformedWidth, 1), Math.max(deformedHeight, 1), BufferedImage.TYPE_INT_ARGB);
-        for (int y = 0; y < deformedHeight; y++) {
-            for (int x = 0; x < deformedWidth; x++) {
-                if (deformedArea.contains(x, y)) {
-                    Point2D originPoint = new Point2D.Double(x, y);
-                    deformedToOrigin.transform(originPoint);
-                    int originX = Math.min((int) Math.round(originPoint.getX()), w - 1);
-                    int originY = Math.min((int) Math.round(originPoint.getY()), h - 1);
-                    int rgb = image.getRGB(Math.max(originX, 0), Math.max(originY, 0));
-                    result.setRGB(x, y, rgb);
+    }
+
+    public static DeformRemapCache getRemapCache() {
+        return remapCache;
+    }
+
+    @FunctionalInterface
+    private interface SpanConsumer {
+        /**
+         * @param y    行
+         * @param from 起始列 (含)
+         * @param to   结束列 (不含)
+         */
+        void accept(int y, int from, int to);
+    }
+
+    /**
+     * 目标四边形与反向变换矩阵
+     */
+    private static class Projection {
+        final Matrix3D deformedToOrigin;
+        final Polygon deformedArea;
+        final Rectangle bounds;
+        final int resultWidth;
+        final int resultHeight;
+
+        Projection(Point2D[] point, int w, int h) {
+            Point2D ip0 = new Point2D.Double(0, 0);
+            Point2D ip1 = new Point2D.Double(0, h);
+            Point2D ip2 = new Point2D.Double(w, h);
+            Point2D ip3 = new Point2D.Double(w, 0);
+
+            Matrix3D originToDeformed = computeProjectionMatrix(
+                    new Point2D[]{point[0], point[1], point[2], point[3]},
+                    new Point2D[]{ip0, ip1, ip2, ip3}
+            );
+            deformedToOrigin = new Matrix3D(originToDeformed);
+            deformedToOrigin.invert();
+
+            Point2D deformedip0 = new Point2D.Double(0, 0);
+            Point2D deformedip1 = new Point2D.Double(0, h);
+            Point2D deformedip2 = new Point2D.Double(w, h);
+            Point2D deformedip3 = new Point2D.Double(w, 0);
+            originToDeformed.transform(deformedip0);
+            originToDeformed.transform(deformedip1);
+            originToDeformed.transform(deformedip2);
+            originToDeformed.transform(deformedip3);
+            deformedArea = new Polygon();
+            deformedArea.addPoint((int) deformedip0.getX(), (int) deformedip0.getY());
+            deformedArea.addPoint((int) deformedip1.getX(), (int) deformedip1.getY());
+            deformedArea.addPoint((int) deformedip2.getX(), (int) deformedip2.getY());
+            deformedArea.addPoint((int) deformedip3.getX(), (int) deformedip3.getY());
+
+            bounds = deformedArea.getBounds();
+            resultWidth = Math.max(bounds.width, 1);
+            resultHeight = Math.max(bounds.height, 1);
+        }
+
+        /**
+         * 按行输出四边形内的像素区间, 与 Polygon.contains 的判定一致: 包围盒内且在奇数条边的左侧
+         */
+        void scan(SpanConsumer consumer) {
+            int minX = Math.max(bounds.x, 0);
+            int maxX = Math.min(bounds.x + bounds.width, bounds.width);
+            int minY = Math.max(bounds.y, 0);
+            int maxY = Math.min(bounds.y + bounds.height, bounds.height);
+            int[] crossings = new int[deformedArea.npoints];
+            for (int y = minY; y < maxY; y++) {
+                int n = edgeCrossings(deformedArea, y, crossings);
+                if (n == 0) continue;
+                Arrays.sort(crossings, 0, n);
+                for (int k = (n & 1) == 1 ? 0 : 1; k <= n; k += 2) {
+                    int from = Math.max(k == 0 ? minX : crossings[k - 1], minX);
+                    int to = Math.min(k == n ? maxX : crossings[k], maxX);
+                    if (from < to) consumer.accept(y, from, to);
                 }
             }
         }
+    }
+
+    /**
+     * 计算第 y 行上每条边的判定阈值, 整数 x 小于阈值时该边计入 Polygon.contains 的交点数
+     *
+     * @return 阈值个数
+     */
+    private static int edgeCrossings(Polygon polygon, int y, int[] crossings) {
+        int n = 0;
+        int lastx = polygon.xpoints[polygon.npoints - 1];
+        int lasty = polygon.ypoints[polygon.npoints - 1];
+        int curx, cury;
+        for (int i = 0; i < polygon.npoints; lastx = curx, lasty = cury, i++) {
+            curx = polygon.xpoints[i];
+            cury = polygon.ypoints[i];
+            if (cury == lasty) continue;
+            int px, py;
+            if (cury < lasty) {
+                if (y < cury || y >= lasty) continue;
+                px = curx;
+                py = cury;
+            } else {
+                if (y < lasty || y >= cury) continue;
+                px = lastx;
+                py = lasty;
+            }
+            double test2 = y - py;
+            double t = test2 / (lasty - cury) * (lastx - curx);
+            int leftx = Math.min(curx, lastx);
+            int rightx = Math.max(curx, lastx);
+            crossings[n++] = Math.max(leftx, Math.min(rightx, px + (int) Math.ceil(t)));
+        }
+        return n;
+    }
 
+    private static int nearestIndex(int w, int h, double x, double y) {
+        int originX = Math.min((int) Math.round(x), w - 1);
+        int originY = Math.min((int) Math.round(y), h - 1);
+        return Math.max(originY, 0) * w + Math.max(originX, 0);
+    }
+
+    private static int sampleBilinear(int[] src, int w, int h, double x, double y) {
+        x = Math.max(0, Math.min(x, w - 1));
+        y = Math.max(0, Math.min(y, h - 1));
+        int x0 = (int) x;
+        int y0 = (int) y;
+        int x1 = Math.min(x0 + 1, w - 1);
+        int y1 = Math.min(y0 + 1, h - 1);
+        double fx = x - x0;
+        double fy = y - y0;
+        int p00 = src[y0 * w + x0], p01 = src[y0 * w + x1];
+        int p10 = src[y1 * w + x0], p11 = src[y1 * w + x1];
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            double top = (p00 >>> shift & 0xFF) * (1 - fx) + (p01 >>> shift & 0xFF) * fx;
+            double bottom = (p10 >>> shift & 0xFF) * (1 - fx) + (p11 >>> shift & 0xFF) * fx;
+            result |= (int) Math.round(top * (1 - fy) + bottom * fy) << shift;
+        }
         return result;
     }
 
+    /**
+     * @return ARGB 像素数组, TYPE_INT_ARGB 时直接使用图像的 DataBuffer
+     */
+    private static int[] getPixels(BufferedImage image) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        WritableRaster raster = image.getRaster();
+        if (image.getType() == BufferedImage.TYPE_INT_ARGB
+                && raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+                && ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride() == w
+                && raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0) {
+            return ((DataBufferInt) raster.getDataBuffer()).getData();
+        }
+        return image.getRGB(0, 0, w, h, null, 0, w);
+    }
+
     private static Matrix3D computeProjectionMatrix(Point2D[] p0, Point2D[] p1) {
         Matrix3D m0 = computeProjectionMatrix(p0);
         Matrix3D m1 = computeProjectionMatrix(p1);
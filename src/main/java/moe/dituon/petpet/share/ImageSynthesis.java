@@ -1,19 +1,52 @@
 package moe.dituon.petpet.share;
 
 
+import net.coobird.thumbnailator.Thumbnails;
+
 import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Area;
+import java.awt.geom.Point2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.function.BiFunction;
+import java.util.function.Consumer;
 import java.util.function.Function;
 
 public class ImageSynthesis extends ImageSynthesisCore {
-    protected static ExecutorService threadPool = Executors.newFixedThreadPool(BasePetService.DEFAULT_THREAD_POOL_SIZE);
+    /**
+     * 单帧画布的像素数达到此值时按条带并行合成
+     */
+    public static final int BAND_PIXEL_THRESHOLD = 1024 * 1024;
+    public static final int MIN_BAND_HEIGHT = 64;
+    /**
+     * 源图像超过重采样尺寸的此倍数时, 滤镜在缩小后的图像上执行
+     */
+    public static final float PRE_RESAMPLE_FACTOR = 1.5F;
+    protected static final AvatarDerivativeCache derivativeCache =
+            new AvatarDerivativeCache(AvatarDerivativeCache.DEFAULT_MAX_BYTES);
+    /**
+     * 模板加载的背景帧, 在请求间共享; 只有这些背景的派生图像会被缓存, 每次请求生成的背景不缓存
+     */
+    protected static final Set<BufferedImage> sharedBackgrounds = Collections.newSetFromMap(new WeakHashMap<>());
+    /**
+     * 与白色底合成的共享背景, 按 (尺寸, 抗锯齿, 背景绘制状态) 索引, 背景图像不再使用时释放
+     */
+    protected static final WeakHashMap<BufferedImage, Map<List<Object>, BufferedImage>> opaqueBackgroundCache =
+            new WeakHashMap<>();
+    /**
+     * 按 gifMaxSize 缩小的共享背景, 按尺寸索引, 以高质量缩放生成一次后各帧直接复制, 背景图像不再使用时释放
+     */
+    protected static final WeakHashMap<BufferedImage, Map<List<Integer>, BufferedImage>> scaledBackgroundCache =
+            new WeakHashMap<>();
 
     protected static void g2dDrawAvatar(Graphics2D g2d, AvatarModel avatar, short index) {
         g2dDrawAvatar(g2d, avatar, index, 1.0F);
@@ -21,20 +54,36 @@ public class ImageSynthesis extends ImageSynthesisCore {
 
     protected static void g2dDrawAvatar(Graphics2D g2d, AvatarModel avatar,
                                         short index, float multiple) {
+        g2dDrawAvatar(g2d, null, avatar, index, multiple);
+    }
+
+    /**
+     * @param canvas 画布图像, 不为 null 时无旋转的缩放头像直接写入像素数组
+     */
+    protected static void g2dDrawAvatar(Graphics2D g2d, BufferedImage canvas, AvatarModel avatar,
+                                        short index, float multiple) {
+        prepareAvatar(canvas, avatar, index, multiple).accept(g2d);
+    }
+
+    /**
+     * 预先完成头像与绘制区域无关的处理 (裁切, 变形), 返回的绘制操作可在各条带中重复执行
+     */
+    protected static Consumer<Graphics2D> prepareAvatar(BufferedImage canvas, AvatarModel avatar,
+                                                        short index, float multiple) {
         switch (avatar.getPosType()) {
             case ZOOM:
-                g2dDrawZoomAvatar(
-                        g2d, avatar.getFrame(index), avatar.getPos(index),
+                return prepareZoomAvatar(
+                        canvas, avatar.getFrame(index), avatar.getPos(index),
                         avatar.getAngle(index),
                         avatar.getTransformOrigin() == TransformOrigin.CENTER,
                         multiple, avatar.getZoomType(), avatar.getOpacity()
                 );
-                break;
             case DEFORM:
                 AvatarModel.DeformData deformData = avatar.getDeformData();
-                g2dDrawDeformAvatar(g2d, avatar.getFrame(index),
+                return prepareDeformAvatar(avatar.getFrame(index),
                         deformData.getDeformPos(index), deformData.getAnchor(index));
-                break;
+            default:
+                return g2d -> {};
         }
     }
 
@@ -65,51 +114,99 @@ public class ImageSynthesis extends ImageSynthesisCore {
     public static BufferedImage synthesisImage
             (BufferedImage sticker, List<AvatarModel> avatarList, List<TextModel> textList,
              boolean antialias, boolean transparent, short index, List<Integer> maxSize) {
-        int stickerWidth = sticker.getWidth();
-        int stickerHeight = sticker.getHeight();
+        float multiple = getMultiple(sticker, avatarList, maxSize);
+        int stickerWidth = (int) (sticker.getWidth() * multiple);
+        int stickerHeight = (int) (sticker.getHeight() * multiple);
 
-        float multiple = 1.0F;
-        if (maxSize != null && !maxSize.isEmpty()) {
-            boolean zoom = false;
-            if (maxSize.get(2) != null) {
-                for (AvatarModel avatar : avatarList) {
-                    if (avatar.getImageList().size() >= maxSize.get(2)) {
-                        zoom = true;
-                        break;
-                    }
-                }
-            }
+        BufferedImage output = new BufferedImage(stickerWidth, stickerHeight, BufferedImage.TYPE_4BYTE_ABGR);
+        if (transparent) {
+            Graphics2D g2d = output.createGraphics();
+            output = g2d.getDeviceConfiguration().createCompatibleImage(
+                    stickerWidth, stickerHeight, Transparency.TRANSLUCENT);
+            g2d.dispose();
+        }
 
-            if (zoom) {
-                if (stickerWidth > maxSize.get(0))
-                    multiple = (float) maxSize.get(0) / sticker.getWidth();
-                if (stickerHeight > maxSize.get(1))
-                    multiple = Math.min(multiple, (float) maxSize.get(1) / sticker.getHeight());
-                stickerWidth = (int) (stickerWidth * multiple);
-                stickerHeight = (int) (stickerHeight * multiple);
+        // 按照图层分类
+        List<AvatarModel> topAvatars = new ArrayList<>(4);
+        List<AvatarModel> bottomAvatars = new ArrayList<>(4);
+        for (AvatarModel avatar : avatarList) {
+            if (avatar.isOnTop()) {
+                topAvatars.add(avatar);
+            } else {
+                bottomAvatars.add(avatar);
             }
         }
 
-        BufferedImage output = new BufferedImage(stickerWidth, stickerHeight, BufferedImage.TYPE_4BYTE_ABGR);
-        Graphics2D g2d = output.createGraphics();
-
-        if (antialias) { //抗锯齿
-            g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        // 各图层只处理一次, 条带中只执行裁剪后的绘制
+        BufferedImage canvas = output;
+        List<Consumer<Graphics2D>> layers = new ArrayList<>();
+        for (AvatarModel avatar : bottomAvatars) {
+            layers.add(prepareAvatar(canvas, avatar, index, multiple));
+        }
+        layers.add(g2d -> g2dDrawBackground(g2d, sticker, stickerWidth, stickerHeight));
+        for (AvatarModel avatar : topAvatars) {
+            layers.add(prepareAvatar(canvas, avatar, index, multiple));
+        }
+        if (textList != null) {
+            for (TextModel text : textList) {
+                layers.add(text.prepareG2d(stickerWidth, stickerHeight));
+            }
         }
 
-        // 背景
-        if (transparent) {
-            output = g2d.getDeviceConfiguration().createCompatibleImage(
-                    stickerWidth, stickerHeight, Transparency.TRANSLUCENT);
+        execBands(stickerWidth, stickerHeight, band -> {
+            Graphics2D g2d = canvas.createGraphics();
+            g2d.clip(band);
+            // 背景
+            if (!transparent) {
+                if (antialias) { //抗锯齿
+                    g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+                }
+                g2d.setColor(Color.WHITE);
+                g2d.fillRect(0, 0, stickerWidth, stickerHeight);
+                g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_ATOP, 1.0F));
+            }
+            // 画
+            layers.forEach(layer -> layer.accept(g2d));
             g2d.dispose();
-            g2d = output.createGraphics();
-        } else {
-            g2d.setColor(Color.WHITE);
-            g2d.fillRect(0, 0, stickerWidth, stickerHeight);
-            g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_ATOP, 1.0F));
+        });
+        return output;
+    }
+
+    /**
+     * 将画布按水平条带划分并行绘制, 像素数小于 BAND_PIXEL_THRESHOLD 时在调用线程中绘制整个画布
+     * <br/>
+     * 各条带互不重叠, 绘制函数应将绘制裁剪到条带内, 与绘制区域无关的处理 (变形, 排版等) 应在调用前完成;
+     * 在渲染线程池中调用时条带作为子任务执行, 不会占住工作线程
+     *
+     * @param painter 绘制指定区域的函数 (可能在线程池中调用)
+     */
+    public static void execBands(int width, int height, Consumer<Rectangle> painter) {
+        int count = (long) width * height < BAND_PIXEL_THRESHOLD ? 1
+                : Math.min(RenderScheduler.getCurrent().getParallelism(), height / MIN_BAND_HEIGHT);
+        if (count <= 1) {
+            painter.accept(new Rectangle(0, 0, width, height));
+            return;
         }
+        RenderScheduler.invokeAll(count, i -> {
+            int top = height * i / count;
+            int bottom = height * (i + 1) / count;
+            painter.accept(new Rectangle(0, top, width, bottom - top));
+            return null;
+        });
+    }
+
+    /**
+     * 合成不透明的 TYPE_3BYTE_BGR 帧, 结果与 synthesisImage (transparent = false) 转换为 BGR 后相同
+     * <br/>
+     * 白色底与背景预先合成并缓存, 每帧复制后只在底层头像的区域内重新合成, 顶层头像与文字直接绘制
+     */
+    public static BufferedImage synthesisOpaqueImage
+            (BufferedImage sticker, List<AvatarModel> avatarList, List<TextModel> textList,
+             boolean antialias, short index, List<Integer> maxSize) {
+        float multiple = getMultiple(sticker, avatarList, maxSize);
+        int stickerWidth = (int) (sticker.getWidth() * multiple);
+        int stickerHeight = (int) (sticker.getHeight() * multiple);
 
-        // 按照图层分类
         List<AvatarModel> topAvatars = new ArrayList<>(4);
         List<AvatarModel> bottomAvatars = new ArrayList<>(4);
         for (AvatarModel avatar : avatarList) {
@@ -119,13 +216,36 @@ public class ImageSynthesis extends ImageSynthesisCore {
                 bottomAvatars.add(avatar);
             }
         }
-        // 画
+
+        BufferedImage background = getOpaqueBackground(sticker, stickerWidth, stickerHeight, antialias, bottomAvatars);
+        BufferedImage output = new BufferedImage(stickerWidth, stickerHeight, BufferedImage.TYPE_3BYTE_BGR);
+        byte[] data = ((DataBufferByte) output.getRaster().getDataBuffer()).getData();
+        System.arraycopy(((DataBufferByte) background.getRaster().getDataBuffer()).getData(), 0, data, 0, data.length);
+
+        Graphics2D g2d = output.createGraphics();
+        if (antialias) {
+            g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        }
+        Area damage = new Area();
         for (AvatarModel avatar : bottomAvatars) {
-            g2dDrawAvatar(g2d, avatar, index, multiple);
+            damage.add(new Area(getAvatarBounds(avatar, index, multiple)));
+        }
+        if (damage.isEmpty()) {
+            setBackgroundGraphics(g2d, bottomAvatars);
+        } else {
+            // 底层头像在背景之下, 在其区域内按原顺序重新合成
+            g2d.setClip(damage);
+            g2d.setColor(Color.WHITE);
+            g2d.fillRect(0, 0, stickerWidth, stickerHeight);
+            g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_ATOP, 1.0F));
+            for (AvatarModel avatar : bottomAvatars) {
+                g2dDrawAvatar(g2d, output, avatar, index, multiple);
+            }
+            g2dDrawBackground(g2d, sticker, stickerWidth, stickerHeight);
+            g2d.setClip(null);
         }
-        g2d.drawImage(sticker, 0, 0, stickerWidth, stickerHeight, null);
         for (AvatarModel avatar : topAvatars) {
-            g2dDrawAvatar(g2d, avatar, index, multiple);
+            g2dDrawAvatar(g2d, output, avatar, index, multiple);
         }
 
         g2dDrawTexts(g2d, textList, stickerWidth, stickerHeight);
@@ -133,10 +253,209 @@ public class ImageSynthesis extends ImageSynthesisCore {
         return output;
     }
 
+    /**
+     * 白色底与背景合成的 BGR 图像, 背景的绘制状态取决于之前绘制的底层头像
+     */
+    protected static BufferedImage getOpaqueBackground(
+            BufferedImage sticker, int width, int height, boolean antialias, List<AvatarModel> bottomAvatars
+    ) {
+        float stickerOpacity = -1F;
+        for (AvatarModel avatar : bottomAvatars) {
+            if (avatar.getPosType() == AvatarPosType.ZOOM) stickerOpacity = avatar.getOpacity();
+        }
+        List<Object> key = List.of(width, height, antialias, stickerOpacity);
+        boolean shared = isSharedBackground(sticker);
+        if (shared) {
+            synchronized (opaqueBackgroundCache) {
+                var images = opaqueBackgroundCache.get(sticker);
+                if (images != null && images.containsKey(key)) return images.get(key);
+            }
+        }
+
+        BufferedImage background = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g2d = background.createGraphics();
+        if (antialias) {
+            g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        }
+        g2d.setColor(Color.WHITE);
+        g2d.fillRect(0, 0, width, height);
+        setBackgroundGraphics(g2d, bottomAvatars);
+        g2dDrawBackground(g2d, sticker, width, height);
+        g2d.dispose();
+
+        if (!shared) return background;
+        synchronized (opaqueBackgroundCache) {
+            opaqueBackgroundCache.computeIfAbsent(sticker, k -> new HashMap<>(4)).put(key, background);
+        }
+        return background;
+    }
+
+    /**
+     * 将背景绘制到画布左上角, 需要缩放时使用缓存的缩小图像
+     */
+    protected static void g2dDrawBackground(Graphics2D g2d, BufferedImage sticker, int width, int height) {
+        if (width <= 0 || height <= 0) return;
+        g2d.drawImage(getScaledBackground(sticker, width, height), 0, 0, null);
+    }
+
+    /**
+     * 缩放到指定尺寸的背景, 尺寸与原图相同时返回原图
+     */
+    public static BufferedImage getScaledBackground(BufferedImage sticker, int width, int height) {
+        if (sticker.getWidth() == width && sticker.getHeight() == height) return sticker;
+        List<Integer> key = List.of(width, height);
+        boolean shared = isSharedBackground(sticker);
+        if (shared) {
+            synchronized (scaledBackgroundCache) {
+                var images = scaledBackgroundCache.get(sticker);
+                if (images != null && images.containsKey(key)) return images.get(key);
+            }
+        }
+
+        BufferedImage scaled;
+        try {
+            scaled = Thumbnails.of(sticker).forceSize(width, height).asBufferedImage();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+
+        if (!shared) return scaled;
+        synchronized (scaledBackgroundCache) {
+            scaledBackgroundCache.computeIfAbsent(sticker, k -> new HashMap<>(4)).put(key, scaled);
+        }
+        return scaled;
+    }
+
+    /**
+     * 登记模板加载的背景帧, 之后以其合成的不透明背景与缩小的背景在请求间缓存
+     */
+    public static void setSharedBackgrounds(BufferedImage... stickers) {
+        synchronized (sharedBackgrounds) {
+            Collections.addAll(sharedBackgrounds, stickers);
+        }
+    }
+
+    protected static boolean isSharedBackground(BufferedImage sticker) {
+        synchronized (sharedBackgrounds) {
+            return sharedBackgrounds.contains(sticker);
+        }
+    }
+
+    /**
+     * 设置绘制完白色底与底层头像后的画笔状态
+     */
+    private static void setBackgroundGraphics(Graphics2D g2d, List<AvatarModel> bottomAvatars) {
+        g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_ATOP, 1.0F));
+        for (AvatarModel avatar : bottomAvatars) {
+            if (avatar.getPosType() == AvatarPosType.ZOOM) setZoomAvatarGraphics(g2d, avatar.getOpacity());
+        }
+    }
+
+    /**
+     * 头像在画布上可能覆盖的区域 (外扩 2 像素以包含插值与抗锯齿的边缘)
+     */
+    protected static Rectangle getAvatarBounds(AvatarModel avatar, short index, float multiple) {
+        Rectangle bounds;
+        switch (avatar.getPosType()) {
+            case ZOOM: {
+                int[] pos = avatar.getPos(index);
+                int x = (int) (pos[0] * multiple);
+                int y = (int) (pos[1] * multiple);
+                int w = (int) (pos[2] * multiple);
+                int h = (int) (pos[3] * multiple);
+                bounds = new Rectangle(Math.min(x, x + w), Math.min(y, y + h), Math.abs(w), Math.abs(h));
+                float angle = avatar.getAngle(index);
+                if (angle != 0) {
+                    AffineTransform transform = avatar.getTransformOrigin() == TransformOrigin.CENTER
+                            ? AffineTransform.getRotateInstance(Math.toRadians(angle), (double) w / 2 + x, (double) h / 2 + y)
+                            : AffineTransform.getRotateInstance(Math.toRadians(angle), x, y);
+                    bounds = transform.createTransformedShape(bounds).getBounds();
+                }
+                break;
+            }
+            case DEFORM: {
+                AvatarModel.DeformData deformData = avatar.getDeformData();
+                Point2D[] points = deformData.getDeformPos(index);
+                int[] anchor = deformData.getAnchor(index);
+                double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+                double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+                for (Point2D point : points) {
+                    minX = Math.min(minX, point.getX());
+                    minY = Math.min(minY, point.getY());
+                    maxX = Math.max(maxX, point.getX());
+                    maxY = Math.max(maxY, point.getY());
+                }
+                bounds = new Rectangle(anchor[0], anchor[1],
+                        (int) Math.ceil(maxX - minX) + 1, (int) Math.ceil(maxY - minY) + 1);
+                break;
+            }
+            default:
+                return new Rectangle();
+        }
+        bounds.grow(2, 2);
+        return bounds;
+    }
+
+    /**
+     * 设置了 maxSize 且满足帧数条件时, 按最大尺寸缩放画布
+     */
+    protected static float getMultiple(BufferedImage sticker, List<AvatarModel> avatarList, List<Integer> maxSize) {
+        float multiple = 1.0F;
+        if (maxSize == null || maxSize.isEmpty()) return multiple;
+        boolean zoom = maxSize.get(2) != null && maxSize.get(2) == 0; // 0: 不限帧数, 总是缩放
+        if (!zoom && maxSize.get(2) != null) {
+            for (AvatarModel avatar : avatarList) {
+                if (avatar.getImageList().size() >= maxSize.get(2)) {
+                    zoom = true;
+                    break;
+                }
+            }
+        }
+
+        if (zoom) {
+            if (sticker.getWidth() > maxSize.get(0))
+                multiple = (float) maxSize.get(0) / sticker.getWidth();
+            if (sticker.getHeight() > maxSize.get(1))
+                multiple = Math.min(multiple, (float) maxSize.get(1) / sticker.getHeight());
+        }
+        return multiple;
+    }
+
     public static BufferedImage cropImage(BufferedImage image, CropType type, int[] cropPos) {
         return cropImage(image, cropPos, type == CropType.PERCENT);
     }
 
+    /**
+     * 预处理后的头像缓存, 在模板与请求间共享
+     */
+    public static AvatarDerivativeCache getDerivativeCache() {
+        return derivativeCache;
+    }
+
+    /**
+     * 重采样缩放, 保持宽高比缩放到 maxSize * maxSize 之内
+     */
+    public static BufferedImage resampleImage(BufferedImage image, int maxSize) {
+        try {
+            return Thumbnails.of(image).size(maxSize, maxSize).keepAspectRatio(true).asBufferedImage();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * 是否在样式与滤镜之前先重采样: 源图像不小于重采样尺寸的 PRE_RESAMPLE_FACTOR 倍, 含有非逐像素的滤镜,
+     * 且所有滤镜均可在缩小的图像上执行 (半调, 噪点等效果依赖分辨率的滤镜仍在原图上执行)
+     *
+     * @param maxSize 重采样尺寸, 不重采样时为 0
+     */
+    public static boolean shouldPreResample(BufferedImage image, int maxSize, List<AvatarFilter> filterList) {
+        return maxSize > 0
+                && Math.max(image.getWidth(), image.getHeight()) >= maxSize * PRE_RESAMPLE_FACTOR
+                && filterList.stream().anyMatch(filter -> !filter.isPointwise())
+                && filterList.stream().allMatch(AvatarFilter::isScalable);
+    }
+
     static List<BufferedImage> execImageList(
             List<BufferedImage> imageList,
             Function<BufferedImage, BufferedImage> fun
@@ -148,46 +467,13 @@ public class ImageSynthesis extends ImageSynthesisCore {
             List<BufferedImage> imageList,
             BiFunction<Integer, BufferedImage, BufferedImage> fun
     ) {
-        try {
-            CountDownLatch latch = new CountDownLatch(imageList.size());
-            BufferedImage[] result = new BufferedImage[imageList.size()];
-
-            for (int i = 0; i < imageList.size(); i++) {
-                var fi = i;
-                threadPool.execute(() -> {
-                    BufferedImage img = imageList.get(fi);
-                    result[fi] = fun.apply(fi, img);
-                    latch.countDown();
-                });
-            }
-
-            latch.await();
-            return Arrays.asList(result);
-        } catch (InterruptedException ex) {
-            throw new RuntimeException(ex);
-        }
+        return RenderScheduler.invokeAll(imageList.size(), i -> fun.apply(i, imageList.get(i)));
     }
 
     public static List<BufferedImage> execImageList(
             int number,
             Function<Integer, BufferedImage> fun
     ) {
-        try {
-            CountDownLatch latch = new CountDownLatch(number);
-            BufferedImage[] result = new BufferedImage[number];
-
-            for (int i = 0; i < number; i++) {
-                var fi = i;
-                threadPool.execute(() -> {
-                    result[fi] = fun.apply(fi);
-                    latch.countDown();
-                });
-            }
-
-            latch.await();
-            return Arrays.asList(result);
-        } catch (InterruptedException ex) {
-            throw new RuntimeException(ex);
-        }
+        return RenderScheduler.invokeAll(number, fun::apply);
     }
 }
\ No newline at end of file
@@ -1,21 +1,26 @@
 package moe.dituon.petpet.share;
 
+import moe.dituon.petpet.share.filter.DisplacementFilter;
+import moe.dituon.petpet.share.filter.PixelPipeline;
 import org.jetbrains.annotations.NotNull;
 
 import javax.imageio.ImageIO;
 import java.awt.*;
+import java.awt.font.FontRenderContext;
 import java.awt.font.GlyphVector;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Ellipse2D;
 import java.awt.geom.Point2D;
 import java.awt.image.BufferedImage;
-import java.awt.image.WritableRaster;
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 public abstract class ImageSynthesisCore {
@@ -49,16 +54,37 @@ public abstract class ImageSynthesisCore {
     protected static void g2dDrawZoomAvatar(
             Graphics2D g2d, @NotNull BufferedImage avatarImage, int[] pos,
             float angle, boolean originAtCenter, float multiple, FitType fitType, float opacity
+    ) {
+        g2dDrawZoomAvatar(g2d, null, avatarImage, pos, angle, originAtCenter, multiple, fitType, opacity);
+    }
+
+    /**
+     * 在Graphics2D画布上 绘制缩放头像, 无旋转时直接写入画布的像素数组
+     *
+     * @param canvas 画布图像, 为 null 时只使用 Graphics2D 绘制
+     * @see RasterCompositor
+     */
+    protected static void g2dDrawZoomAvatar(
+            Graphics2D g2d, BufferedImage canvas, @NotNull BufferedImage avatarImage, int[] pos,
+            float angle, boolean originAtCenter, float multiple, FitType fitType, float opacity
+    ) {
+        prepareZoomAvatar(canvas, avatarImage, pos, angle, originAtCenter, multiple, fitType, opacity).accept(g2d);
+    }
+
+    /**
+     * 预先计算缩放头像的坐标与裁切, 返回的绘制操作可在多个 Graphics2D (条带) 上重复执行
+     *
+     * @see #g2dDrawZoomAvatar(Graphics2D, BufferedImage, BufferedImage, int[], float, boolean, float, FitType, float)
+     */
+    protected static Consumer<Graphics2D> prepareZoomAvatar(
+            BufferedImage canvas, @NotNull BufferedImage avatarImage, int[] pos,
+            float angle, boolean originAtCenter, float multiple, FitType fitType, float opacity
     ) {
         int x = (int) (pos[0] * multiple);
         int y = (int) (pos[1] * multiple);
         int w = (int) (pos[2] * multiple);
         int h = (int) (pos[3] * multiple);
         BufferedImage newAvatarImage = avatarImage;
-        g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, opacity));
-        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-        g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
-        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
 
         switch (fitType) {
             case COVER: {
@@ -68,7 +94,7 @@ public abstract class ImageSynthesisCore {
                 );
                 int resultWidth = (int) (w * ratio);
                 int resultHeight = (int) (h * ratio);
-                if (resultWidth <= 0 || resultHeight <= 0) return;
+                if (resultWidth <= 0 || resultHeight <= 0) return g2d -> setZoomAvatarGraphics(g2d, opacity);
 
                 int[] cropPos = new int[]{
                         0, 0, resultWidth, resultHeight
@@ -99,19 +125,39 @@ public abstract class ImageSynthesisCore {
             }
         }
 
+        int fx = x, fy = y, fw = w, fh = h;
+        BufferedImage image = newAvatarImage;
         if (angle == 0) {
-            g2d.drawImage(newAvatarImage, x, y, w, h, null);
-            return;
+            return g2d -> {
+                setZoomAvatarGraphics(g2d, opacity);
+                if (canvas == null || !g2d.getTransform().isIdentity() || !RasterCompositor.drawImage(
+                        canvas, g2d.getClip(), image, fx, fy, fw, fh, opacity, true)) {
+                    g2d.drawImage(image, fx, fy, fw, fh, null);
+                }
+            };
         }
 
-        AffineTransform old = g2d.getTransform();
-        if (originAtCenter) {
-            g2d.rotate(Math.toRadians(angle), (double) w / 2 + x, (double) h / 2 + y);
-        } else {
-            g2d.rotate(Math.toRadians(angle), x, y);
-        }
-        g2d.drawImage(avatarImage, x, y, w, h, null);
-        g2d.setTransform(old);
+        return g2d -> {
+            setZoomAvatarGraphics(g2d, opacity);
+            AffineTransform old = g2d.getTransform();
+            if (originAtCenter) {
+                g2d.rotate(Math.toRadians(angle), (double) fw / 2 + fx, (double) fh / 2 + fy);
+            } else {
+                g2d.rotate(Math.toRadians(angle), fx, fy);
+            }
+            g2d.drawImage(avatarImage, fx, fy, fw, fh, null);
+            g2d.setTransform(old);
+        };
+    }
+
+    /**
+     * 设置绘制缩放头像的画笔状态, 绘制后状态保留, 影响之后绘制的图层
+     */
+    protected static void setZoomAvatarGraphics(Graphics2D g2d, float opacity) {
+        g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, opacity));
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
     }
 
     /**
@@ -124,8 +170,17 @@ public abstract class ImageSynthesisCore {
      */
     protected static void g2dDrawDeformAvatar(Graphics2D g2d, BufferedImage avatarImage,
                                               Point2D[] deformPos, int[] anchorPos) {
+        prepareDeformAvatar(avatarImage, deformPos, anchorPos).accept(g2d);
+    }
+
+    /**
+     * 预先计算变形后的头像, 返回的绘制操作可在多个 Graphics2D (条带) 上重复执行
+     */
+    protected static Consumer<Graphics2D> prepareDeformAvatar(BufferedImage avatarImage,
+                                                              Point2D[] deformPos, int[] anchorPos) {
         BufferedImage result = ImageDeformer.computeImage(avatarImage, deformPos);
-        g2d.drawImage(result, anchorPos[0], anchorPos[1], null);
+        int x = anchorPos[0], y = anchorPos[1];
+        return g2d -> g2d.drawImage(result, x, y, null);
     }
 
     /**
@@ -187,6 +242,17 @@ public abstract class ImageSynthesisCore {
     public static void g2dDrawStrokeText(Graphics2D g2d, String text, int[] pos,
                                          Color color, Font font,
                                          short strokeSize, Color strokeColor) {
+        g2dDrawStrokeText(g2d, frc -> buildStrokeTextShapes(text, pos, font, strokeSize, frc),
+                color, strokeSize, strokeColor);
+    }
+
+    /**
+     * 在Graphics2D画布上 绘制带有描边的文字
+     *
+     * @param shapes 由画布的 FontRenderContext 构建各行文字的轮廓
+     */
+    public static void g2dDrawStrokeText(Graphics2D g2d, Function<FontRenderContext, Shape[]> shapes,
+                                         Color color, short strokeSize, Color strokeColor) {
         BasicStroke outlineStroke = new BasicStroke(strokeSize);
         Color originalColor = g2d.getColor();
         Stroke originalStroke = g2d.getStroke();
@@ -196,37 +262,11 @@ public abstract class ImageSynthesisCore {
         g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
         g2d.setStroke(outlineStroke);
 
-        if (!text.contains("\n")) {
+        for (Shape textShape : shapes.apply(g2d.getFontRenderContext())) {
             g2d.setColor(strokeColor);
-
-            GlyphVector glyphVector = font.createGlyphVector(g2d.getFontRenderContext(), text);
-            Shape textShape = glyphVector.getOutline();
-            AffineTransform transform = new AffineTransform();
-            transform.translate(pos[0], pos[1]);
-            textShape = transform.createTransformedShape(textShape);
-
             g2d.draw(textShape);
             g2d.setColor(color);
             g2d.fill(textShape);
-        } else {
-            String[] texts = text.split("\n");
-            int y = pos[1];
-
-            short height = (short) TextModel.getTextHeight(text, font);
-            for (String txt : texts) {
-                g2d.setColor(strokeColor);
-
-                GlyphVector glyphVector = font.createGlyphVector(g2d.getFontRenderContext(), txt);
-                Shape textShape = glyphVector.getOutline();
-                AffineTransform transform = new AffineTransform();
-                transform.translate(pos[0], y);
-                y += height + strokeSize * 2 + 2;
-                textShape = transform.createTransformedShape(textShape);
-
-                g2d.draw(textShape);
-                g2d.setColor(color);
-                g2d.fill(textShape);
-            }
         }
 
         g2d.setColor(originalColor);
@@ -234,6 +274,27 @@ public abstract class ImageSynthesisCore {
         g2d.setRenderingHints(originalHints);
     }
 
+    /**
+     * 各行文字的轮廓
+     *
+     * @param pos 坐标 (int[4]{x, y, width, height})
+     */
+    public static Shape[] buildStrokeTextShapes(String text, int[] pos, Font font,
+                                                short strokeSize, FontRenderContext frc) {
+        String[] texts = text.contains("\n") ? text.split("\n") : new String[]{text};
+        Shape[] shapes = new Shape[texts.length];
+        int y = pos[1];
+        short height = texts.length > 1 ? (short) TextModel.getTextHeight(text, font) : 0;
+        for (int i = 0; i < texts.length; i++) {
+            GlyphVector glyphVector = font.createGlyphVector(frc, texts[i]);
+            AffineTransform transform = new AffineTransform();
+            transform.translate(pos[0], y);
+            y += height + strokeSize * 2 + 2;
+            shapes[i] = transform.createTransformedShape(glyphVector.getOutline());
+        }
+        return shapes;
+    }
+
     /**
      * 将图像裁切为圆形
      *
@@ -262,8 +323,13 @@ public abstract class ImageSynthesisCore {
      * @param imageUrl 图像URL
      */
     public static BufferedImage getWebImage(String imageUrl) {
-        try {
-            return ImageIO.read(new URL(imageUrl));
+        try (InputStream stream = new URL(imageUrl).openStream()) {
+            byte[] data = stream.readAllBytes();
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
+            if (image != null) {
+                ImageSynthesis.getDerivativeCache().setSourceKey(image, List.of(AvatarDerivativeCache.digestBytes(data), 0));
+            }
+            return image;
         } catch (Exception ex) {
             throw new RuntimeException("[获取图像失败]  URL: " + imageUrl, ex);
         }
@@ -287,28 +353,32 @@ public abstract class ImageSynthesisCore {
     /**
      * 从BufferedInputStream获取图像 (支持GIF)
      *
-     * @param inputStream 图像输入流, 必须支持mark()
+     * @param inputStream 图像输入流, 读取完毕后关闭
      * @return GIF全部帧 或一张静态图像
      */
     public static List<BufferedImage> getImageAsList(InputStream inputStream) throws IOException {
         ReusableGifDecoder decoder = new ReusableGifDecoder();
+        byte[] data;
+        try (inputStream) {
+            data = inputStream.readAllBytes();
+        }
 
-        try (inputStream; inputStream) {
-            inputStream.mark(0); //循环利用inputStream, 避免重复获取
-            decoder.read(inputStream);
-
-            if (decoder.err()) {
-                inputStream.reset();
-                List<BufferedImage> list = List.of(ImageIO.read(ImageIO.createImageInputStream(inputStream)));
-                inputStream.close();
-                return list;
-            }
-            List<BufferedImage> output = new ArrayList<>(decoder.getFrameCount());
+        List<BufferedImage> output;
+        decoder.read(new ByteArrayInputStream(data));
+        if (decoder.err()) {
+            output = List.of(ImageIO.read(new ByteArrayInputStream(data)));
+        } else {
+            output = new ArrayList<>(decoder.getFrameCount());
             for (short i = 0; i < decoder.getFrameCount(); i++) {
                 output.add(decoder.getFrame(i));
             }
-            return output;
         }
+        // 以编码数据标识各帧, 预处理缓存无需再读取像素计算摘要
+        Object digest = AvatarDerivativeCache.digestBytes(data);
+        for (int i = 0; i < output.size(); i++) {
+            ImageSynthesis.getDerivativeCache().setSourceKey(output.get(i), List.of(digest, i));
+        }
+        return output;
     }
 
     /**
@@ -404,98 +474,20 @@ public abstract class ImageSynthesisCore {
      * 图像灰度化
      */
     public static BufferedImage grayImage(BufferedImage image) {
-        int width = image.getWidth();
-        int height = image.getHeight();
-        BufferedImage grayscaleImage = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                Color color = new Color(image.getRGB(x, y));
-                int gray = (int) (color.getRed() * 0.299 + color.getGreen() * 0.587 + color.getBlue() * 0.114);
-                Color color_end = new Color(gray, gray, gray);
-                grayscaleImage.setRGB(x, y, color_end.getRGB());
-            }
-        }
-        return grayscaleImage;
+        return new PixelPipeline().gray().flush(image);
     }
 
     /**
      * 图像二值化
      */
     public static BufferedImage binarizeImage(BufferedImage image) {
-        int h = image.getHeight();
-        int w = image.getWidth();
-        BufferedImage binarizeImage = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-        for (int i = 0; i < w; i++) {
-            for (int j = 0; j < h; j++) {
-                int val = image.getRGB(i, j);
-                int r = (0x00ff0000 & val) >> 16;
-                int g = (0x0000ff00 & val) >> 8;
-                int b = (0x000000ff & val);
-                int m = (r + g + b);
-                if (m >= 383) {
-                    binarizeImage.setRGB(i, j, Color.WHITE.getRGB());
-                } else {
-                    binarizeImage.setRGB(i, j, 0);
-                }
-            }
-        }
-        return binarizeImage;
+        return new PixelPipeline().binarize().flush(image);
     }
 
     public static BufferedImage bulgePinchImage(
             BufferedImage input, int cx, int cy,
             float radius, float strength
     ) {
-        if (strength == 0 || radius == 0) return input;
-
-        int w = input.getWidth();
-        int h = input.getHeight();
-        BufferedImage outputImage = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
-
-        boolean isBulge = strength > 0;
-        float radiusSquared = radius * radius;
-        double inverseBulgeStrength = 1.0 / strength;
-
-        WritableRaster inputRaster = input.getRaster();
-        WritableRaster outputRaster = outputImage.getRaster();
-
-        int[] pixel = {255, 255, 255, 255};
-
-        for (int x = 0; x < w; x++) {
-            for (int y = 0; y < h; y++) {
-                int dx = x - cx;
-                int dy = y - cy;
-                double distanceSquared = dx * dx + dy * dy;
-                int sx = x;
-                int sy = y;
-
-                if (distanceSquared < radiusSquared) {
-                    if (isBulge) {
-                        double distance = Math.sqrt(distanceSquared);
-                        double dirX = dx / distance;
-                        double dirY = dy / distance;
-                        double alpha = 1 - distance / radius;
-                        double distortionFactor = Math.pow(alpha, inverseBulgeStrength) * distance;
-
-                        sx -= (int) (distortionFactor * dirX);
-                        sy -= (int) (distortionFactor * dirY);
-                    } else {
-                        float d = (float) Math.sqrt(distanceSquared / radiusSquared);
-                        float t = (float) Math.pow(Math.sin(Math.PI * 0.5 * d), strength);
-
-                        dx *= t;
-                        dy *= t;
-
-                        sx = (cx + dx);
-                        sy = (cy + dy);
-                    }
-                }
-                if (sx >= 0 && sx < w && sy >= 0 && sy < h) {
-                    inputRaster.getPixel(sx, sy, pixel);
-                    outputRaster.setPixel(x, y, pixel);
-                }
-            }
-        }
-        return outputImage;
+        return DisplacementFilter.bulgePinch(input, cx, cy, radius, strength);
     }
 }
@@ -0,0 +1,189 @@
+package moe.dituon.petpet.share;
+
+import java.util.Arrays;
+
+/**
+ * 基于 5 位 (每通道) 颜色直方图的中位切分量化
+ * <br/>
+ * 只需一次遍历像素, 颜色数不超过 256 时直接使用直方图中的颜色, 适用于颜色较少的卡通风格图像
+ */
+public class MedianCutQuantizer {
+    protected static final int BITS = 5;
+    protected static final int SHIFT = 8 - BITS;
+    protected static final int LOW_MASK = (1 << SHIFT) - 1;
+    protected static final int HISTOGRAM_SIZE = 1 << (BITS * 3);
+
+    private static final ThreadLocal<MedianCutQuantizer> threadLocal = ThreadLocal.withInitial(MedianCutQuantizer::new);
+
+    private final int[] counts = new int[HISTOGRAM_SIZE];
+    /**
+     * 各颜色低位之和, 用于计算箱内的平均颜色
+     */
+    private final int[] sumR = new int[HISTOGRAM_SIZE];
+    private final int[] sumG = new int[HISTOGRAM_SIZE];
+    private final int[] sumB = new int[HISTOGRAM_SIZE];
+    private final int[] bins = new int[HISTOGRAM_SIZE];
+    private int binCount;
+
+    private final int[] boxStart = new int[GifPalette.PALETTE_SIZE];
+    private final int[] boxEnd = new int[GifPalette.PALETTE_SIZE];
+    private final long[] boxScore = new long[GifPalette.PALETTE_SIZE];
+    private final int[] boxAxis = new int[GifPalette.PALETTE_SIZE];
+
+    protected MedianCutQuantizer() {
+    }
+
+    /**
+     * @param pixels  BGR 像素
+     * @param quality 采样间隔, 越小质量越好
+     */
+    public static GifPalette quantize(byte[] pixels, int quality) {
+        return quantize(pixels, quality, GifPalette.PALETTE_SIZE);
+    }
+
+    /**
+     * @param maxColors 最大颜色数 (不超过 256)
+     * @see #quantize(byte[], int)
+     */
+    public static GifPalette quantize(byte[] pixels, int quality, int maxColors) {
+        return threadLocal.get().process(
+                pixels, Math.max(quality, 1), Math.max(1, Math.min(maxColors, GifPalette.PALETTE_SIZE))
+        );
+    }
+
+    protected GifPalette process(byte[] pixels, int step, int maxColors) {
+        try {
+            buildHistogram(pixels, step);
+            int boxCount = binCount <= maxColors ? splitEachBin() : medianCut(maxColors);
+
+            byte[] tab = new byte[GifPalette.PALETTE_SIZE * 3];
+            for (int i = 0; i < boxCount; i++) averageColor(boxStart[i], boxEnd[i], tab, i * 3);
+            return new GifPalette(tab, Math.max(boxCount, 1));
+        } finally {
+            clear();
+        }
+    }
+
+    private void buildHistogram(byte[] pixels, int step) {
+        for (int p = 0; p + 2 < pixels.length; p += 3 * step) {
+            int b = pixels[p] & 0xff;
+            int g = pixels[p + 1] & 0xff;
+            int r = pixels[p + 2] & 0xff;
+            int bin = (r >> SHIFT) << (BITS * 2) | (g >> SHIFT) << BITS | (b >> SHIFT);
+            if (counts[bin]++ == 0) bins[binCount++] = bin;
+            sumR[bin] += r & LOW_MASK;
+            sumG[bin] += g & LOW_MASK;
+            sumB[bin] += b & LOW_MASK;
+        }
+    }
+
+    private int splitEachBin() {
+        for (int i = 0; i < binCount; i++) {
+            boxStart[i] = i;
+            boxEnd[i] = i + 1;
+        }
+        return binCount;
+    }
+
+    /**
+     * 反复以中位数切分 (像素数 * 最长边) 最大的箱, 直到得到 maxColors 个箱
+     */
+    private int medianCut(int maxColors) {
+        int boxCount = 1;
+        boxStart[0] = 0;
+        boxEnd[0] = binCount;
+        measure(0);
+        while (boxCount < maxColors) {
+            int target = -1;
+            for (int i = 0; i < boxCount; i++) {
+                if (boxScore[i] > 0 && (target < 0 || boxScore[i] > boxScore[target])) target = i;
+            }
+            if (target < 0) break;
+
+            int start = boxStart[target];
+            int end = boxEnd[target];
+            int axis = boxAxis[target];
+            sortByAxis(start, end, axis);
+
+            long population = 0;
+            for (int i = start; i < end; i++) population += counts[bins[i]];
+            long half = population / 2;
+            long acc = 0;
+            int mid = start + 1;
+            for (int i = start; i < end - 1; i++) {
+                acc += counts[bins[i]];
+                mid = i + 1;
+                if (acc >= half) break;
+            }
+
+            boxEnd[target] = mid;
+            boxStart[boxCount] = mid;
+            boxEnd[boxCount] = end;
+            measure(target);
+            measure(boxCount);
+            boxCount++;
+        }
+        return boxCount;
+    }
+
+    private void measure(int box) {
+        int minR = 31, minG = 31, minB = 31, maxR = 0, maxG = 0, maxB = 0;
+        long population = 0;
+        for (int i = boxStart[box]; i < boxEnd[box]; i++) {
+            int bin = bins[i];
+            int r = bin >> (BITS * 2), g = (bin >> BITS) & 31, b = bin & 31;
+            minR = Math.min(minR, r);
+            maxR = Math.max(maxR, r);
+            minG = Math.min(minG, g);
+            maxG = Math.max(maxG, g);
+            minB = Math.min(minB, b);
+            maxB = Math.max(maxB, b);
+            population += counts[bin];
+        }
+        int rangeR = maxR - minR, rangeG = maxG - minG, rangeB = maxB - minB;
+        int range = Math.max(rangeR, Math.max(rangeG, rangeB));
+        boxAxis[box] = range == rangeG ? 1 : range == rangeR ? 0 : 2;
+        // 只含一个颜色的箱不再切分
+        boxScore[box] = boxEnd[box] - boxStart[box] > 1 ? population * (range + 1) : 0;
+    }
+
+    /**
+     * @param axis 0: R, 1: G, 2: B
+     */
+    private void sortByAxis(int start, int end, int axis) {
+        int shift = axis == 0 ? BITS * 2 : axis == 1 ? BITS : 0;
+        for (int i = start; i < end; i++) {
+            int bin = bins[i];
+            bins[i] = ((bin >> shift) & 31) << (BITS * 3) | bin;
+        }
+        Arrays.sort(bins, start, end);
+        for (int i = start; i < end; i++) bins[i] &= HISTOGRAM_SIZE - 1;
+    }
+
+    private void averageColor(int start, int end, byte[] tab, int offset) {
+        long r = 0, g = 0, b = 0, population = 0;
+        for (int i = start; i < end; i++) {
+            int bin = bins[i];
+            int count = counts[bin];
+            r += (long) ((bin >> (BITS * 2)) << SHIFT) * count + sumR[bin];
+            g += (long) (((bin >> BITS) & 31) << SHIFT) * count + sumG[bin];
+            b += (long) ((bin & 31) << SHIFT) * count + sumB[bin];
+            population += count;
+        }
+        if (population == 0) return;
+        tab[offset] = (byte) ((r + population / 2) / population);
+        tab[offset + 1] = (byte) ((g + population / 2) / population);
+        tab[offset + 2] = (byte) ((b + population / 2) / population);
+    }
+
+    private void clear() {
+        for (int i = 0; i < binCount; i++) {
+            int bin = bins[i];
+            counts[bin] = 0;
+            sumR[bin] = 0;
+            sumG[bin] = 0;
+            sumB[bin] = 0;
+        }
+        binCount = 0;
+    }
+}
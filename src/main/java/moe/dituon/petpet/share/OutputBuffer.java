@@ -0,0 +1,25 @@
+package moe.dituon.petpet.share;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+/**
+ * 可直接转为 InputStream 的 ByteArrayOutputStream, 转换时不复制内部数组
+ */
+public class OutputBuffer extends ByteArrayOutputStream {
+    public OutputBuffer() {
+        super();
+    }
+
+    public OutputBuffer(int size) {
+        super(size);
+    }
+
+    /**
+     * @return 共用内部数组的输入流, 之后不应再写入
+     */
+    public InputStream toInputStream() {
+        return new ByteArrayInputStream(buf, 0, count);
+    }
+}
@@ -0,0 +1,398 @@
+package moe.dituon.petpet.share;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.WritableRaster;
+
+/**
+ * 直接读写像素数组的缩放混合 (SRC_OVER), 用于无旋转的头像绘制
+ * <br/>
+ * 坐标映射与边缘处理与 Graphics2D.drawImage 相同 (像素中心对齐, 边缘取最近像素), 混合结果可能有 ±1 的舍入误差;
+ * 每个线程复用一组临时数组, 除首次调用外不分配内存
+ */
+public class RasterCompositor {
+    private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    private static final int PREMULTIPLIED = 0;
+    private static final int STRAIGHT = 1;
+    private static final int OPAQUE = 2;
+
+    /**
+     * 将 image 缩放到 (x, y, w, h) 并以 opacity 混合到 canvas 上
+     *
+     * @param clip     画布的裁剪区域, 为 null 时不裁剪; 非矩形且不完全包含目标区域时不绘制
+     * @param bilinear 双线性插值, 否则取最近的像素
+     * @return 不缩放, 不支持的图像类型, 尺寸或裁剪时返回 false, 此时画布未被修改, 需要使用 Graphics2D 绘制
+     */
+    public static boolean drawImage(
+            BufferedImage canvas, Shape clip, BufferedImage image,
+            int x, int y, int w, int h, float opacity, boolean bilinear
+    ) {
+        // 等尺寸绘制由 Graphics2D 的原生循环直接复制, 更快
+        if (w < 0 || h < 0 || (w == image.getWidth() && h == image.getHeight())
+                || !isPlain(canvas) || !isPlain(image)
+                || !isSupportedSource(image.getType()) || !isSupportedTarget(canvas.getType())) return false;
+        int left = Math.max(x, 0);
+        int top = Math.max(y, 0);
+        int right = Math.min(x + w, canvas.getWidth());
+        int bottom = Math.min(y + h, canvas.getHeight());
+        if (clip instanceof Rectangle) {
+            Rectangle rect = (Rectangle) clip;
+            left = Math.max(left, rect.x);
+            top = Math.max(top, rect.y);
+            right = Math.min(right, rect.x + rect.width);
+            bottom = Math.min(bottom, rect.y + rect.height);
+            clip = null;
+        }
+        if (left >= right || top >= bottom) return true;
+        if (clip != null && !clip.contains(left, top, right - left, bottom - top)) return false;
+
+        int extraAlpha = Math.round(Math.max(0F, Math.min(opacity, 1F)) * 255);
+        if (extraAlpha == 0) return true;
+
+        int sw = image.getWidth();
+        int sh = image.getHeight();
+        Scratch s = scratch.get();
+        s.prepare(right - left, sw);
+
+        int columns = right - left;
+        for (int i = 0; i < columns; i++) {
+            double u = (left + i - x + 0.5) * sw / w;
+            if (bilinear) {
+                u -= 0.5;
+                int fu = (int) Math.floor(u);
+                s.x0[i] = clamp(fu, sw);
+                s.x1[i] = clamp(fu + 1, sw);
+                s.wx[i] = (int) ((u - fu) * 256);
+            } else {
+                s.x0[i] = clamp((int) u, sw);
+                s.x1[i] = s.x0[i];
+                s.wx[i] = 0;
+            }
+        }
+
+        s.row0Y = -1;
+        s.row1Y = -1;
+        int type = image.getType();
+        boolean intSource = type == BufferedImage.TYPE_INT_ARGB
+                || type == BufferedImage.TYPE_INT_ARGB_PRE || type == BufferedImage.TYPE_INT_RGB;
+        int[] sourceData = intSource ? ((DataBufferInt) image.getRaster().getDataBuffer()).getData() : null;
+        int sourceMode = type == BufferedImage.TYPE_INT_ARGB ? STRAIGHT
+                : (type == BufferedImage.TYPE_INT_RGB ? OPAQUE : PREMULTIPLIED);
+        for (int dy = top; dy < bottom; dy++) {
+            double v = (dy - y + 0.5) * sh / h;
+            int y0, y1, wy;
+            if (bilinear) {
+                v -= 0.5;
+                int fv = (int) Math.floor(v);
+                y0 = clamp(fv, sh);
+                y1 = clamp(fv + 1, sh);
+                wy = (int) ((v - fv) * 256);
+            } else {
+                y0 = clamp((int) v, sh);
+                y1 = y0;
+                wy = 0;
+            }
+            int[] row0, row1;
+            int offset0, offset1;
+            if (intSource) {
+                // int 类型的源图像直接按索引读取, 读取时转换为预乘
+                row0 = row1 = sourceData;
+                offset0 = y0 * sw;
+                offset1 = y1 * sw;
+            } else {
+                row0 = s.loadRow0(image, y0);
+                row1 = wy == 0 ? row0 : s.loadRow1(image, y1);
+                offset0 = offset1 = 0;
+            }
+            int[] line = s.line;
+            for (int i = 0; i < columns; i++) {
+                int wx = s.wx[i];
+                int x0 = s.x0[i];
+                int p = premultiply(row0[offset0 + x0], sourceMode);
+                if (wx != 0) p = lerp(p, premultiply(row0[offset0 + s.x1[i]], sourceMode), wx);
+                if (wy != 0) {
+                    int q = premultiply(row1[offset1 + x0], sourceMode);
+                    if (wx != 0) q = lerp(q, premultiply(row1[offset1 + s.x1[i]], sourceMode), wx);
+                    p = lerp(p, q, wy);
+                }
+                line[i] = extraAlpha == 255 ? p : scale(p, extraAlpha);
+            }
+            blendLine(canvas, line, left, dy, columns);
+        }
+        return true;
+    }
+
+    private static int premultiply(int p, int mode) {
+        switch (mode) {
+            case STRAIGHT: {
+                int a = p >>> 24;
+                if (a == 255) return p;
+                return a << 24 | mul8(p >> 16 & 0xff, a) << 16 | mul8(p >> 8 & 0xff, a) << 8 | mul8(p & 0xff, a);
+            }
+            case OPAQUE:
+                return p | 0xff000000;
+            default:
+                return p;
+        }
+    }
+
+    /**
+     * 在两个预乘 ARGB 像素间插值
+     *
+     * @param weight b 的权重, 0 ~ 256
+     */
+    private static int lerp(int a, int b, int weight) {
+        int inv = 256 - weight;
+        int ag = (a >>> 8) & 0xff00ff;
+        int rb = a & 0xff00ff;
+        int bag = (b >>> 8) & 0xff00ff;
+        int brb = b & 0xff00ff;
+        ag = (ag * inv + bag * weight + 0x800080) >>> 8 & 0xff00ff;
+        rb = (rb * inv + brb * weight + 0x800080) >>> 8 & 0xff00ff;
+        return ag << 8 | rb;
+    }
+
+    private static int scale(int p, int alpha) {
+        return mul8(p >>> 24, alpha) << 24 | mul8(p >> 16 & 0xff, alpha) << 16
+                | mul8(p >> 8 & 0xff, alpha) << 8 | mul8(p & 0xff, alpha);
+    }
+
+    /**
+     * a * b / 255, 四舍五入
+     */
+    private static int mul8(int a, int b) {
+        int t = a * b + 128;
+        return (t + (t >> 8)) >> 8;
+    }
+
+    private static int div8(int a, int b) {
+        return Math.min((a * 255 + (b >> 1)) / b, 255);
+    }
+
+    private static int clamp(int i, int length) {
+        return i < 0 ? 0 : (i >= length ? length - 1 : i);
+    }
+
+    /**
+     * 将一行预乘 ARGB 像素以 SRC_OVER 混合到画布
+     */
+    private static void blendLine(BufferedImage canvas, int[] line, int x, int y, int length) {
+        WritableRaster raster = canvas.getRaster();
+        switch (canvas.getType()) {
+            case BufferedImage.TYPE_3BYTE_BGR: {
+                byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+                int d = (y * canvas.getWidth() + x) * 3;
+                for (int i = 0; i < length; i++, d += 3) {
+                    int p = line[i];
+                    int sa = p >>> 24;
+                    if (sa == 0) continue;
+                    if (sa == 255) {
+                        data[d] = (byte) p;
+                        data[d + 1] = (byte) (p >> 8);
+                        data[d + 2] = (byte) (p >> 16);
+                        continue;
+                    }
+                    int inv = 255 - sa;
+                    data[d] = (byte) ((p & 0xff) + mul8(data[d] & 0xff, inv));
+                    data[d + 1] = (byte) ((p >> 8 & 0xff) + mul8(data[d + 1] & 0xff, inv));
+                    data[d + 2] = (byte) ((p >> 16 & 0xff) + mul8(data[d + 2] & 0xff, inv));
+                }
+                return;
+            }
+            case BufferedImage.TYPE_4BYTE_ABGR: {
+                byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+                int d = (y * canvas.getWidth() + x) * 4;
+                for (int i = 0; i < length; i++, d += 4) {
+                    int p = line[i];
+                    int sa = p >>> 24;
+                    if (sa == 0) continue;
+                    int da = data[d] & 0xff;
+                    int argb = blendStraight(p, da << 24 | (data[d + 3] & 0xff) << 16
+                            | (data[d + 2] & 0xff) << 8 | (data[d + 1] & 0xff));
+                    data[d] = (byte) (argb >>> 24);
+                    data[d + 1] = (byte) argb;
+                    data[d + 2] = (byte) (argb >> 8);
+                    data[d + 3] = (byte) (argb >> 16);
+                }
+                return;
+            }
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB_PRE: {
+                int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+                boolean opaque = canvas.getType() == BufferedImage.TYPE_INT_RGB;
+                int d = y * canvas.getWidth() + x;
+                for (int i = 0; i < length; i++, d++) {
+                    int p = line[i];
+                    int sa = p >>> 24;
+                    if (sa == 0) continue;
+                    int dst = opaque ? data[d] | 0xff000000 : data[d];
+                    data[d] = sa == 255 ? p : p + scale(dst, 255 - sa);
+                }
+                return;
+            }
+            case BufferedImage.TYPE_INT_ARGB: {
+                int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+                int d = y * canvas.getWidth() + x;
+                for (int i = 0; i < length; i++, d++) {
+                    int p = line[i];
+                    if (p >>> 24 == 0) continue;
+                    data[d] = blendStraight(p, data[d]);
+                }
+                return;
+            }
+            default:
+                throw new IllegalArgumentException("Unsupported canvas type: " + canvas.getType());
+        }
+    }
+
+    /**
+     * @param src 预乘 ARGB
+     * @param dst 非预乘 ARGB
+     * @return 非预乘 ARGB
+     */
+    private static int blendStraight(int src, int dst) {
+        int sa = src >>> 24;
+        if (sa == 255) return unpremultiply(src);
+        int da = dst >>> 24;
+        int inv = mul8(da, 255 - sa);
+        int a = sa + inv;
+        if (a == 0) return 0;
+        int r = (src >> 16 & 0xff) + mul8(dst >> 16 & 0xff, inv);
+        int g = (src >> 8 & 0xff) + mul8(dst >> 8 & 0xff, inv);
+        int b = (src & 0xff) + mul8(dst & 0xff, inv);
+        if (a == 255) return 0xff000000 | r << 16 | g << 8 | b;
+        return a << 24 | div8(r, a) << 16 | div8(g, a) << 8 | div8(b, a);
+    }
+
+    private static int unpremultiply(int p) {
+        int a = p >>> 24;
+        if (a == 255 || a == 0) return p;
+        return a << 24 | div8(p >> 16 & 0xff, a) << 16 | div8(p >> 8 & 0xff, a) << 8 | div8(p & 0xff, a);
+    }
+
+    /**
+     * 读取一行 byte 类型的像素, 转换为预乘 ARGB
+     */
+    private static void readRow(BufferedImage image, int y, int[] row) {
+        int width = image.getWidth();
+        WritableRaster raster = image.getRaster();
+        switch (image.getType()) {
+            case BufferedImage.TYPE_4BYTE_ABGR: {
+                byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+                for (int i = 0, s = y * width * 4; i < width; i++, s += 4) {
+                    int a = data[s] & 0xff;
+                    int r = data[s + 3] & 0xff, g = data[s + 2] & 0xff, b = data[s + 1] & 0xff;
+                    row[i] = a == 255 ? 0xff000000 | r << 16 | g << 8 | b
+                            : a << 24 | mul8(r, a) << 16 | mul8(g, a) << 8 | mul8(b, a);
+                }
+                return;
+            }
+            case BufferedImage.TYPE_3BYTE_BGR: {
+                byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+                for (int i = 0, s = y * width * 3; i < width; i++, s += 3) {
+                    row[i] = 0xff000000 | (data[s + 2] & 0xff) << 16 | (data[s + 1] & 0xff) << 8 | (data[s] & 0xff);
+                }
+                return;
+            }
+            default:
+                throw new IllegalArgumentException("Unsupported image type: " + image.getType());
+        }
+    }
+
+    private static boolean isSupportedSource(int type) {
+        switch (type) {
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_INT_ARGB_PRE:
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_4BYTE_ABGR:
+            case BufferedImage.TYPE_3BYTE_BGR:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isSupportedTarget(int type) {
+        switch (type) {
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR:
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_INT_ARGB_PRE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 像素数组从 0 开始且行间无间隔 (非子图像)
+     */
+    private static boolean isPlain(BufferedImage image) {
+        WritableRaster raster = image.getRaster();
+        return raster.getParent() == null
+                && raster.getDataBuffer().getNumBanks() == 1
+                && raster.getDataBuffer().getOffset() == 0
+                && raster.getSampleModelTranslateX() == 0
+                && raster.getSampleModelTranslateY() == 0;
+    }
+
+    /**
+     * 线程内复用的临时数组, 只增不减
+     */
+    private static class Scratch {
+        int[] x0 = new int[0];
+        int[] x1 = new int[0];
+        int[] wx = new int[0];
+        int[] line = new int[0];
+        int[] row0 = new int[0];
+        int[] row1 = new int[0];
+        int row0Y;
+        int row1Y;
+
+        void prepare(int columns, int sourceWidth) {
+            if (x0.length < columns) {
+                x0 = new int[columns];
+                x1 = new int[columns];
+                wx = new int[columns];
+                line = new int[columns];
+            }
+            if (row0.length < sourceWidth) {
+                row0 = new int[sourceWidth];
+                row1 = new int[sourceWidth];
+            }
+        }
+
+        int[] loadRow0(BufferedImage image, int y) {
+            if (row0Y != y) {
+                if (row1Y == y) {
+                    swap();
+                } else {
+                    readRow(image, y, row0);
+                    row0Y = y;
+                }
+            }
+            return row0;
+        }
+
+        int[] loadRow1(BufferedImage image, int y) {
+            if (row1Y != y) {
+                readRow(image, y, row1);
+                row1Y = y;
+            }
+            return row1;
+        }
+
+        private void swap() {
+            int[] row = row0;
+            row0 = row1;
+            row1 = row;
+            int rowY = row0Y;
+            row0Y = row1Y;
+            row1Y = rowY;
+        }
+    }
+}
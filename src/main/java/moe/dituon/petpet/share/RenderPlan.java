@@ -0,0 +1,282 @@
+package moe.dituon.petpet.share;
+
+import kotlinx.serialization.json.JsonArray;
+import kotlinx.serialization.json.JsonElement;
+import kotlinx.serialization.json.JsonPrimitive;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * 预编译的模板渲染计划, 由 TemplateDTO 构建后只读, 可被多个请求共享
+ * <br/>
+ * 坐标, 变形数据, 表达式, 字体与颜色只解析一次, 每次请求只需绑定头像与文字
+ */
+public class RenderPlan {
+    public final Type type;
+    public final int delay;
+    public final boolean reverse;
+    /**
+     * 模板指定的量化器, 可为 null
+     */
+    public final Quantizer quantizer;
+    /**
+     * 背景配置, 可为 null
+     */
+    public final BackgroundData background;
+    public final List<AvatarPlan> avatars;
+    public final List<TextPlan> texts;
+
+    public RenderPlan(TemplateDTO data) {
+        type = data.getType();
+        delay = data.getDelay() != null ? data.getDelay() : 65;
+        reverse = Boolean.TRUE.equals(data.getReverse());
+        quantizer = data.getQuantizer();
+        background = data.getBackground();
+        avatars = data.getAvatar().stream()
+                .map(avatar -> new AvatarPlan(avatar, type))
+                .collect(Collectors.toUnmodifiableList());
+        texts = data.getText().stream()
+                .map(TextPlan::new)
+                .collect(Collectors.toUnmodifiableList());
+    }
+
+    public ArrayList<AvatarModel> bindAvatars(GifAvatarExtraDataProvider extraData) {
+        ArrayList<AvatarModel> avatarList = new ArrayList<>(avatars.size());
+        for (AvatarPlan avatar : avatars) {
+            avatarList.add(new AvatarModel(avatar, extraData));
+        }
+        return avatarList;
+    }
+
+    /**
+     * @param additionTextDataList 请求附加的文字, 每次请求单独解析, 可为 null
+     */
+    public ArrayList<TextModel> bindTexts(TextExtraData extraData, List<TextData> additionTextDataList) {
+        ArrayList<TextModel> textList = new ArrayList<>(texts.size());
+        for (TextPlan text : texts) {
+            textList.add(new TextModel(text, extraData));
+        }
+        if (additionTextDataList != null) {
+            for (TextData text : additionTextDataList) {
+                textList.add(new TextModel(text, extraData));
+            }
+        }
+        return textList;
+    }
+
+    public static class AvatarPlan {
+        public final AvatarType type;
+        public final Type imageType;
+        public final AvatarPosType posType;
+        /**
+         * 每帧坐标, 含表达式的项为 0
+         */
+        private final int[][] pos;
+        /**
+         * 与 pos 对应的表达式, 不含表达式时为 null
+         */
+        private final ArithmeticParser.Expression[][] posExpressions;
+        public final AvatarModel.DeformData deformData;
+        public final CropType cropType;
+        public final int[] cropPos;
+        public final FitType fitType;
+        public final List<AvatarStyle> styleList;
+        public final List<AvatarFilter> filterList;
+        public final short angle;
+        public final TransformOrigin transformOrigin;
+        public final float opacity;
+        public final boolean round;
+        public final boolean rotate;
+        public final boolean onTop;
+        public final boolean antialias;
+        public final boolean resampling;
+        public final boolean preResampling;
+
+        public AvatarPlan(AvatarData data, Type imageType) {
+            this.type = data.getType();
+            this.imageType = imageType;
+            this.posType = data.getPosType();
+            int[][] pos = {{0, 0, 100, 100}};
+            ArithmeticParser.Expression[][] posExpressions = new ArithmeticParser.Expression[1][];
+            AvatarModel.DeformData deformData = null;
+            JsonArray posElements = data.getPos();
+            switch (posType) {
+                case ZOOM:
+                    switch (imageType) {
+                        case GIF:
+                            pos = new int[posElements.size()][4];
+                            posExpressions = new ArithmeticParser.Expression[posElements.size()][];
+                            int i = 0;
+                            for (JsonElement je : posElements) {
+                                JsonArray ja = (JsonArray) je;
+                                if (ja.size() != 4) break;
+                                posExpressions[i] = parseExpressions(ja);
+                                pos[i++] = parseInts(ja);
+                            }
+                            break;
+                        case IMG:
+                            posExpressions[0] = parseExpressions(posElements);
+                            pos[0] = parseInts(posElements);
+                            break;
+                    }
+                    break;
+                case DEFORM:
+                    switch (imageType) {
+                        case GIF:
+                            try {
+                                deformData = AvatarModel.DeformData.fromGifPos(posElements);
+                            } catch (Exception ignored) {
+                                // 坐标不是逐帧数组时按单帧处理
+                                deformData = AvatarModel.DeformData.fromImgPos(posElements);
+                            }
+                            break;
+                        case IMG:
+                            deformData = AvatarModel.DeformData.fromImgPos(posElements);
+                            break;
+                    }
+                    break;
+            }
+            this.pos = pos;
+            this.posExpressions = hasExpression(posExpressions) ? posExpressions : null;
+            this.deformData = deformData;
+
+            this.cropType = data.getCropType();
+            int[] crop = data.getCrop();
+            this.cropPos = crop == null || crop.length == 0 ? null
+                    : crop.length == 2 ? new int[]{0, 0, crop[0], crop[1]} : crop.clone();
+            this.fitType = data.getFit();
+            this.styleList = List.copyOf(data.getStyle());
+            this.filterList = List.copyOf(data.getFilter());
+            this.angle = data.getAngle();
+            this.transformOrigin = data.getOrigin();
+            this.opacity = data.getOpacity();
+            this.round = data.getRound();
+            this.rotate = data.getRotate();
+            this.onTop = data.getAvatarOnTop();
+            this.antialias = Boolean.TRUE.equals(data.getAntialias());
+            this.resampling = Boolean.TRUE.equals(data.getResampling());
+            this.preResampling = data.getPreResampling();
+        }
+
+        /**
+         * 坐标是否依赖头像尺寸
+         */
+        public boolean isDynamicPos() {
+            return posExpressions != null;
+        }
+
+        /**
+         * @return 共享的坐标数组, 不应修改; 含表达式的项为 0
+         */
+        public int[][] getPos() {
+            return pos;
+        }
+
+        /**
+         * 代入头像尺寸计算坐标, 坐标不含表达式时返回共享的数组, 不应修改
+         */
+        public int[][] resolvePos(int width, int height) {
+            if (posExpressions == null) return pos;
+            Map<String, Integer> variables = Map.of("width", width, "height", height);
+            int[][] result = new int[pos.length][];
+            for (int f = 0; f < pos.length; f++) {
+                ArithmeticParser.Expression[] expressions = posExpressions[f];
+                if (expressions == null) {
+                    result[f] = pos[f];
+                    continue;
+                }
+                result[f] = pos[f].clone();
+                for (int i = 0; i < expressions.length; i++) {
+                    if (expressions[i] != null) result[f][i] = (int) expressions[i].eval(variables);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * 嵌套数组只取第一个子数组, 例如 [[0, 0, 100, 100]]
+         */
+        private static JsonArray unwrap(JsonArray ja) {
+            for (JsonElement je : ja) {
+                if (je instanceof JsonArray) return unwrap((JsonArray) je);
+            }
+            return ja;
+        }
+
+        private static int[] parseInts(JsonArray ja) {
+            ja = unwrap(ja);
+            int[] result = new int[ja.size()];
+            short i = 0;
+            for (JsonElement je : ja) {
+                try {
+                    result[i] = Integer.parseInt(((JsonPrimitive) je).getContent());
+                } catch (NumberFormatException ignored) {
+                }
+                i++;
+            }
+            return result;
+        }
+
+        private static ArithmeticParser.Expression[] parseExpressions(JsonArray ja) {
+            ja = unwrap(ja);
+            ArithmeticParser.Expression[] result = null;
+            short i = 0;
+            for (JsonElement je : ja) {
+                String str = ((JsonPrimitive) je).getContent();
+                try {
+                    Integer.parseInt(str);
+                } catch (NumberFormatException ignored) {
+                    if (result == null) result = new ArithmeticParser.Expression[ja.size()];
+                    result[i] = ArithmeticParser.compile(str);
+                }
+                i++;
+            }
+            return result;
+        }
+
+        private static boolean hasExpression(ArithmeticParser.Expression[][] posExpressions) {
+            for (ArithmeticParser.Expression[] expressions : posExpressions) {
+                if (expressions != null) return true;
+            }
+            return false;
+        }
+    }
+
+    public static class TextPlan {
+        public final String text;
+        public final boolean greedy;
+        public final int[] pos;
+        public final short angle;
+        public final Color color;
+        public final Font font;
+        public final TextAlign align;
+        public final TextWrap wrap;
+        /**
+         * 长度不为 2 时为 null
+         */
+        public final List<Position> position;
+        public final TransformOrigin transformOrigin;
+        public final short strokeSize;
+        public final Color strokeColor;
+
+        public TextPlan(TextData data) {
+            text = data.getText();
+            greedy = data.getGreedy();
+            pos = data.getPos().clone();
+            angle = data.getAngle();
+            color = data.getAwtColor();
+            font = new Font(data.getFont(), data.getStyle().getValue(), data.getSize());
+            align = data.getAlign();
+            wrap = data.getWrap();
+            List<Position> position = data.getPosition();
+            this.position = position == null || position.size() != 2 ? null : List.copyOf(position);
+            transformOrigin = data.getOrigin();
+            strokeSize = data.getStrokeSize();
+            strokeColor = data.getStrokeAwtColor();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package moe.dituon.petpet.share;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+/**
+ * 渲染调度器: 帧合成, 条带绘制, 头像预处理与 GIF 编码共用的工作窃取线程池
+ * <br/>
+ * 在工作线程中提交的子任务由当前线程 fork 后 join, 等待期间执行其他任务, 嵌套提交不会占住工作线程;
+ * 各请求的根任务进入共享提交队列, 空闲线程从各队列窃取任务, 并行度在并发请求间大致平分
+ * <br/>
+ * 调整并行度时新请求使用新线程池, 旧线程池在其上的请求全部结束后关闭, 不会丢弃任务
+ */
+public class RenderScheduler extends ForkJoinPool {
+    protected static volatile RenderScheduler current = new RenderScheduler(BasePetService.DEFAULT_THREAD_POOL_SIZE);
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    /**
+     * 正在使用此线程池的请求数
+     */
+    protected final AtomicInteger requests = new AtomicInteger();
+    protected volatile boolean retired = false;
+
+    protected RenderScheduler(int parallelism) {
+        super(parallelism, Worker::new, null, false);
+    }
+
+    public static RenderScheduler getCurrent() {
+        return current;
+    }
+
+    /**
+     * 调整并行度, 正在进行的请求继续在原线程池中完成
+     */
+    public static synchronized void resize(int parallelism) {
+        RenderScheduler old = current;
+        if (old.getParallelism() == parallelism) return;
+        current = new RenderScheduler(parallelism);
+        old.retired = true;
+        if (old.requests.get() == 0) old.shutdown();
+    }
+
+    /**
+     * 占用调度器直到 Lease 关闭, 期间线程池不会被关闭
+     * <br/>
+     * 在工作线程中调用时返回所在的线程池, 嵌套的任务不计入请求数
+     */
+    public static Lease lease() {
+        Thread thread = Thread.currentThread();
+        if (thread instanceof Worker) {
+            return new Lease(((Worker) thread).scheduler, false);
+        }
+        while (true) {
+            RenderScheduler scheduler = current;
+            scheduler.requests.incrementAndGet();
+            if (!scheduler.retired) return new Lease(scheduler, true);
+            scheduler.release();
+        }
+    }
+
+    protected void release() {
+        if (requests.decrementAndGet() == 0 && retired) shutdown();
+    }
+
+    /**
+     * 并行执行 number 个任务并按索引返回结果, 任一任务抛出的异常会在调用线程中重新抛出
+     *
+     * @param fun 参数为任务索引 (在线程池中调用)
+     */
+    public static <T> List<T> invokeAll(int number, IntFunction<T> fun) {
+        List<ForkJoinTask<T>> tasks = new ArrayList<>(number);
+        for (int i = 0; i < number; i++) {
+            int fi = i;
+            tasks.add(ForkJoinTask.adapt(() -> fun.apply(fi)));
+        }
+        if (Thread.currentThread() instanceof Worker) {
+            ForkJoinTask.invokeAll(tasks);
+        } else {
+            try (Lease lease = lease()) {
+                lease.scheduler.invoke(ForkJoinTask.adapt(() -> {
+                    ForkJoinTask.invokeAll(tasks);
+                }));
+            }
+        }
+        @SuppressWarnings("unchecked")
+        T[] result = (T[]) new Object[number];
+        for (int i = 0; i < number; i++) result[i] = tasks.get(i).getRawResult();
+        return Arrays.asList(result);
+    }
+
+    /**
+     * 单个请求同时处理中的帧数, 按并发请求数平分
+     */
+    public int getWindowSize() {
+        return Math.max(2, getParallelism() * 2 / Math.max(1, requests.get()));
+    }
+
+    /**
+     * 等待执行的任务数 (提交队列与工作队列之和)
+     */
+    public long getQueueDepth() {
+        return getQueuedSubmissionCount() + getQueuedTaskCount();
+    }
+
+    public static Stats getStats() {
+        RenderScheduler scheduler = current;
+        return new Stats(scheduler.getParallelism(), scheduler.requests.get(),
+                scheduler.getActiveThreadCount(), scheduler.getQueueDepth(), scheduler.getStealCount());
+    }
+
+    public static class Lease implements AutoCloseable {
+        public final RenderScheduler scheduler;
+        protected final boolean counted;
+        private boolean closed = false;
+
+        protected Lease(RenderScheduler scheduler, boolean counted) {
+            this.scheduler = scheduler;
+            this.counted = counted;
+        }
+
+        public RenderScheduler getPool() {
+            return scheduler;
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            if (counted) scheduler.release();
+        }
+    }
+
+    public static class Stats {
+        public final int parallelism;
+        public final int requests;
+        public final int activeThreads;
+        public final long queueDepth;
+        public final long steals;
+
+        public Stats(int parallelism, int requests, int activeThreads, long queueDepth, long steals) {
+            this.parallelism = parallelism;
+            this.requests = requests;
+            this.activeThreads = activeThreads;
+            this.queueDepth = queueDepth;
+            this.steals = steals;
+        }
+
+        @Override
+        public String toString() {
+            return "parallelism=" + parallelism + " requests=" + requests + " active=" + activeThreads
+                    + " queued=" + queueDepth + " steals=" + steals;
+        }
+    }
+
+    protected static class Worker extends ForkJoinWorkerThread {
+        protected final RenderScheduler scheduler;
+
+        protected Worker(ForkJoinPool pool) {
+            super(pool);
+            this.scheduler = (RenderScheduler) pool;
+            setName("petpet-render-" + threadCount.incrementAndGet());
+        }
+    }
+}
@@ -1,10 +1,14 @@
 package moe.dituon.petpet.share;
 
 import java.awt.*;
+import java.awt.font.FontRenderContext;
 import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -37,20 +41,26 @@ public class TextModel {
     private int height;
 
     public TextModel(TextData textData, TextExtraData extraInfo) {
+        this(new RenderPlan.TextPlan(textData), extraInfo);
+    }
+
+    /**
+     * 由预编译的渲染计划构建, 只需替换文本并排版
+     */
+    public TextModel(RenderPlan.TextPlan plan, TextExtraData extraInfo) {
         text = extraInfo != null ? buildText(
-                textData.getText(), extraInfo, textData.getGreedy()
-        ) : textData.getText();
-        pos = textData.getPos();
-        angle = textData.getAngle();
-        color = textData.getAwtColor();
-        font = parseFont(textData.getFont(), textData.getSize(), textData.getStyle());
-        align = textData.getAlign();
-        wrap = textData.getWrap();
-        position = textData.getPosition();
-        if (position == null || position.size() != 2) position = null;
-        transformOrigin = textData.getOrigin();
-        strokeSize = textData.getStrokeSize();
-        strokeColor = textData.getStrokeAwtColor();
+                plan.text, extraInfo, plan.greedy
+        ) : plan.text;
+        pos = plan.pos;
+        angle = plan.angle;
+        color = plan.color;
+        font = plan.font;
+        align = plan.align;
+        wrap = plan.wrap;
+        position = plan.position;
+        transformOrigin = plan.transformOrigin;
+        strokeSize = plan.strokeSize;
+        strokeColor = plan.strokeColor;
         build();
     }
 
@@ -88,10 +98,6 @@ public class TextModel {
         return text;
     }
 
-    private static Font parseFont(String fontName, int size, TextStyle style) {
-        return new Font(fontName, style.getValue(), size);
-    }
-
     public void build() {
         int fx = x = pos[0];
         int fy = y = pos[1];
@@ -175,53 +181,66 @@ public class TextModel {
      * @param stickerHeight 画布高度, 用于计算坐标
      */
     public void drawAsG2d(Graphics2D g2d, int stickerWidth, int stickerHeight) {
-        AffineTransform old = null;
-        if (angle != 0) {
-            old = g2d.getTransform();
-            if (transformOrigin == TransformOrigin.CENTER) {
-                g2d.rotate(Math.toRadians(angle), (float) width / 2 + x, (float) height / 2 + y);
-            } else {
-                g2d.rotate(Math.toRadians(angle), x, y);
-            }
-        }
+        prepareG2d(stickerWidth, stickerHeight).accept(g2d);
+    }
 
+    /**
+     * 预先计算文字, 字体与坐标, 返回的绘制操作可在多个 Graphics2D (条带) 上重复执行
+     * <br/>
+     * 描边文字的轮廓按画布的 FontRenderContext 构建一次, 之后复用
+     */
+    public Consumer<Graphics2D> prepareG2d(int stickerWidth, int stickerHeight) {
+        // 旋转中心取缩放字体之前的尺寸
+        double originX = transformOrigin == TransformOrigin.CENTER ? (float) width / 2 + x : x;
+        double originY = transformOrigin == TransformOrigin.CENTER ? (float) height / 2 + y : y;
+        int[] pos = getPos();
+        String text = getText();
+        Font font = getFont();
+
+        Consumer<Graphics2D> painter;
         if (position == null) {
-            ImageSynthesisCore.g2dDrawText(
-                    g2d, getText(), getPos(),
-                    color, getFont()
-            );
-            return;
-        }
-        int fx = x, fy = y;
-        switch (position.get(0)) {
-            case RIGHT:
-                fx = stickerWidth - fx;
-                break;
-            case CENTER:
-                fx = stickerWidth / 2 + fx;
-                break;
-        }
-        switch (position.get(1)) {
-            case BOTTOM:
-                fy = stickerHeight - fy;
-                break;
-            case CENTER:
-                fy = stickerHeight / 2 + fy;
-                break;
-        }
+            painter = g2d -> ImageSynthesisCore.g2dDrawText(g2d, text, pos, color, font);
+        } else {
+            int fx = x, fy = y;
+            switch (position.get(0)) {
+                case RIGHT:
+                    fx = stickerWidth - fx;
+                    break;
+                case CENTER:
+                    fx = stickerWidth / 2 + fx;
+                    break;
+            }
+            switch (position.get(1)) {
+                case BOTTOM:
+                    fy = stickerHeight - fy;
+                    break;
+                case CENTER:
+                    fy = stickerHeight / 2 + fy;
+                    break;
+            }
 
-        int[] fPos = new int[]{fx, fy, width, height};
-        if (strokeSize != 0) {
-            ImageSynthesisCore.g2dDrawStrokeText(
-                    g2d, getText(), fPos,
-                    color, getFont(), strokeSize, strokeColor
-            );
-            return;
+            int[] fPos = new int[]{fx, fy, pos[2], pos[3]};
+            if (strokeSize != 0) {
+                Map<FontRenderContext, Shape[]> shapes = new ConcurrentHashMap<>(2);
+                painter = g2d -> ImageSynthesisCore.g2dDrawStrokeText(
+                        g2d, frc -> shapes.computeIfAbsent(frc, k ->
+                                ImageSynthesisCore.buildStrokeTextShapes(text, fPos, font, strokeSize, k)),
+                        color, strokeSize, strokeColor
+                );
+            } else {
+                painter = g2d -> ImageSynthesisCore.g2dDrawText(g2d, text, fPos, color, font);
+            }
         }
+        if (angle == 0) return painter;
 
-        ImageSynthesisCore.g2dDrawText(g2d, getText(), fPos, color, getFont());
-
-        if (angle != 0) g2d.setTransform(old);
+        // 描边与无坐标的文字不恢复变换, 与之前的绘制结果保持一致
+        boolean restore = position != null && strokeSize == 0;
+        return g2d -> {
+            AffineTransform old = g2d.getTransform();
+            g2d.rotate(Math.toRadians(angle), originX, originY);
+            painter.accept(g2d);
+            if (restore) g2d.setTransform(old);
+        };
     }
 
     /**
@@ -4,4 +4,11 @@ import java.awt.*;
 
 public interface Drawable {
     void draw(Graphics2D g2d, FrameInfo info);
+
+    /**
+     * 预先完成与绘制区域无关的处理 (变形等), 返回的元素可在多个 Graphics2D (条带) 上重复绘制第 info.index 帧
+     */
+    default Drawable prepare(FrameInfo info) {
+        return this;
+    }
 }
@@ -14,6 +14,10 @@ public class FrameInfo {
     public int canvasWidth;
     public int canvasHeight;
     public float multiple = 1.0F;
+    /**
+     * 绘制的目标画布, 可为 null; 元素可以绕过 Graphics2D 直接写入像素
+     */
+    public BufferedImage canvas;
 
     public FrameInfo(int index, int canvasWidth, int canvasHeight) {
         this.index = index;
@@ -2,6 +2,7 @@ package moe.dituon.petpet.share.element.avatar;
 
 import moe.dituon.petpet.share.AvatarData;
 import moe.dituon.petpet.share.ImageDeformer;
+import moe.dituon.petpet.share.element.Drawable;
 import moe.dituon.petpet.share.element.FrameInfo;
 import moe.dituon.petpet.share.position.PositionP4ACollection;
 
@@ -25,11 +26,16 @@ public class AvatarDeformModel extends AvatarModel {
 
     @Override
     public void draw(Graphics2D g2d, FrameInfo info) {
+        prepare(info).draw(g2d, info);
+    }
+
+    @Override
+    public Drawable prepare(FrameInfo info) {
         var pos = this.pos.getPosition(info.index);
         var anchorPos = this.pos.getAnchor(info.index);
         var avatarImage = super.imageList.get(info.index % super.imageList.size());
         BufferedImage result = ImageDeformer.computeImage(avatarImage, pos);
-        g2d.drawImage(result, anchorPos[0], anchorPos[1], null);
+        return (g2d, frame) -> g2d.drawImage(result, anchorPos[0], anchorPos[1], null);
     }
 
     @Override
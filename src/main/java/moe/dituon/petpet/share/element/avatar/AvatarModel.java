@@ -4,7 +4,9 @@ import com.jhlabs.image.*;
 import lombok.Getter;
 import moe.dituon.petpet.share.*;
 import moe.dituon.petpet.share.element.TemplateElement;
+import moe.dituon.petpet.share.filter.DisplacementFilter;
 import moe.dituon.petpet.share.filter.PetpetOilFilter;
+import moe.dituon.petpet.share.filter.PixelPipeline;
 
 import java.awt.image.BufferedImage;
 import java.util.Collections;
@@ -25,6 +27,11 @@ public abstract class AvatarModel implements TemplateElement {
     protected List<BufferedImage> imageList;
     protected final boolean antialias;
     protected final boolean resampling;
+    protected final boolean preResampling;
+    /**
+     * 样式与滤镜的缓存标识, 为 null 时不缓存预处理结果
+     */
+    protected final Object derivativeKey;
     protected final AvatarPosType posType;
     protected CropType cropType;
     protected int[] cropPos;
@@ -51,6 +58,8 @@ public abstract class AvatarModel implements TemplateElement {
         onTop = data.getAvatarOnTop();
         antialias = Boolean.TRUE.equals(data.getAntialias());
         resampling = Boolean.TRUE.equals(data.getResampling());
+        preResampling = data.getPreResampling();
+        derivativeKey = AvatarDerivativeCache.getFilterKey(styleList, filterList);
         if (initFlag) buildImage();
     }
 
@@ -81,36 +90,87 @@ public abstract class AvatarModel implements TemplateElement {
         }
     }
 
+    /**
+     * 预处理头像, 参数相同的结果在模板与请求间缓存
+     */
     public BufferedImage buildImage(int index, BufferedImage image) {
+        return buildImage(index, image, cropType, cropPos);
+    }
+
+    /**
+     * 各帧并行处理, 逐帧计算的裁切以参数传入, 不修改共享的字段
+     */
+    protected BufferedImage buildImage(int index, BufferedImage image, CropType cropType, int[] cropPos) {
+        List<Object> params = AvatarDerivativeCache.getParams(derivativeKey, styleList, filterList,
+                cropType, cropPos, round, antialias, getResampleSize(), preResampling, index);
+        if (params == null) return processImage(index, image, cropType, cropPos);
+        return ImageSynthesis.getDerivativeCache().get(
+                image, params, () -> processImage(index, image, cropType, cropPos));
+    }
+
+    protected BufferedImage processImage(int index, BufferedImage image, CropType cropType, int[] cropPos) {
         if (cropType != CropType.NONE) {
             image = ImageSynthesis.cropImage(image, cropType, cropPos);
         }
 
-        if (!styleList.isEmpty()) image = buildStyledImage(image);
+        // 源图像远大于绘制尺寸时先缩放, 滤镜参数按缩放比例调整
+        int resampleSize = getResampleSize();
+        boolean preResample = preResampling && ImageSynthesis.shouldPreResample(image, resampleSize, filterList);
+        float filterScale = 1F;
+        if (preResample) {
+            int width = image.getWidth();
+            image = ImageSynthesis.resampleImage(image, resampleSize);
+            filterScale = (float) image.getWidth() / width;
+        }
+
+        // 相邻的逐像素样式与滤镜合并为一次遍历
+        PixelPipeline pixels = new PixelPipeline();
+        if (!styleList.isEmpty()) image = buildStyledImage(image, pixels);
+
+        if (!filterList.isEmpty()) image = buildFilteredImage(index, image, pixels, filterScale);
 
-        if (!filterList.isEmpty()) image = buildFilteredImage(index, image);
+        image = pixels.flush(image);
 
         if (round) {
             image = ImageSynthesis.convertCircular(image, antialias);
         }
 
+        if (resampleSize > 0 && !preResample) {
+            image = ImageSynthesis.resampleImage(image, resampleSize);
+        }
+
         return image;
     }
 
+    /**
+     * 重采样尺寸, 不重采样时为 0
+     */
+    protected int getResampleSize() {
+        return 0;
+    }
+
     protected BufferedImage buildStyledImage(BufferedImage image) {
+        PixelPipeline pixels = new PixelPipeline();
+        return pixels.flush(buildStyledImage(image, pixels));
+    }
+
+    /**
+     * @param pixels 逐像素的样式加入流水线, 由调用者输出
+     */
+    protected BufferedImage buildStyledImage(BufferedImage image, PixelPipeline pixels) {
         for (AvatarStyle style : styleList) {
             switch (style) {
                 case FLIP:
-                    image = ImageSynthesis.flipImage(image);
+                    image = ImageSynthesis.flipImage(pixels.flush(image));
                     break;
                 case MIRROR:
-                    image = ImageSynthesis.mirrorImage(image);
+                    image = ImageSynthesis.mirrorImage(pixels.flush(image));
                     break;
                 case GRAY:
-                    image = ImageSynthesis.grayImage(image);
+                    pixels.gray();
                     break;
                 case BINARIZATION:
-                    image = ImageSynthesis.binarizeImage(image);
+                    pixels.binarize();
                     break;
             }
         }
@@ -118,15 +178,42 @@ public abstract class AvatarModel implements TemplateElement {
     }
 
     protected BufferedImage buildFilteredImage(int i, BufferedImage image) {
+        PixelPipeline pixels = new PixelPipeline();
+        return pixels.flush(buildFilteredImage(i, image, pixels, 1F));
+    }
+
+    /**
+     * @param pixels 逐像素的滤镜 (对比度, HSB) 加入流水线, 由调用者输出; 其他滤镜执行前先输出流水线
+     * @param scale  图像相对源图像的缩放比例, 以像素为单位的滤镜参数 (半径, 间距) 按此比例缩放
+     */
+    protected BufferedImage buildFilteredImage(int i, BufferedImage image, PixelPipeline pixels, float scale) {
         for (AvatarFilter filter : filterList) {
+            if (filter instanceof AvatarContrastFilter) {
+                AvatarContrastFilter contrastFilter = (AvatarContrastFilter) filter;
+                pixels.contrast(
+                        getNElement(contrastFilter.getContrast(), i) + 1f,
+                        getNElement(contrastFilter.getBrightness(), i) + 1f
+                );
+                continue;
+            }
+            if (filter instanceof AvatarHSBFilter) {
+                AvatarHSBFilter hsbFilter = (AvatarHSBFilter) filter;
+                pixels.hsb(
+                        getNElement(hsbFilter.getHue(), i),
+                        getNElement(hsbFilter.getSaturation(), i),
+                        getNElement(hsbFilter.getBrightness(), i)
+                );
+                continue;
+            }
+            image = pixels.flush(image);
             if (filter instanceof AvatarSwirlFilter) {
                 AvatarSwirlFilter swirlFilter = (AvatarSwirlFilter) filter;
-                TwirlFilter tFilter = new TwirlFilter();
-                tFilter.setRadius(getNElement(swirlFilter.getRadius(), i));
-                tFilter.setAngle(getNElement(swirlFilter.getAngle(), i) / 2);
-                tFilter.setCentreX(getNElement(swirlFilter.getX(), i));
-                tFilter.setCentreY(getNElement(swirlFilter.getY(), i));
-                image = tFilter.filter(image, null);
+                image = DisplacementFilter.twirl(image,
+                        getNElement(swirlFilter.getRadius(), i) * scale,
+                        getNElement(swirlFilter.getAngle(), i) / 2,
+                        getNElement(swirlFilter.getX(), i),
+                        getNElement(swirlFilter.getY(), i)
+                );
             } else if (filter instanceof AvatarBulgeFilter) {
                 AvatarBulgeFilter bulgeFilter = (AvatarBulgeFilter) filter;
 
@@ -134,7 +221,7 @@ public abstract class AvatarModel implements TemplateElement {
                 int y = Math.round(image.getHeight() * getNElement(bulgeFilter.getY(), i));
 
                 float radius = getNElement(bulgeFilter.getRadius(), i) != 0
-                        ? getNElement(bulgeFilter.getRadius(), i) : Math.min(x, y);
+                        ? getNElement(bulgeFilter.getRadius(), i) * scale : Math.min(x, y);
 
                 image = ImageSynthesis.bulgePinchImage(
                         image, x, y, radius, getNElement(bulgeFilter.getStrength(), i)
@@ -142,21 +229,8 @@ public abstract class AvatarModel implements TemplateElement {
             } else if (filter instanceof AvatarBlurFilter) {
                 AvatarBlurFilter blurFilter = (AvatarBlurFilter) filter;
                 BoxBlurFilter bFilter = new BoxBlurFilter();
-                bFilter.setRadius(getNElement(blurFilter.getRadius(), i));
+                bFilter.setRadius(getNElement(blurFilter.getRadius(), i) * scale);
                 image = bFilter.filter(image, null);
-            } else if (filter instanceof AvatarContrastFilter) {
-                AvatarContrastFilter contrastFilter = (AvatarContrastFilter) filter;
-                ContrastFilter cFilter = new ContrastFilter();
-                cFilter.setContrast(getNElement(contrastFilter.getContrast(), i) + 1f);
-                cFilter.setBrightness(getNElement(contrastFilter.getBrightness(), i) + 1f);
-                image = cFilter.filter(image, null);
-            } else if (filter instanceof AvatarHSBFilter) {
-                AvatarHSBFilter hsbFilter = (AvatarHSBFilter) filter;
-                HSBAdjustFilter hFilter = new HSBAdjustFilter();
-                hFilter.setHFactor(getNElement(hsbFilter.getHue(), i));
-                hFilter.setSFactor(getNElement(hsbFilter.getSaturation(), i));
-                hFilter.setBFactor(getNElement(hsbFilter.getBrightness(), i));
-                image = hFilter.filter(image, null);
             } else if (filter instanceof AvatarHalftoneFilter) {
                 AvatarHalftoneFilter halftoneFilter = (AvatarHalftoneFilter) filter;
                 ColorHalftoneFilter cFilter = new ColorHalftoneFilter();
@@ -174,7 +248,8 @@ public abstract class AvatarModel implements TemplateElement {
                 cFilter.setCyanScreenAngle(angle);
                 cFilter.setMagentaScreenAngle(angle);
                 cFilter.setYellowScreenAngle(angle);
-                image = ImageSynthesis.grayImage(cFilter.filter(image, null));
+                image = cFilter.filter(image, null);
+                pixels.gray();
             } else if (filter instanceof AvatarNoiseFilter) {
                 AvatarNoiseFilter noiseFilter = (AvatarNoiseFilter) filter;
                 NoiseFilter nFilter = new NoiseFilter();
@@ -185,20 +260,22 @@ public abstract class AvatarModel implements TemplateElement {
                 image = dFilter.filter(image, null);
             } else if (filter instanceof AvatarSwimFilter) {
                 AvatarSwimFilter swimFilter = (AvatarSwimFilter) filter;
-                SwimFilter sFilter = new SwimFilter();
-                sFilter.setScale(getNElement(swimFilter.getScale(), i));
-                sFilter.setStretch(getNElement(swimFilter.getStretch(), i));
-                sFilter.setAmount(getNElement(swimFilter.getAmount(), i));
-                sFilter.setAngle(getNElement(swimFilter.getAngle(), i));
-                sFilter.setTurbulence(getNElement(swimFilter.getTurbulence(), i));
-                sFilter.setTime(getNElement(swimFilter.getTime(), i));
-                image = sFilter.filter(image, null);
+                image = DisplacementFilter.swim(image,
+                        getNElement(swimFilter.getScale(), i) * scale,
+                        getNElement(swimFilter.getStretch(), i),
+                        getNElement(swimFilter.getAmount(), i) * scale,
+                        getNElement(swimFilter.getAngle(), i),
+                        getNElement(swimFilter.getTurbulence(), i),
+                        getNElement(swimFilter.getTime(), i)
+                );
             } else if (filter instanceof AvatarOilFilter) {
                 AvatarOilFilter oilFilter = (AvatarOilFilter) filter;
                 PetpetOilFilter oFilter = new PetpetOilFilter();
                 oFilter.setLevels((int) getNElement(oilFilter.getLevels(), i));
-                oFilter.setSkip((int) getNElement(oilFilter.getSkip(), i));
-                oFilter.setRange((int) getNElement(oilFilter.getRange(), i));
+                oFilter.setSkip(AvatarDerivativeCache.scaleFilterPixels(
+                        (int) getNElement(oilFilter.getSkip(), i), scale, 1));
+                oFilter.setRange(AvatarDerivativeCache.scaleFilterPixels(
+                        (int) getNElement(oilFilter.getRange(), i), scale, 0));
                 image = oFilter.filter(image, null);
             }
         }
@@ -233,6 +310,13 @@ public abstract class AvatarModel implements TemplateElement {
         return imageList.size() > 1;
     }
 
+    /**
+     * 单帧且坐标固定的头像在每帧的绘制结果相同
+     */
+    public boolean isFrameInvariant() {
+        return imageList.size() == 1 && getPosLength() == 1;
+    }
+
     /**
      * 获取指定帧数, 超过索引长度会从头计数
      * 例: length: 8 index: 10 return: list[1]
@@ -44,5 +44,6 @@ data class AvatarTemplate @JvmOverloads constructor(
     val rotate: Boolean = false,
     val avatarOnTop: Boolean = true,
     val antialias: Boolean? = null,
-    val resampling: Boolean? = null
+    val resampling: Boolean? = null,
+    val preResampling: Boolean = true
 )
@@ -2,16 +2,15 @@ package moe.dituon.petpet.share.element.avatar;
 
 import moe.dituon.petpet.share.CropType;
 import moe.dituon.petpet.share.FitType;
+import moe.dituon.petpet.share.RasterCompositor;
 import moe.dituon.petpet.share.TransformOrigin;
 import moe.dituon.petpet.share.element.FrameInfo;
 import moe.dituon.petpet.share.position.PositionDynamicData;
 import moe.dituon.petpet.share.position.PositionXYWHCollection;
-import net.coobird.thumbnailator.Thumbnails;
 
 import java.awt.*;
 import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
-import java.io.IOException;
 import java.util.List;
 import java.util.Objects;
 import java.util.function.Supplier;
@@ -19,6 +18,7 @@ import java.util.function.Supplier;
 class AvatarXYWHModel extends AvatarModel {
     protected final PositionXYWHCollection pos;
     protected PositionDynamicData dynamicData;
+    protected final AlphaComposite composite;
 
     AvatarXYWHModel(
             AvatarTemplate template,
@@ -27,6 +27,7 @@ class AvatarXYWHModel extends AvatarModel {
     ) {
         super(template, imageSupplier, false);
         this.pos = pos;
+        this.composite = AlphaComposite.getInstance(AlphaComposite.SRC_OVER, opacity);
         if (pos.isDynamical()) {
             var firstImg = super.imageList.get(0);
             this.dynamicData = PositionDynamicData.fromWH(
@@ -48,7 +49,7 @@ class AvatarXYWHModel extends AvatarModel {
         int w = (int) (pos[2] * multiple);
         int h = (int) (pos[3] * multiple);
         BufferedImage newAvatarImage = avatarImage;
-        g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, opacity));
+        g2d.setComposite(composite);
         g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
         g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
         g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
@@ -73,7 +74,10 @@ class AvatarXYWHModel extends AvatarModel {
         }
 
         if (angle == 0) {
-            g2d.drawImage(newAvatarImage, x, y, w, h, null);
+            if (info.canvas == null || !g2d.getTransform().isIdentity() || !RasterCompositor.drawImage(
+                    info.canvas, g2d.getClip(), newAvatarImage, x, y, w, h, opacity, true)) {
+                g2d.drawImage(newAvatarImage, x, y, w, h, null);
+            }
             return;
         }
 
@@ -107,29 +111,22 @@ class AvatarXYWHModel extends AvatarModel {
             int pdx = Math.round(dx / scale / 2),
                     pdy = Math.round(dy / scale / 2);
 
-            super.cropType = CropType.PIXEL;
-            super.cropPos = new int[]{
+            return super.buildImage(index, image, CropType.PIXEL, new int[]{
                     pdx, pdy, image.getWidth() - pdx, image.getHeight() - pdy
-            };
+            });
         }
-        image = super.buildImage(index, image);
-        if (super.resampling) {
-            int aw = 0, ah = 0, maxSize = 0;
-
-            for (int i = 0; i < pos.size(); i++) {
-                int[] p = pos.getPosition(i);
-                if (p[2] > aw) aw = p[2];
-                if (p[3] > ah) ah = p[3];
-                maxSize = Math.max(aw, ah);
-            }
+        return super.buildImage(index, image);
+    }
 
-            try {
-                image = Thumbnails.of(image).size(maxSize, maxSize).keepAspectRatio(true).asBufferedImage();
-            } catch (IOException ex) {
-                throw new RuntimeException(ex);
-            }
+    @Override
+    protected int getResampleSize() {
+        if (!super.resampling) return 0;
+        int maxSize = 0;
+        for (int i = 0; i < pos.size(); i++) {
+            int[] p = pos.getPosition(i);
+            maxSize = Math.max(maxSize, Math.max(p[2], p[3]));
         }
-        return image;
+        return maxSize;
     }
 
     @Override
@@ -119,17 +119,22 @@ public class GraphicsBreakParagraph extends GraphicsParagraph {
             return;
         }
 
+        BasicStroke stroke = this.stroke;
         if (stroke == null) {
             stroke = new BasicStroke(this.string.strokeSize, BasicStroke.CAP_BUTT, BasicStroke.JOIN_ROUND);
+            this.stroke = stroke;
         }
+        Shape[] shape = this.shape;
         if (shape == null) {
-            for (int i = 0; i < text.length; i++) {
+            shape = new Shape[text.length];
+            for (int i = 0; i < text.length && text[i] != null; i++) {
                 AffineTransform transform = new AffineTransform();
                 transform.translate(x + xOffset[i], y + yOffset[i] - baselineOffset);
                 shape[i] = text[i].getOutline(transform);
             }
+            this.shape = shape;
         }
-        for (int i = 0; i < text.length; i++) {
+        for (int i = 0; i < shape.length && shape[i] != null; i++) {
             g2d.setColor(string.strokeColor);
             g2d.setStroke(stroke);
             g2d.draw(shape[i]);
@@ -22,7 +22,7 @@ public class GraphicsParagraph {
 
     protected static final WeakHashMap<Font, FontRenderContext> renderContextCache = new WeakHashMap<>();
 
-    public static FontRenderContext getFontRenderContext(Font font) {
+    public static synchronized FontRenderContext getFontRenderContext(Font font) {
         if (renderContextCache.containsKey(font)) {
             return renderContextCache.get(font);
         }
@@ -40,8 +40,11 @@ public class GraphicsParagraph {
     TextAlign align;
     TextBaseline baseline;
 
-    protected BasicStroke stroke;
-    protected Shape[] shape;
+    protected volatile BasicStroke stroke;
+    /**
+     * 描边文字的轮廓, 首次绘制时构建
+     */
+    protected volatile Shape[] shape;
     protected int width = 0;
     protected int height = 0;
 
@@ -143,9 +146,13 @@ public class GraphicsParagraph {
             return;
         }
 
+        // 段落可能被多个线程同时绘制, 构建完成后再赋值
+        BasicStroke stroke = this.stroke;
         if (stroke == null) {
             stroke = new BasicStroke(this.string.strokeSize, BasicStroke.CAP_BUTT, BasicStroke.JOIN_ROUND);
+            this.stroke = stroke;
         }
+        Shape[] shape = this.shape;
         if (shape == null) {
             shape = new Shape[text.length];
             for (int i = 0; i < text.length; i++) {
@@ -154,6 +161,7 @@ public class GraphicsParagraph {
                 var vector = string.font.createGlyphVector(getFontRenderContext(), text[i]);
                 shape[i] = transform.createTransformedShape(vector.getOutline());
             }
+            this.shape = shape;
         }
         for (int i = 0; i < text.length; i++) {
             g2d.setColor(string.strokeColor);
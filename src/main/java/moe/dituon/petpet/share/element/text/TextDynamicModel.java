@@ -72,5 +72,10 @@ public class TextDynamicModel extends TextModel {
         var pos = data.getPos();
         paragraph.draw(g2d, pos[0], pos[1]);
     }
+
+    @Override
+    public Object getContentKey() {
+        return List.of(data, text);
+    }
 }
 
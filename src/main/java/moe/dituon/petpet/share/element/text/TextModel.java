@@ -13,6 +13,11 @@ public abstract class TextModel implements TemplateElement {
 
     protected GraphicsParagraph paragraph;
 
+    /**
+     * 绘制结果的标识, 标识相同的文字绘制结果相同, 用于缓存文字图层
+     */
+    public abstract Object getContentKey();
+
     @Override
     public TemplateElement.Type getElementType() {
         return TemplateElement.Type.TEXT;
@@ -4,6 +4,7 @@ import moe.dituon.petpet.share.TextData;
 import moe.dituon.petpet.share.element.FrameInfo;
 
 import java.awt.*;
+import java.util.List;
 
 public class TextStaticModel extends TextModel {
     protected int x;
@@ -21,4 +22,9 @@ public class TextStaticModel extends TextModel {
     public void draw(Graphics2D g2d, FrameInfo info) {
         paragraph.draw(g2d, x, y);
     }
+
+    @Override
+    public Object getContentKey() {
+        return List.of(paragraph, x, y);
+    }
 }
@@ -0,0 +1,415 @@
+package moe.dituon.petpet.share.filter;
+
+import com.jhlabs.image.ImageMath;
+import com.jhlabs.image.SwimFilter;
+import com.jhlabs.image.TransformFilter;
+import com.jhlabs.image.TwirlFilter;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.WritableRaster;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * 位移类滤镜 (旋涡, 凸起, 游动): 目标像素对应的源坐标只与 (滤镜类型, 参数, 图像尺寸) 有关,
+ * 生成一次坐标表后按表采样, 按总字节数淘汰最久未使用的表
+ * <br/>
+ * 动画滤镜的参数在有限的几组之间循环, 因此坐标表可在帧与请求间复用; 结果与直接执行滤镜相同
+ */
+public class DisplacementFilter {
+    public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+    protected static final LinkedHashMap<List<Object>, DisplacementMap> cache = new LinkedHashMap<>(16, 0.75f, true);
+    protected static long maxBytes = DEFAULT_MAX_BYTES;
+    protected static long bytes = 0;
+    protected static long hits = 0;
+    protected static long misses = 0;
+    protected static long evictions = 0;
+
+    /**
+     * 与 TwirlFilter 相同
+     */
+    public static BufferedImage twirl(
+            BufferedImage image, float radius, float angle, float centreX, float centreY
+    ) {
+        List<Object> key = List.of("twirl", image.getWidth(), image.getHeight(), radius, angle, centreX, centreY);
+        return filter(key, image, () -> {
+            var filter = new RecordingTwirlFilter();
+            filter.setRadius(radius);
+            filter.setAngle(angle);
+            filter.setCentreX(centreX);
+            filter.setCentreY(centreY);
+            return filter;
+        });
+    }
+
+    /**
+     * 与 SwimFilter 相同
+     */
+    public static BufferedImage swim(
+            BufferedImage image, float scale, float stretch, float amount,
+            float angle, float turbulence, float time
+    ) {
+        List<Object> key = List.of("swim", image.getWidth(), image.getHeight(),
+                scale, stretch, amount, angle, turbulence, time);
+        return filter(key, image, () -> {
+            var filter = new RecordingSwimFilter();
+            filter.setScale(scale);
+            filter.setStretch(stretch);
+            filter.setAmount(amount);
+            filter.setAngle(angle);
+            filter.setTurbulence(turbulence);
+            filter.setTime(time);
+            return filter;
+        });
+    }
+
+    /**
+     * 凸起 (strength > 0) 或收缩 (strength < 0), 最近像素采样, 超出图像的源像素为透明
+     *
+     * @return TYPE_INT_ARGB 图像, strength 或 radius 为 0 时返回原图
+     */
+    public static BufferedImage bulgePinch(BufferedImage image, int cx, int cy, float radius, float strength) {
+        if (strength == 0 || radius == 0) return image;
+        int w = image.getWidth();
+        int h = image.getHeight();
+        List<Object> key = List.of("bulge", w, h, cx, cy, radius, strength);
+        DisplacementMap map;
+        synchronized (cache) {
+            map = cache.get(key);
+            if (map != null) hits++;
+            else misses++;
+        }
+        if (map == null) {
+            map = new NearestMap(buildBulgePinchMap(w, h, cx, cy, radius, strength));
+            put(key, map);
+        }
+        return ((NearestMap) map).apply(image);
+    }
+
+    /**
+     * 命中时按坐标表采样, 否则执行滤镜并记录坐标表
+     */
+    protected static <T extends TransformFilter & Recording> BufferedImage filter(
+            List<Object> key, BufferedImage image, Supplier<T> factory
+    ) {
+        DisplacementMap map;
+        synchronized (cache) {
+            map = cache.get(key);
+            if (map != null) hits++;
+            else misses++;
+        }
+        T filter = factory.get();
+        if (map != null) return ((BilinearMap) map).apply(filter, image);
+        if (filter.getInterpolation() != TransformFilter.BILINEAR) return filter.filter(image, null);
+
+        filter.startRecording(image.getWidth(), image.getHeight());
+        BufferedImage result = filter.filter(image, null);
+        put(key, new BilinearMap(filter.stopRecording()));
+        return result;
+    }
+
+    protected static void put(List<Object> key, DisplacementMap map) {
+        synchronized (cache) {
+            if (map.getBytes() > maxBytes) return;
+            DisplacementMap old = cache.put(key, map);
+            if (old != null) bytes -= old.getBytes();
+            bytes += map.getBytes();
+            evict();
+        }
+    }
+
+    private static void evict() {
+        Iterator<DisplacementMap> iterator = cache.values().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            bytes -= iterator.next().getBytes();
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * @param maxBytes 缓存上限, 为 0 时禁用缓存
+     */
+    public static void setCacheMaxBytes(long maxBytes) {
+        synchronized (cache) {
+            DisplacementFilter.maxBytes = Math.max(maxBytes, 0);
+            evict();
+        }
+    }
+
+    public static void clearCache() {
+        synchronized (cache) {
+            cache.clear();
+            bytes = 0;
+        }
+    }
+
+    public static Stats getStats() {
+        synchronized (cache) {
+            return new Stats(cache.size(), bytes, maxBytes, hits, misses, evictions);
+        }
+    }
+
+    /**
+     * 源像素下标, 超出图像时为 -1
+     */
+    protected static int[] buildBulgePinchMap(int w, int h, int cx, int cy, float radius, float strength) {
+        int[] sources = new int[w * h];
+        boolean isBulge = strength > 0;
+        float radiusSquared = radius * radius;
+        double inverseBulgeStrength = 1.0 / strength;
+
+        for (int x = 0; x < w; x++) {
+            for (int y = 0; y < h; y++) {
+                int dx = x - cx;
+                int dy = y - cy;
+                double distanceSquared = dx * dx + dy * dy;
+                int sx = x;
+                int sy = y;
+
+                if (distanceSquared < radiusSquared) {
+                    if (isBulge) {
+                        double distance = Math.sqrt(distanceSquared);
+                        double dirX = dx / distance;
+                        double dirY = dy / distance;
+                        double alpha = 1 - distance / radius;
+                        double distortionFactor = Math.pow(alpha, inverseBulgeStrength) * distance;
+
+                        sx -= (int) (distortionFactor * dirX);
+                        sy -= (int) (distortionFactor * dirY);
+                    } else {
+                        float d = (float) Math.sqrt(distanceSquared / radiusSquared);
+                        float t = (float) Math.pow(Math.sin(Math.PI * 0.5 * d), strength);
+
+                        dx *= t;
+                        dy *= t;
+
+                        sx = (cx + dx);
+                        sy = (cy + dy);
+                    }
+                }
+                sources[y * w + x] = sx >= 0 && sx < w && sy >= 0 && sy < h ? sy * w + sx : -1;
+            }
+        }
+        return sources;
+    }
+
+    public static class Stats {
+        public final int size;
+        public final long bytes;
+        public final long maxBytes;
+        public final long hits;
+        public final long misses;
+        public final long evictions;
+
+        public Stats(int size, long bytes, long maxBytes, long hits, long misses, long evictions) {
+            this.size = size;
+            this.bytes = bytes;
+            this.maxBytes = maxBytes;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+        }
+
+        @Override
+        public String toString() {
+            return "size=" + size + " bytes=" + bytes + "/" + maxBytes
+                    + " hits=" + hits + " misses=" + misses + " evictions=" + evictions;
+        }
+    }
+
+    protected interface DisplacementMap {
+        long getBytes();
+    }
+
+    /**
+     * 最近像素的源像素下标表
+     */
+    protected static class NearestMap implements DisplacementMap {
+        protected final int[] sources;
+
+        NearestMap(int[] sources) {
+            this.sources = sources;
+        }
+
+        /**
+         * 逐通道复制源像素的样本 (与 Raster.getPixel / setPixel 相同), 常见的非预乘类型直接复制 ARGB 值
+         */
+        BufferedImage apply(BufferedImage input) {
+            int w = input.getWidth();
+            int h = input.getHeight();
+            var output = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+            switch (input.getType()) {
+                case BufferedImage.TYPE_INT_ARGB:
+                case BufferedImage.TYPE_INT_RGB:
+                case BufferedImage.TYPE_4BYTE_ABGR:
+                case BufferedImage.TYPE_3BYTE_BGR: {
+                    int[] src = input.getRGB(0, 0, w, h, null, 0, w);
+                    int[] dst = new int[w * h];
+                    for (int i = 0; i < dst.length; i++) {
+                        int s = sources[i];
+                        if (s >= 0) dst[i] = src[s];
+                    }
+                    output.setRGB(0, 0, w, h, dst, 0, w);
+                    break;
+                }
+                default: {
+                    WritableRaster inputRaster = input.getRaster();
+                    WritableRaster outputRaster = output.getRaster();
+                    int[] pixel = {255, 255, 255, 255};
+                    for (int i = 0; i < sources.length; i++) {
+                        int s = sources[i];
+                        if (s < 0) continue;
+                        inputRaster.getPixel(s % w, s / w, pixel);
+                        outputRaster.setPixel(i % w, i / w, pixel);
+                    }
+                }
+            }
+            return output;
+        }
+
+        @Override
+        public long getBytes() {
+            return 4L * sources.length + 32;
+        }
+    }
+
+    /**
+     * TransformFilter.transformInverse 输出的源坐标表 (x, y 交替)
+     */
+    protected static class BilinearMap implements DisplacementMap {
+        protected final float[] coords;
+
+        BilinearMap(float[] coords) {
+            this.coords = coords;
+        }
+
+        /**
+         * 与 TransformFilter.filter 的双线性插值与边缘处理相同
+         */
+        BufferedImage apply(TransformFilter filter, BufferedImage src) {
+            int width = src.getWidth();
+            int height = src.getHeight();
+            ColorModel cm = src.getColorModel();
+            var dst = new BufferedImage(cm, cm.createCompatibleWritableRaster(width, height),
+                    cm.isAlphaPremultiplied(), null);
+            int[] inPixels = filter.getRGB(src, 0, 0, width, height, null);
+            int[] outPixels = new int[width * height];
+            int edgeAction = filter.getEdgeAction();
+            int width1 = width - 1;
+            int height1 = height - 1;
+
+            for (int i = 0; i < outPixels.length; i++) {
+                float outX = coords[i * 2];
+                float outY = coords[i * 2 + 1];
+                int srcX = (int) Math.floor(outX);
+                int srcY = (int) Math.floor(outY);
+                float xWeight = outX - srcX;
+                float yWeight = outY - srcY;
+                int nw, ne, sw, se;
+                if (srcX >= 0 && srcX < width1 && srcY >= 0 && srcY < height1) {
+                    int index = width * srcY + srcX;
+                    nw = inPixels[index];
+                    ne = inPixels[index + 1];
+                    sw = inPixels[index + width];
+                    se = inPixels[index + width + 1];
+                } else {
+                    nw = getPixel(inPixels, srcX, srcY, width, height, edgeAction);
+                    ne = getPixel(inPixels, srcX + 1, srcY, width, height, edgeAction);
+                    sw = getPixel(inPixels, srcX, srcY + 1, width, height, edgeAction);
+                    se = getPixel(inPixels, srcX + 1, srcY + 1, width, height, edgeAction);
+                }
+                outPixels[i] = ImageMath.bilinearInterpolate(xWeight, yWeight, nw, ne, sw, se);
+            }
+            filter.setRGB(dst, 0, 0, width, height, outPixels);
+            return dst;
+        }
+
+        private static int getPixel(int[] pixels, int x, int y, int width, int height, int edgeAction) {
+            if (x >= 0 && x < width && y >= 0 && y < height) return pixels[y * width + x];
+            switch (edgeAction) {
+                case TransformFilter.WRAP:
+                    return pixels[ImageMath.mod(y, height) * width + ImageMath.mod(x, width)];
+                case TransformFilter.CLAMP:
+                    return pixels[ImageMath.clamp(y, 0, height - 1) * width + ImageMath.clamp(x, 0, width - 1)];
+                case TransformFilter.RGB_CLAMP:
+                    return pixels[ImageMath.clamp(y, 0, height - 1) * width + ImageMath.clamp(x, 0, width - 1)]
+                            & 0x00ffffff;
+                default:
+                    return 0;
+            }
+        }
+
+        @Override
+        public long getBytes() {
+            return 4L * coords.length + 32;
+        }
+    }
+
+    /**
+     * 执行滤镜时记录每个目标像素的源坐标
+     */
+    protected interface Recording {
+        void startRecording(int width, int height);
+
+        float[] stopRecording();
+    }
+
+    protected static class RecordingTwirlFilter extends TwirlFilter implements Recording {
+        private int width;
+        private float[] coords;
+
+        @Override
+        public void startRecording(int width, int height) {
+            this.width = width;
+            this.coords = new float[width * height * 2];
+        }
+
+        @Override
+        public float[] stopRecording() {
+            float[] result = coords;
+            coords = null;
+            return result;
+        }
+
+        @Override
+        protected void transformInverse(int x, int y, float[] out) {
+            super.transformInverse(x, y, out);
+            if (coords == null) return;
+            int i = (y * width + x) * 2;
+            coords[i] = out[0];
+            coords[i + 1] = out[1];
+        }
+    }
+
+    protected static class RecordingSwimFilter extends SwimFilter implements Recording {
+        private int width;
+        private float[] coords;
+
+        @Override
+        public void startRecording(int width, int height) {
+            this.width = width;
+            this.coords = new float[width * height * 2];
+        }
+
+        @Override
+        public float[] stopRecording() {
+            float[] result = coords;
+            coords = null;
+            return result;
+        }
+
+        @Override
+        protected void transformInverse(int x, int y, float[] out) {
+            super.transformInverse(x, y, out);
+            if (coords == null) return;
+            int i = (y * width + x) * 2;
+            coords[i] = out[0];
+            coords[i + 1] = out[1];
+        }
+    }
+}
@@ -17,10 +17,17 @@ limitations under the License.
 package moe.dituon.petpet.share.filter;
 
 import com.jhlabs.image.WholeImageFilter;
+import moe.dituon.petpet.share.RenderScheduler;
 
 import java.awt.*;
 
 public class PetpetOilFilter extends WholeImageFilter {
+    /**
+     * 像素数达到此值时按行条带并行计算
+     */
+    public static final int PARALLEL_PIXEL_THRESHOLD = 256 * 256;
+    public static final int MIN_BAND_HEIGHT = 16;
+
     private int skip = 4;
     private int range = 12;
     private int levels = 8;
@@ -52,65 +59,122 @@ public class PetpetOilFilter extends WholeImageFilter {
         return levels;
     }
 
+    /**
+     * 各像素取周围 (间隔 skip, 半径 range) 采样点中数量最多的亮度级的平均值
+     * <br/>
+     * 采样网格沿行每移动 skip 个像素只有一列采样点变化, 因此每行按 x mod skip 分为 skip 条链,
+     * 链上直方图逐列增减更新; 行按条带并行计算, 结果与逐像素重建直方图相同
+     */
     protected int[] filterPixels(int width, int height, int[] inPixels, Rectangle transformedSpace) {
-        int index = 0;
-        int[] rHistogram = new int[levels];
-        int[] gHistogram = new int[levels];
-        int[] bHistogram = new int[levels];
-        int[] rTotal = new int[levels];
-        int[] gTotal = new int[levels];
-        int[] bTotal = new int[levels];
         int[] outPixels = new int[width * height];
+        int count = (long) width * height < PARALLEL_PIXEL_THRESHOLD ? 1
+                : Math.min(RenderScheduler.getCurrent().getParallelism(), height / MIN_BAND_HEIGHT);
+        if (count <= 1) {
+            filterRows(width, height, inPixels, outPixels, 0, height);
+        } else {
+            RenderScheduler.invokeAll(count, i -> {
+                filterRows(width, height, inPixels, outPixels, height * i / count, height * (i + 1) / count);
+                return null;
+            });
+        }
+        return outPixels;
+    }
 
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                for (int i = 0; i < levels; i++)
-                    rHistogram[i] = gHistogram[i] = bHistogram[i] = rTotal[i] = gTotal[i] = bTotal[i] = 0;
-
-                for (int row = -range; row <= range; row += skip) {
-                    int iy = y + row;
-                    int ioffset;
-                    if (0 <= iy && iy < height) {
-                        ioffset = iy * width;
-                        for (int col = -range; col <= range; col += skip) {
-                            int ix = x + col;
-                            if (0 <= ix && ix < width) {
-                                int rgb = inPixels[ioffset + ix];
-                                int r = (rgb >> 16) & 0xff;
-                                int g = (rgb >> 8) & 0xff;
-                                int b = rgb & 0xff;
-                                int ri = r * levels >> 8;
-                                int gi = g * levels >> 8;
-                                int bi = b * levels >> 8;
-                                rTotal[ri] += r;
-                                gTotal[gi] += g;
-                                bTotal[bi] += b;
-                                rHistogram[ri]++;
-                                gHistogram[gi]++;
-                                bHistogram[bi]++;
-                            }
-                        }
+    protected void filterRows(int width, int height, int[] inPixels, int[] outPixels, int fromY, int toY) {
+        var histogram = new Histogram(levels);
+        // 窗口内的采样偏移: -range, -range + skip, ... (不超过 range)
+        int samples = range < 0 ? 0 : 2 * range / skip + 1;
+        int last = -range + (samples - 1) * skip;
+        int[] rowOffsets = new int[samples];
+
+        for (int y = fromY; y < toY; y++) {
+            int rows = 0;
+            for (int row = -range; row <= range; row += skip) {
+                int iy = y + row;
+                if (0 <= iy && iy < height) rowOffsets[rows++] = iy * width;
+            }
+
+            for (int phase = 0; phase < skip && phase < width; phase++) {
+                histogram.clear();
+                for (int k = 0; k < samples; k++) {
+                    histogram.addColumn(inPixels, rowOffsets, rows, phase - range + k * skip, width, 1);
+                }
+                for (int x = phase; x < width; x += skip) {
+                    if (x != phase) {
+                        histogram.addColumn(inPixels, rowOffsets, rows, x - skip - range, width, -1);
+                        histogram.addColumn(inPixels, rowOffsets, rows, x + last, width, 1);
                     }
+                    int index = y * width + x;
+                    outPixels[index] = (inPixels[index] & 0xff000000) | histogram.getRGB();
                 }
+            }
+        }
+    }
 
-                int r = 0, g = 0, b = 0;
-                for (int i = 1; i < levels; i++) {
-                    if (rHistogram[i] > rHistogram[r])
-                        r = i;
-                    if (gHistogram[i] > gHistogram[g])
-                        g = i;
-                    if (bHistogram[i] > bHistogram[b])
-                        b = i;
-                }
-                r = rTotal[r] / rHistogram[r];
-                g = gTotal[g] / gHistogram[g];
-                b = bTotal[b] / bHistogram[b];
-                outPixels[index] = (inPixels[index] & 0xff000000) | (r << 16) | (g << 8) | b;
-                index++;
+    /**
+     * 窗口内三个通道各亮度级的采样数与通道值之和
+     */
+    protected static class Histogram {
+        final int levels;
+        final int[] rHistogram;
+        final int[] gHistogram;
+        final int[] bHistogram;
+        final int[] rTotal;
+        final int[] gTotal;
+        final int[] bTotal;
+
+        Histogram(int levels) {
+            this.levels = levels;
+            rHistogram = new int[levels];
+            gHistogram = new int[levels];
+            bHistogram = new int[levels];
+            rTotal = new int[levels];
+            gTotal = new int[levels];
+            bTotal = new int[levels];
+        }
+
+        void clear() {
+            for (int i = 0; i < levels; i++)
+                rHistogram[i] = gHistogram[i] = bHistogram[i] = rTotal[i] = gTotal[i] = bTotal[i] = 0;
+        }
+
+        /**
+         * 加入 (sign = 1) 或移除 (sign = -1) 第 col 列的采样点, 超出图像的列不计入
+         */
+        void addColumn(int[] inPixels, int[] rowOffsets, int rows, int col, int width, int sign) {
+            if (col < 0 || col >= width) return;
+            for (int i = 0; i < rows; i++) {
+                int rgb = inPixels[rowOffsets[i] + col];
+                int r = (rgb >> 16) & 0xff;
+                int g = (rgb >> 8) & 0xff;
+                int b = rgb & 0xff;
+                int ri = r * levels >> 8;
+                int gi = g * levels >> 8;
+                int bi = b * levels >> 8;
+                rTotal[ri] += sign * r;
+                gTotal[gi] += sign * g;
+                bTotal[bi] += sign * b;
+                rHistogram[ri] += sign;
+                gHistogram[gi] += sign;
+                bHistogram[bi] += sign;
             }
         }
 
-        return outPixels;
+        int getRGB() {
+            int r = 0, g = 0, b = 0;
+            for (int i = 1; i < levels; i++) {
+                if (rHistogram[i] > rHistogram[r])
+                    r = i;
+                if (gHistogram[i] > gHistogram[g])
+                    g = i;
+                if (bHistogram[i] > bHistogram[b])
+                    b = i;
+            }
+            r = rTotal[r] / rHistogram[r];
+            g = gTotal[g] / gHistogram[g];
+            b = bTotal[b] / bHistogram[b];
+            return (r << 16) | (g << 8) | b;
+        }
     }
 
     public String toString() {
@@ -0,0 +1,140 @@
+package moe.dituon.petpet.share.filter;
+
+import com.jhlabs.image.HSBAdjustFilter;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * 逐像素颜色变换的流水线, 相邻的变换合并为一次遍历: 每个像素读取一次, 依次应用各变换后写入一次
+ * <br/>
+ * 各变换的结果与原有实现 (ImageSynthesisCore.grayImage / binarizeImage, jhlabs ContrastFilter / HSBAdjustFilter) 相同;
+ * 非逐像素的滤镜之前需调用 flush 输出已累积的变换
+ */
+public class PixelPipeline {
+    protected final List<IntUnaryOperator> ops = new ArrayList<>(4);
+    /**
+     * 已累积的变换中含有输出不透明像素的变换
+     */
+    protected boolean opaque = false;
+
+    public boolean isEmpty() {
+        return ops.isEmpty();
+    }
+
+    /**
+     * 灰度化, 输出不透明
+     */
+    public PixelPipeline gray() {
+        ops.add(PixelPipeline::gray);
+        opaque = true;
+        return this;
+    }
+
+    /**
+     * 二值化, 输出不透明
+     */
+    public PixelPipeline binarize() {
+        ops.add(PixelPipeline::binarize);
+        opaque = true;
+        return this;
+    }
+
+    /**
+     * 对比度与亮度, 参数与 ContrastFilter 相同 (1 为不变), 透明度不变
+     */
+    public PixelPipeline contrast(float contrast, float brightness) {
+        int[] table = new int[256];
+        for (int i = 0; i < 256; i++) {
+            float f = i / 255.0f * brightness;
+            f = (f - 0.5f) * contrast + 0.5f;
+            table[i] = clamp((int) (255.0f * f));
+        }
+        ops.add(p -> (p & 0xff000000) | table[(p >> 16) & 0xff] << 16
+                | table[(p >> 8) & 0xff] << 8 | table[p & 0xff]);
+        return this;
+    }
+
+    /**
+     * 色相, 饱和度, 亮度偏移, 参数与 HSBAdjustFilter 相同, 透明度不变
+     */
+    public PixelPipeline hsb(float hFactor, float sFactor, float bFactor) {
+        HSBAdjustFilter filter = new HSBAdjustFilter(hFactor, sFactor, bFactor);
+        ops.add(p -> filter.filterRGB(0, 0, p));
+        return this;
+    }
+
+    /**
+     * 对图像应用已累积的变换并清空流水线, 没有变换时返回原图
+     *
+     * @return TYPE_INT_ARGB 图像, 结果不透明时为 TYPE_INT_RGB
+     */
+    public BufferedImage flush(BufferedImage image) {
+        if (ops.isEmpty()) return image;
+        int width = image.getWidth();
+        int height = image.getHeight();
+        boolean alpha = !opaque && image.getColorModel().hasAlpha();
+        BufferedImage output = new BufferedImage(width, height,
+                alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        int[] data = ((DataBufferInt) output.getRaster().getDataBuffer()).getData();
+        readRGB(image, data);
+
+        IntUnaryOperator[] steps = ops.toArray(new IntUnaryOperator[0]);
+        if (steps.length == 1) {
+            IntUnaryOperator op = steps[0];
+            for (int i = 0; i < data.length; i++) data[i] = op.applyAsInt(data[i]);
+        } else {
+            for (int i = 0; i < data.length; i++) {
+                int p = data[i];
+                for (IntUnaryOperator op : steps) p = op.applyAsInt(p);
+                data[i] = p;
+            }
+        }
+
+        ops.clear();
+        opaque = false;
+        return output;
+    }
+
+    /**
+     * 读取非预乘的 ARGB 像素, 与 getRGB 相同; INT 类型的图像直接复制像素数组
+     */
+    protected static void readRGB(BufferedImage image, int[] data) {
+        int width = image.getWidth();
+        int type = image.getType();
+        WritableRaster raster = image.getRaster();
+        if ((type == BufferedImage.TYPE_INT_ARGB || type == BufferedImage.TYPE_INT_RGB)
+                && raster.getParent() == null && raster.getDataBuffer().getOffset() == 0
+                && raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0
+                && ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride() == width) {
+            System.arraycopy(((DataBufferInt) raster.getDataBuffer()).getData(), 0, data, 0, data.length);
+            if (type == BufferedImage.TYPE_INT_RGB) {
+                for (int i = 0; i < data.length; i++) data[i] |= 0xff000000;
+            }
+            return;
+        }
+        image.getRGB(0, 0, width, image.getHeight(), data, 0, width);
+    }
+
+    private static int gray(int p) {
+        int r = (p >> 16) & 0xff;
+        int g = (p >> 8) & 0xff;
+        int b = p & 0xff;
+        int gray = (int) (r * 0.299 + g * 0.587 + b * 0.114);
+        return 0xff000000 | gray << 16 | gray << 8 | gray;
+    }
+
+    private static int binarize(int p) {
+        int m = ((p >> 16) & 0xff) + ((p >> 8) & 0xff) + (p & 0xff);
+        return m >= 383 ? 0xffffffff : 0xff000000;
+    }
+
+    private static int clamp(int c) {
+        return c < 0 ? 0 : Math.min(c, 255);
+    }
+}
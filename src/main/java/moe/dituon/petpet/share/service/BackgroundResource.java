@@ -1,7 +1,10 @@
 package moe.dituon.petpet.share.service;
 
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
+import moe.dituon.petpet.share.ColorQuantizer;
+import moe.dituon.petpet.share.GifPalette;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
@@ -25,6 +28,12 @@ public class BackgroundResource extends ImageResource {
     @Setter
     protected boolean randomFlag;
     protected final Path basePath;
+    @Getter(AccessLevel.NONE)
+    protected GifPalette palette;
+    @Getter(AccessLevel.NONE)
+    protected int paletteQuality;
+    @Getter(AccessLevel.NONE)
+    protected ColorQuantizer paletteQuantizer;
 
     public BackgroundResource() {
         files = (File[]) empty;
@@ -73,4 +82,19 @@ public class BackgroundResource extends ImageResource {
         imagesRef = new WeakReference<>(images);
         return images;
     }
+
+    /**
+     * 获取背景的调色板 (预留部分颜色给头像), 首次使用时计算并缓存
+     *
+     * @return 随机背景或无背景时返回 null
+     */
+    public synchronized GifPalette getPalette(int quality, ColorQuantizer quantizer) throws IOException {
+        if (randomFlag || files.length == 0) return null;
+        if (palette == null || paletteQuality != quality || paletteQuantizer != quantizer) {
+            palette = GifPalette.learnWithReserved(getImages(), quality, quantizer);
+            paletteQuality = quality;
+            paletteQuantizer = quantizer;
+        }
+        return palette;
+    }
 }
@@ -1,63 +1,92 @@
 package moe.dituon.petpet.share.service;
 
-import moe.dituon.petpet.share.BasePetService;
+import moe.dituon.petpet.share.ColorQuantizer;
 import moe.dituon.petpet.share.FastAnimatedGifEncoder;
-import moe.dituon.petpet.share.GifRenderParams;
+import moe.dituon.petpet.share.GifPalette;
+import moe.dituon.petpet.share.RenderScheduler;
 
-import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 public class GifEncoder {
-    protected static ExecutorService threadPool = Executors.newFixedThreadPool(BasePetService.DEFAULT_THREAD_POOL_SIZE);
+    public static byte[] makeGif(List<BufferedImage> images, GifEncoderParam params) {
+        var output = new ByteArrayOutputStream();
+        makeGif(images, params, output);
+        return output.toByteArray();
+    }
+
+    /**
+     * 每帧编码后立即写入输出流, 输出流不会被关闭
+     */
+    public static void makeGif(List<BufferedImage> images, GifEncoderParam params, OutputStream output) {
+        switch (params.getEncoder()) {
+            case GLOBAL_PALETTE:
+            case TEMPLATE_PALETTE:
+                makeGifUseGlobalPalette(images, params, output);
+                return;
+            case ANIMATED_LIB:
+            default:
+                makeGifUsePalette(images, null, params, output);
+        }
+    }
 
     public static byte[] makeGifUseAnimatedLib(List<BufferedImage> images, GifEncoderParam params) {
-        try {
-            CountDownLatch latch = new CountDownLatch(images.size());
-            FastAnimatedGifEncoder.FrameData[] frames = new FastAnimatedGifEncoder.FrameData[images.size()];
-            for (int i = 0; i < images.size(); i++) {
-                int fi = i;
-                threadPool.execute(() -> {
-                    var image = images.get(fi);
-                    if (image.getType() == BufferedImage.TYPE_3BYTE_BGR) {
-                        FastAnimatedGifEncoder.FrameData frameData = new FastAnimatedGifEncoder.FrameData(image, params.getQuality());
-                        frames[fi] = frameData;
-                        latch.countDown();
-                        return;
-                    }
-                    BufferedImage temp = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
-                    Graphics2D g2d = temp.createGraphics();
-                    g2d.drawImage(image, 0, 0, null);
-                    g2d.dispose();
-                    FastAnimatedGifEncoder.FrameData frameData = new FastAnimatedGifEncoder.FrameData(temp, params.getQuality());
-                    frames[fi] = frameData;
-                    latch.countDown();
-                });
-            }
+        return makeGifUsePalette(images, null, params);
+    }
+
+    /**
+     * 所有帧共用一个从全部帧中训练的调色板
+     */
+    public static byte[] makeGifUseGlobalPalette(List<BufferedImage> images, GifEncoderParam params) {
+        var output = new ByteArrayOutputStream();
+        makeGifUseGlobalPalette(images, params, output);
+        return output.toByteArray();
+    }
+
+    /**
+     * @see #makeGifUseGlobalPalette(List, GifEncoderParam)
+     */
+    public static void makeGifUseGlobalPalette(List<BufferedImage> images, GifEncoderParam params, OutputStream output) {
+        var bgrImages = new ArrayList<BufferedImage>(images.size());
+        for (BufferedImage image : images) bgrImages.add(FastAnimatedGifEncoder.toBGRImage(image));
+        GifPalette palette = GifPalette.learn(
+                bgrImages, params.getQuality(), ColorQuantizer.of(params.getQuantizer())
+        );
+        makeGifUsePalette(bgrImages, palette, params, output);
+    }
+
+    /**
+     * 使用给定的调色板 (如模板预计算的调色板), 只进行像素映射
+     *
+     * @param palette 为 null 时每帧单独训练调色板
+     */
+    public static byte[] makeGifUsePalette(List<BufferedImage> images, GifPalette palette, GifEncoderParam params) {
+        var output = new ByteArrayOutputStream();
+        makeGifUsePalette(images, palette, params, output);
+        return output.toByteArray();
+    }
 
+    /**
+     * @see #makeGifUsePalette(List, GifPalette, GifEncoderParam)
+     */
+    public static void makeGifUsePalette(
+            List<BufferedImage> images, GifPalette palette, GifEncoderParam params, OutputStream output
+    ) {
+        try (var lease = RenderScheduler.lease()) {
             FastAnimatedGifEncoder gifEncoder = new FastAnimatedGifEncoder();
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
             gifEncoder.start(output);
             gifEncoder.setRepeat(params.getRepeat());
             gifEncoder.setDelay(params.getDelay());
             gifEncoder.setQuality(params.getQuality());
+            gifEncoder.setQuantizer(ColorQuantizer.of(params.getQuantizer()));
 
-            latch.await();
-            gifEncoder.setSize(images.get(0).getWidth(), images.get(0).getHeight());
-            if (params.getReverse()) {
-                for (int s = frames.length - 1; s >= 0; s--) gifEncoder.addFrame(frames[s]);
-            } else {
-                for (FastAnimatedGifEncoder.FrameData frame : frames) gifEncoder.addFrame(frame);
-            }
-            gifEncoder.finish();
-            var array = output.toByteArray();
-            output.close();
-            return array;
+            gifEncoder.addFrames(lease.getPool(), images.size(), params.getReverse(),
+                    images::get, palette, params.getFrameDiff());
+            if (!gifEncoder.finish()) throw new IOException("GIF 写入失败");
         } catch (InterruptedException | IOException e) {
             throw new RuntimeException(e);
         }
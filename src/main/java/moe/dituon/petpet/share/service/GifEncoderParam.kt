@@ -1,8 +1,19 @@
 package moe.dituon.petpet.share.service
 
-data class GifEncoderParam(
+import moe.dituon.petpet.share.Encoder
+import moe.dituon.petpet.share.Quantizer
+
+data class GifEncoderParam @JvmOverloads constructor(
     val delay: Int = 65,
     val quality: Int = 10,
     val repeat: Int = 0,
     val reverse: Boolean = false,
-)
+    val encoder: Encoder = Encoder.ANIMATED_LIB,
+    /**
+     * 只编码与前一帧不同的区域, 不适用于 BUFFERED_STREAM
+     */
+    val frameDiff: Boolean = false,
+    val quantizer: Quantizer = Quantizer.NEU_QUANT,
+) {
+    fun withQuantizer(quantizer: Quantizer) = copy(quantizer = quantizer)
+}
@@ -0,0 +1,180 @@
+package moe.dituon.petpet.share.template;
+
+import java.awt.image.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Objects;
+
+/**
+ * 按尺寸与类型复用的帧画布, 渲染结束后归还, 稳定状态下不再分配画布
+ * <br/>
+ * 取出的画布内容未定义, 需要由调用者覆盖 (复制背景或清空)
+ */
+public class CanvasPool {
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    protected final HashMap<Key, ArrayDeque<BufferedImage>> pool = new HashMap<>();
+    protected final long maxBytes;
+    protected long bytes = 0;
+
+    public CanvasPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param type BufferedImage 的预定义类型, 不能为 TYPE_CUSTOM; 带调色板的类型使用默认调色板
+     */
+    public BufferedImage acquire(int width, int height, int type) {
+        Key key = new Key(width, height, type);
+        synchronized (this) {
+            ArrayDeque<BufferedImage> deque = pool.get(key);
+            if (deque != null && !deque.isEmpty()) {
+                BufferedImage image = deque.pop();
+                bytes -= sizeOf(image);
+                return image;
+            }
+        }
+        return new BufferedImage(width, height, type);
+    }
+
+    /**
+     * 取出清空 (全 0) 的画布, 与新建的 BufferedImage 相同
+     */
+    public BufferedImage acquireCleared(int width, int height, int type) {
+        BufferedImage image = acquire(width, height, type);
+        clear(image);
+        return image;
+    }
+
+    /**
+     * 复制图像到画布, 相同布局时直接复制像素数组; 源图像不会被修改
+     */
+    public BufferedImage copyOf(BufferedImage source) {
+        if (!isPoolable(source)) {
+            ColorModel cm = source.getColorModel();
+            return new BufferedImage(cm, source.copyData(null), cm.isAlphaPremultiplied(), null);
+        }
+        BufferedImage image = acquire(source.getWidth(), source.getHeight(), source.getType());
+        if (!copyPixels(source, image)) {
+            image.setData(source.getRaster());
+        }
+        return image;
+    }
+
+    public void release(Iterable<BufferedImage> images) {
+        for (BufferedImage image : images) release(image);
+    }
+
+    public synchronized void release(BufferedImage image) {
+        if (!isPoolable(image)) return;
+        long size = sizeOf(image);
+        if (bytes + size > maxBytes) return;
+        pool.computeIfAbsent(new Key(image.getWidth(), image.getHeight(), image.getType()),
+                k -> new ArrayDeque<>()).push(image);
+        bytes += size;
+    }
+
+    public synchronized void clear() {
+        pool.clear();
+        bytes = 0;
+    }
+
+    /**
+     * 直接复制像素数组, 仅在两者均为单一数据块且没有偏移时生效
+     */
+    protected static boolean copyPixels(BufferedImage source, BufferedImage target) {
+        DataBuffer src = source.getRaster().getDataBuffer();
+        DataBuffer dst = target.getRaster().getDataBuffer();
+        if (!isPlain(source) || !isPlain(target) || src.getDataType() != dst.getDataType()
+                || src.getSize() != dst.getSize()) return false;
+        switch (src.getDataType()) {
+            case DataBuffer.TYPE_BYTE:
+                System.arraycopy(((DataBufferByte) src).getData(), 0,
+                        ((DataBufferByte) dst).getData(), 0, src.getSize());
+                return true;
+            case DataBuffer.TYPE_INT:
+                System.arraycopy(((DataBufferInt) src).getData(), 0,
+                        ((DataBufferInt) dst).getData(), 0, src.getSize());
+                return true;
+            case DataBuffer.TYPE_USHORT:
+                System.arraycopy(((DataBufferUShort) src).getData(), 0,
+                        ((DataBufferUShort) dst).getData(), 0, src.getSize());
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    protected static void clear(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        if (buffer instanceof DataBufferByte) {
+            for (int b = 0; b < buffer.getNumBanks(); b++) {
+                Arrays.fill(((DataBufferByte) buffer).getData(b), (byte) 0);
+            }
+        } else if (buffer instanceof DataBufferInt) {
+            for (int b = 0; b < buffer.getNumBanks(); b++) {
+                Arrays.fill(((DataBufferInt) buffer).getData(b), 0);
+            }
+        } else if (buffer instanceof DataBufferUShort) {
+            for (int b = 0; b < buffer.getNumBanks(); b++) {
+                Arrays.fill(((DataBufferUShort) buffer).getData(b), (short) 0);
+            }
+        } else {
+            image.setData(image.getColorModel().createCompatibleWritableRaster(image.getWidth(), image.getHeight()));
+        }
+    }
+
+    /**
+     * 自定义类型与带调色板的类型的颜色模型因图像而异, 不能按类型复用
+     */
+    private static boolean isPoolable(BufferedImage image) {
+        switch (image.getType()) {
+            case BufferedImage.TYPE_CUSTOM:
+            case BufferedImage.TYPE_BYTE_INDEXED:
+            case BufferedImage.TYPE_BYTE_BINARY:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    private static boolean isPlain(BufferedImage image) {
+        WritableRaster raster = image.getRaster();
+        return raster.getDataBuffer().getNumBanks() == 1
+                && raster.getDataBuffer().getOffset() == 0
+                && raster.getSampleModelTranslateX() == 0
+                && raster.getSampleModelTranslateY() == 0
+                && raster.getParent() == null;
+    }
+
+    private static long sizeOf(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+
+    protected static class Key {
+        final int width;
+        final int height;
+        final int type;
+
+        Key(int width, int height, int type) {
+            this.width = width;
+            this.height = height;
+            this.type = type;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return width == key.width && height == key.height && type == key.type;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(width, height, type);
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package moe.dituon.petpet.share.template;
+
+import moe.dituon.petpet.share.element.Drawable;
+import moe.dituon.petpet.share.element.FrameInfo;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * 各帧相同的顶层元素 (文字, 位置固定的单帧头像) 预先绘制到的透明图层, 每帧只需混合一次
+ * <br/>
+ * 图层为预乘透明度的 ARGB 图像, 裁剪到非透明区域
+ */
+public class FrameOverlay {
+    public static final long DEFAULT_CACHE_BYTES = 16L * 1024 * 1024;
+
+    /**
+     * 仅含文字的图层在请求间复用, 按 (文字内容, 画布尺寸, 画笔状态) 索引
+     */
+    protected static final LinkedHashMap<List<Object>, FrameOverlay> cache = new LinkedHashMap<>(16, 0.75f, true);
+    protected static long cacheMaxBytes = DEFAULT_CACHE_BYTES;
+    protected static long cacheBytes = 0;
+    protected static long cacheHits = 0;
+    protected static long cacheMisses = 0;
+    protected static long cacheEvictions = 0;
+
+    /**
+     * 图层内容, 全透明时为 null
+     */
+    protected final BufferedImage image;
+    protected final int x;
+    protected final int y;
+
+    protected FrameOverlay(BufferedImage image, int x, int y) {
+        this.image = image;
+        this.x = x;
+        this.y = y;
+    }
+
+    /**
+     * 以画笔状态 (混合方式, 渲染提示) 绘制元素, 与直接绘制在画布上的结果相同 (混合舍入误差除外)
+     */
+    public static FrameOverlay render(
+            List<? extends Drawable> elements, FrameInfo info,
+            Composite composite, RenderingHints hints
+    ) {
+        var layer = new BufferedImage(info.canvasWidth, info.canvasHeight, BufferedImage.TYPE_INT_ARGB_PRE);
+        var layerInfo = new FrameInfo(info.index, info.canvasWidth, info.canvasHeight);
+        layerInfo.setMultiple(info.multiple);
+        layerInfo.setCanvas(layer);
+        var g2d = layer.createGraphics();
+        g2d.setRenderingHints(hints);
+        g2d.setComposite(composite);
+        elements.forEach(element -> element.draw(g2d, layerInfo));
+        g2d.dispose();
+        return crop(layer);
+    }
+
+    /**
+     * @param key 图层内容的标识, 相同标识的元素绘制结果必须相同
+     */
+    public static FrameOverlay getOrRender(
+            List<Object> key, List<? extends Drawable> elements, FrameInfo info,
+            Composite composite, RenderingHints hints
+    ) {
+        List<Object> fullKey = List.of(key, info.canvasWidth, info.canvasHeight, composite, hints);
+        synchronized (cache) {
+            FrameOverlay overlay = cache.get(fullKey);
+            if (overlay != null) {
+                cacheHits++;
+                return overlay;
+            }
+            cacheMisses++;
+        }
+        FrameOverlay overlay = render(elements, info, composite, hints);
+        synchronized (cache) {
+            if (overlay.getBytes() <= cacheMaxBytes && cache.put(fullKey, overlay) == null) {
+                cacheBytes += overlay.getBytes();
+                evict();
+            }
+        }
+        return overlay;
+    }
+
+    /**
+     * @param maxBytes 缓存上限, 为 0 时禁用请求间缓存
+     */
+    public static void setCacheMaxBytes(long maxBytes) {
+        synchronized (cache) {
+            cacheMaxBytes = Math.max(maxBytes, 0);
+            evict();
+        }
+    }
+
+    public static void clearCache() {
+        synchronized (cache) {
+            cache.clear();
+            cacheBytes = 0;
+        }
+    }
+
+    public static Stats getCacheStats() {
+        synchronized (cache) {
+            return new Stats(cache.size(), cacheBytes, cacheMaxBytes, cacheHits, cacheMisses, cacheEvictions);
+        }
+    }
+
+    private static void evict() {
+        Iterator<FrameOverlay> iterator = cache.values().iterator();
+        while (cacheBytes > cacheMaxBytes && iterator.hasNext()) {
+            cacheBytes -= iterator.next().getBytes();
+            iterator.remove();
+            cacheEvictions++;
+        }
+    }
+
+    private static FrameOverlay crop(BufferedImage layer) {
+        int width = layer.getWidth();
+        int height = layer.getHeight();
+        int[] data = ((DataBufferInt) layer.getRaster().getDataBuffer()).getData();
+        int minX = width, minY = height, maxX = -1, maxY = -1;
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            int left = 0;
+            while (left < width && data[row + left] == 0) left++;
+            if (left == width) continue;
+            int right = width - 1;
+            while (data[row + right] == 0) right--;
+            if (left < minX) minX = left;
+            if (right > maxX) maxX = right;
+            if (minY == height) minY = y;
+            maxY = y;
+        }
+        if (maxX < 0) return new FrameOverlay(null, 0, 0);
+        if (minX == 0 && minY == 0 && maxX == width - 1 && maxY == height - 1) {
+            return new FrameOverlay(layer, 0, 0);
+        }
+        var image = new BufferedImage(maxX - minX + 1, maxY - minY + 1, BufferedImage.TYPE_INT_ARGB_PRE);
+        int[] target = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        for (int y = minY; y <= maxY; y++) {
+            System.arraycopy(data, y * width + minX, target, (y - minY) * image.getWidth(), image.getWidth());
+        }
+        return new FrameOverlay(image, minX, minY);
+    }
+
+    public void draw(Graphics2D g2d) {
+        if (image == null) return;
+        g2d.setComposite(AlphaComposite.SrcOver);
+        g2d.drawImage(image, x, y, null);
+    }
+
+    public long getBytes() {
+        return image == null ? 32 : 4L * image.getWidth() * image.getHeight() + 32;
+    }
+
+    /**
+     * 帧渲染线程共享的图层, 由第一个到达的线程以当时的画笔状态绘制
+     * <br/>
+     * 元素之前的绘制对画笔状态的修改在各帧相同, 因此任一帧的状态均可用于绘制图层
+     */
+    public static class Layer {
+        protected final List<? extends Drawable> elements;
+        /**
+         * 请求间缓存的标识, 为 null 时不缓存
+         */
+        protected final List<Object> key;
+        protected FrameOverlay overlay;
+
+        public Layer(List<? extends Drawable> elements, List<Object> key) {
+            this.elements = elements;
+            this.key = key;
+        }
+
+        public void draw(Graphics2D g2d, FrameInfo info) {
+            FrameOverlay overlay;
+            synchronized (this) {
+                if (this.overlay == null) {
+                    Composite composite = g2d.getComposite();
+                    RenderingHints hints = g2d.getRenderingHints();
+                    this.overlay = key == null
+                            ? render(elements, info, composite, hints)
+                            : getOrRender(key, elements, info, composite, hints);
+                }
+                overlay = this.overlay;
+            }
+            overlay.draw(g2d);
+        }
+    }
+
+    public static class Stats {
+        public final int size;
+        public final long bytes;
+        public final long maxBytes;
+        public final long hits;
+        public final long misses;
+        public final long evictions;
+
+        public Stats(int size, long bytes, long maxBytes, long hits, long misses, long evictions) {
+            this.size = size;
+            this.bytes = bytes;
+            this.maxBytes = maxBytes;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+        }
+
+        @Override
+        public String toString() {
+            return "size=" + size + " bytes=" + bytes + "/" + maxBytes
+                    + " hits=" + hits + " misses=" + misses + " evictions=" + evictions;
+        }
+    }
+}
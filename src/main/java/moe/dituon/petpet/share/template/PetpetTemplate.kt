@@ -4,6 +4,7 @@ import kotlinx.serialization.Serializable
 import kotlinx.serialization.decodeFromString
 import kotlinx.serialization.json.Json
 import moe.dituon.petpet.share.BackgroundData
+import moe.dituon.petpet.share.Quantizer
 import moe.dituon.petpet.share.element.avatar.AvatarTemplate
 import moe.dituon.petpet.share.element.text.TextTemplate
 import moe.dituon.petpet.share.script.LuaTableSerializer
@@ -23,7 +24,8 @@ data class PetpetTemplate(
     val alias: List<String> = emptyList(),
     val inRandomList: Boolean = true,
     val reverse: Boolean = false,
-    val hidden: Boolean = false
+    val hidden: Boolean = false,
+    val quantizer: Quantizer? = null
 ) {
     companion object {
         @JvmStatic
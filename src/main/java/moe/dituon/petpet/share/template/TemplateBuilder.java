@@ -50,6 +50,6 @@ public class TemplateBuilder {
 
         var background = backgroundBuilder.build(avatarList, textList);
 
-        return new TemplateModel(data, background, avatarList, textList);
+        return new TemplateModel(data, background, avatarList, textList, templateData.getQuantizer());
     }
 }
@@ -1,6 +1,11 @@
 package moe.dituon.petpet.share.template;
 
+import moe.dituon.petpet.share.ColorQuantizer;
+import moe.dituon.petpet.share.Encoder;
+import moe.dituon.petpet.share.GifPalette;
 import moe.dituon.petpet.share.ImageSynthesis;
+import moe.dituon.petpet.share.Quantizer;
+import moe.dituon.petpet.share.element.Drawable;
 import moe.dituon.petpet.share.element.FrameInfo;
 import moe.dituon.petpet.share.element.avatar.AvatarModel;
 import moe.dituon.petpet.share.element.text.TextModel;
@@ -16,25 +21,46 @@ import java.util.ArrayList;
 import java.util.List;
 
 public class TemplateModel {
+    protected static CanvasPool canvasPool = new CanvasPool(CanvasPool.DEFAULT_MAX_BYTES);
+
     protected final List<AvatarModel> avatarList;
     protected final List<TextModel> textList;
     protected final BackgroundModel background;
     protected final ExtraData extraData;
-
+    /**
+     * 模板指定的量化器, 为 null 时使用编码参数
+     */
+    protected final Quantizer quantizer;
 
     public TemplateModel(
             ExtraData extraData,
             BackgroundModel background,
             List<AvatarModel> avatarList,
             List<TextModel> textList
+    ) {
+        this(extraData, background, avatarList, textList, null);
+    }
+
+    public TemplateModel(
+            ExtraData extraData,
+            BackgroundModel background,
+            List<AvatarModel> avatarList,
+            List<TextModel> textList,
+            Quantizer quantizer
     ) {
         this.background = background;
         this.avatarList = avatarList;
         this.textList = textList;
         this.extraData = extraData;
+        this.quantizer = quantizer;
     }
 
     public ResultImage getResult() throws IOException {
+        return getResult(new GifEncoderParam());
+    }
+
+    public ResultImage getResult(GifEncoderParam encoderParam) throws IOException {
+        if (quantizer != null) encoderParam = encoderParam.withQuantizer(quantizer);
         var topAvatarList = new ArrayList<AvatarModel>(avatarList.size());
         var bottomAvatarList = new ArrayList<AvatarModel>(avatarList.size());
 
@@ -52,52 +78,119 @@ public class TemplateModel {
 
 
         boolean gifFlag = totalLength > 1;
+        // 末尾各帧不变的顶层头像与文字合并为一个图层
+        int overlayFrom = topAvatarList.size();
+        FrameOverlay.Layer overlay = null;
+        if (gifFlag) {
+            while (overlayFrom > 0 && topAvatarList.get(overlayFrom - 1).isFrameInvariant()) overlayFrom--;
+            var overlayElements = new ArrayList<Drawable>(topAvatarList.subList(overlayFrom, topAvatarList.size()));
+            overlayElements.addAll(textList);
+            if (!overlayElements.isEmpty()) {
+                List<Object> key = null;
+                if (overlayFrom == topAvatarList.size()) {
+                    key = new ArrayList<>(textList.size());
+                    for (TextModel text : textList) key.add(text.getContentKey());
+                }
+                overlay = new FrameOverlay.Layer(overlayElements, key);
+            }
+        }
+        var topList = topAvatarList.subList(0, overlayFrom);
+        var topOverlay = overlay;
+
         List<BufferedImage> output;
         if (bottomAvatarList.isEmpty() &&
                 (bgs[0].getType() == BufferedImage.TYPE_3BYTE_BGR || !gifFlag)
         ) {
+            // 背景来自共享缓存, 复制到画布后再绘制
             output = ImageSynthesis.execImageList(totalLength, (i) -> {
                 var base = bgs[i % bgs.length];
                 var info = new FrameInfo(i, base.getWidth(), base.getHeight());
-                var g2d = base.createGraphics();
-                topAvatarList.forEach(avatar -> avatar.draw(g2d, info));
-                textList.forEach(text -> text.draw(g2d, info));
-                return base;
+                var canvas = canvasPool.copyOf(base);
+                info.setCanvas(canvas);
+                var layers = new ArrayList<Drawable>();
+                prepareTop(layers, info, topList, topOverlay);
+                paint(canvas, !gifFlag, info, layers);
+                return canvas;
             });
         } else {
             output = ImageSynthesis.execImageList(totalLength, (i) -> {
                 var base = bgs[i % bgs.length];
                 var info = new FrameInfo(i, base.getWidth(), base.getHeight());
-                var canvas = new BufferedImage(
+                var canvas = canvasPool.acquireCleared(
                         base.getWidth(), base.getHeight(),
                         gifFlag ? BufferedImage.TYPE_3BYTE_BGR :
                                 (base.getType() == BufferedImage.TYPE_CUSTOM ? BufferedImage.TYPE_3BYTE_BGR : base.getType())
                 );
-                var g2d = canvas.createGraphics();
-                bottomAvatarList.forEach(avatar -> avatar.draw(g2d, info));
-                g2d.drawImage(base, 0, 0, null);
-                topAvatarList.forEach(avatar -> avatar.draw(g2d, info));
-                textList.forEach(text -> text.draw(g2d, info));
+                info.setCanvas(canvas);
+                var layers = new ArrayList<Drawable>();
+                bottomAvatarList.forEach(avatar -> layers.add(avatar.prepare(info)));
+                layers.add((g2d, frame) -> g2d.drawImage(base, 0, 0, null));
+                prepareTop(layers, info, topList, topOverlay);
+                paint(canvas, !gifFlag, info, layers);
                 return canvas;
             });
         }
 
+        int width = output.get(0).getWidth();
+        int height = output.get(0).getHeight();
         byte[] blob;
-        if (gifFlag) {
-            blob = GifEncoder.makeGifUseAnimatedLib(output, new GifEncoderParam());
-        } else {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream(16384);
-            // TODO other image format
-            ImageIO.write(output.get(0), "png", baos);
-            blob = baos.toByteArray();
+        try {
+            if (gifFlag) {
+                GifPalette palette = encoderParam.getEncoder() == Encoder.TEMPLATE_PALETTE
+                        ? background.getPalette(encoderParam.getQuality(), ColorQuantizer.of(encoderParam.getQuantizer()))
+                        : null;
+                blob = palette != null
+                        ? GifEncoder.makeGifUsePalette(output, palette, encoderParam)
+                        : GifEncoder.makeGif(output, encoderParam);
+            } else {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream(16384);
+                // TODO other image format
+                ImageIO.write(output.get(0), "png", baos);
+                blob = baos.toByteArray();
+            }
+        } finally {
+            canvasPool.release(output);
         }
 
         return new ResultImage(
                 blob,
-                output.get(0).getWidth(),
-                output.get(0).getHeight(),
+                width,
+                height,
                 totalLength > 1 ? "gif" : "png",
                 totalLength > 1 ? "image/gif" : "image/png"
         );
     }
+
+    /**
+     * 按顺序绘制预处理后的图层, 单帧的大画布按条带并行绘制 (带调色板的画布除外), 否则直接绘制
+     *
+     * @param layers 由 {@link Drawable#prepare} 得到的图层, 每个条带重复绘制
+     * @see ImageSynthesis#execBands
+     */
+    protected static void paint(BufferedImage canvas, boolean banded, FrameInfo info, List<Drawable> layers) {
+        int type = canvas.getType();
+        if (!banded || type == BufferedImage.TYPE_BYTE_INDEXED || type == BufferedImage.TYPE_BYTE_BINARY
+                || type == BufferedImage.TYPE_CUSTOM) {
+            var g2d = canvas.createGraphics();
+            layers.forEach(layer -> layer.draw(g2d, info));
+            g2d.dispose();
+            return;
+        }
+        ImageSynthesis.execBands(canvas.getWidth(), canvas.getHeight(), band -> {
+            var g2d = canvas.createGraphics();
+            g2d.clip(band);
+            layers.forEach(layer -> layer.draw(g2d, info));
+            g2d.dispose();
+        });
+    }
+
+    protected void prepareTop(List<Drawable> layers, FrameInfo info,
+                              List<AvatarModel> topList, FrameOverlay.Layer overlay) {
+        topList.forEach(avatar -> layers.add(avatar.prepare(info)));
+        if (overlay == null) {
+            textList.forEach(text -> layers.add(text.prepare(info)));
+        } else {
+            layers.add(overlay::draw);
+        }
+    }
 }
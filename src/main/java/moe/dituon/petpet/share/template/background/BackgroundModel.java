@@ -1,6 +1,8 @@
 package moe.dituon.petpet.share.template.background;
 
 import moe.dituon.petpet.share.BackgroundData;
+import moe.dituon.petpet.share.ColorQuantizer;
+import moe.dituon.petpet.share.GifPalette;
 import moe.dituon.petpet.share.service.BackgroundResource;
 
 import java.awt.*;
@@ -50,4 +52,12 @@ public class BackgroundModel {
         }
         return arr;
     }
+
+    /**
+     * @return 背景资源缓存的调色板, 背景由配置生成时返回 null
+     */
+    public GifPalette getPalette(int quality, ColorQuantizer quantizer) throws IOException {
+        if (this.resource == null || this.data != null) return null;
+        return this.resource.getPalette(quality, quantizer);
+    }
 }
@@ -11,6 +11,7 @@ import moe.dituon.petpet.plugin.ReplyFormat
 import moe.dituon.petpet.server.ServerPetService
 import moe.dituon.petpet.server.ServerServiceConfig
 import moe.dituon.petpet.share.Encoder
+import moe.dituon.petpet.share.Quantizer
 import moe.dituon.petpet.share.encodeDefaultsPrettyJson
 
 @Serializable
@@ -50,6 +51,9 @@ data class GoCQPluginConfig(
     val gifEncoder: Encoder = Encoder.ANIMATED_LIB,
     val gifMaxSize: List<Int> = listOf(200, 200, 32),
     val gifQuality: Int = 5,
+    val gifFrameDiff: Boolean = false,
+    val gifQuantizer: Quantizer = Quantizer.NEU_QUANT,
+    val gifMaxBytes: Int = 0,
     val threadPoolSize: Int = 0,
     val headless: Boolean = true
 ) {
@@ -73,6 +77,9 @@ data class GoCQPluginConfig(
         gifMaxSize = gifMaxSize,
         gifEncoder = gifEncoder,
         gifQuality = gifQuality,
+        gifFrameDiff = gifFrameDiff,
+        gifQuantizer = gifQuantizer,
+        gifMaxBytes = gifMaxBytes,
         threadPoolSize = threadPoolSize,
         headless = headless,
         autoUpdate = autoUpdate,
@@ -90,6 +97,9 @@ data class GoCQPluginConfig(
         gifMaxSize = gifMaxSize,
         gifEncoder = gifEncoder,
         gifQuality = gifQuality,
+        gifFrameDiff = gifFrameDiff,
+        gifQuantizer = gifQuantizer,
+        gifMaxBytes = gifMaxBytes,
         serviceThreadPoolSize = threadPoolSize,
         headless = headless
     )
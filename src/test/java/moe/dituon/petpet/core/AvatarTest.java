@@ -1,19 +1,56 @@
 package moe.dituon.petpet.core;
 
+import com.jhlabs.image.ContrastFilter;
+import com.jhlabs.image.HSBAdjustFilter;
+import com.jhlabs.image.TwirlFilter;
 import kotlinx.serialization.json.Json;
 import kotlinx.serialization.json.JsonArray;
+import moe.dituon.petpet.share.AvatarBlurFilter;
+import moe.dituon.petpet.share.AvatarData;
+import moe.dituon.petpet.share.AvatarModel;
 import moe.dituon.petpet.share.AvatarPosType;
+import moe.dituon.petpet.share.AvatarStyle;
+import moe.dituon.petpet.share.AvatarType;
+import moe.dituon.petpet.share.BackgroundData;
+import moe.dituon.petpet.share.CropType;
 import moe.dituon.petpet.share.FitType;
+import moe.dituon.petpet.share.GifAvatarExtraDataProvider;
+import moe.dituon.petpet.share.ImageDeformer;
+import moe.dituon.petpet.share.ImageSynthesis;
+import moe.dituon.petpet.share.ImageSynthesisCore;
+import moe.dituon.petpet.share.Position;
+import moe.dituon.petpet.share.RasterCompositor;
+import moe.dituon.petpet.share.RenderScheduler;
+import moe.dituon.petpet.share.TextAlign;
+import moe.dituon.petpet.share.TextBaseline;
+import moe.dituon.petpet.share.TextStyle;
+import moe.dituon.petpet.share.TextWrap;
+import moe.dituon.petpet.share.TransformOrigin;
+import moe.dituon.petpet.share.Type;
 import moe.dituon.petpet.share.element.FrameInfo;
 import moe.dituon.petpet.share.element.avatar.AvatarBuilder;
 import moe.dituon.petpet.share.element.avatar.AvatarTemplate;
+import moe.dituon.petpet.share.element.text.TextBuilder;
+import moe.dituon.petpet.share.element.text.TextTemplate;
+import moe.dituon.petpet.share.filter.DisplacementFilter;
+import moe.dituon.petpet.share.filter.PetpetOilFilter;
+import moe.dituon.petpet.share.filter.PixelPipeline;
+import moe.dituon.petpet.share.template.TemplateModel;
+import moe.dituon.petpet.share.template.background.BackgroundModel;
 import org.junit.Test;
 
 import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.geom.Point2D;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 public class AvatarTest {
     public static final String outputDir = ".test-output/avatar/";
@@ -67,6 +104,501 @@ public class AvatarTest {
         saveImage(image, "avatarDeform");
     }
 
+    @Test
+    public void testDeformRemapCache() throws IOException {
+        var avatarRaw = ImageIO.read(new File("example-data/input/avatar1.png"));
+        double[][] quads = {
+                {20, 30, 10, 250, 280, 300, 260, 5},
+                {-15, 40, 30, 180, 200, 150, 120, -20},
+                {0, 0, 0, 64, 64, 64, 64, 0},
+                {50.5, 10.25, 5.75, 90.5, 140.25, 120.75, 110.5, 3.5}
+        };
+        var cache = ImageDeformer.getRemapCache();
+        for (double[] q : quads) {
+            cache.clear();
+            var before = cache.getStats();
+            var first = ImageDeformer.computeImage(avatarRaw, toPoints(q));
+            // 坐标相同的新数组也应命中
+            var second = ImageDeformer.computeImage(avatarRaw, toPoints(q));
+            var after = cache.getStats();
+            assert after.misses == before.misses + 1;
+            assert after.hits == before.hits + 1;
+
+            var expected = deformReference(avatarRaw, toPoints(q));
+            int w = expected.getWidth(), h = expected.getHeight();
+            int[] expectedPixels = expected.getRGB(0, 0, w, h, null, 0, w);
+            assert first.getWidth() == w && first.getHeight() == h;
+            assert Arrays.equals(expectedPixels, first.getRGB(0, 0, w, h, null, 0, w));
+            assert Arrays.equals(expectedPixels, second.getRGB(0, 0, w, h, null, 0, w));
+        }
+    }
+
+    private static Point2D[] toPoints(double[] q) {
+        return new Point2D[]{
+                new Point2D.Double(q[0], q[1]), new Point2D.Double(q[2], q[3]),
+                new Point2D.Double(q[4], q[5]), new Point2D.Double(q[6], q[7])
+        };
+    }
+
+    /**
+     * 逐像素判定 Polygon.contains 并反向变换的原始实现, 矩阵按行存放
+     */
+    private static BufferedImage deformReference(BufferedImage image, Point2D[] point) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        double[] originToDeformed = matMul(
+                projection(point),
+                matInvert(projection(new Point2D[]{
+                        new Point2D.Double(0, 0), new Point2D.Double(0, h),
+                        new Point2D.Double(w, h), new Point2D.Double(w, 0)
+                }))
+        );
+        double[] deformedToOrigin = matInvert(originToDeformed);
+
+        Polygon deformedArea = new Polygon();
+        double[][] corners = {{0, 0}, {0, h}, {w, h}, {w, 0}};
+        for (double[] c : corners) {
+            double[] p = matTransform(originToDeformed, c[0], c[1]);
+            deformedArea.addPoint((int) p[0], (int) p[1]);
+        }
+        int deformedWidth = deformedArea.getBounds().width;
+        int deformedHeight = deformedArea.getBounds().height;
+        BufferedImage result = new BufferedImage(
+                Math.max(deformedWidth, 1), Math.max(deformedHeight, 1), BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < deformedHeight; y++) {
+            for (int x = 0; x < deformedWidth; x++) {
+                if (!deformedArea.contains(x, y)) continue;
+                double[] origin = matTransform(deformedToOrigin, x, y);
+                int originX = Math.min((int) Math.round(origin[0]), w - 1);
+                int originY = Math.min((int) Math.round(origin[1]), h - 1);
+                result.setRGB(x, y, image.getRGB(Math.max(originX, 0), Math.max(originY, 0)));
+            }
+        }
+        return result;
+    }
+
+    private static double[] projection(Point2D[] p) {
+        double[] m = {
+                p[0].getX(), p[1].getX(), p[2].getX(),
+                p[0].getY(), p[1].getY(), p[2].getY(),
+                1, 1, 1
+        };
+        double[] inv = matInvert(m);
+        double x = p[3].getX(), y = p[3].getY(), z = 1;
+        double sx = inv[0] * x + inv[1] * y + inv[2] * z;
+        double sy = inv[3] * x + inv[4] * y + inv[5] * z;
+        double sz = inv[6] * x + inv[7] * y + inv[8] * z;
+        for (int row = 0; row < 3; row++) {
+            m[row * 3] *= sx;
+            m[row * 3 + 1] *= sy;
+            m[row * 3 + 2] *= sz;
+        }
+        return m;
+    }
+
+    private static double[] matInvert(double[] m) {
+        double det = m[0] * (m[4] * m[8] - m[5] * m[7])
+                + m[1] * (m[5] * m[6] - m[3] * m[8])
+                + m[2] * (m[3] * m[7] - m[4] * m[6]);
+        double invDet = 1.0 / det;
+        double[] n = {
+                m[8] * m[4] - m[7] * m[5], -(m[8] * m[1] - m[7] * m[2]), m[5] * m[1] - m[4] * m[2],
+                -(m[8] * m[3] - m[6] * m[5]), m[8] * m[0] - m[6] * m[2], -(m[5] * m[0] - m[3] * m[2]),
+                m[7] * m[3] - m[6] * m[4], -(m[7] * m[0] - m[6] * m[1]), m[4] * m[0] - m[3] * m[1]
+        };
+        for (int i = 0; i < 9; i++) n[i] *= invDet;
+        return n;
+    }
+
+    private static double[] matMul(double[] a, double[] b) {
+        double[] n = new double[9];
+        for (int row = 0; row < 3; row++) {
+            for (int col = 0; col < 3; col++) {
+                n[row * 3 + col] = a[row * 3] * b[col] + a[row * 3 + 1] * b[3 + col] + a[row * 3 + 2] * b[6 + col];
+            }
+        }
+        return n;
+    }
+
+    private static double[] matTransform(double[] m, double x, double y) {
+        double tx = m[0] * x + m[1] * y + m[2] * 1.0;
+        double ty = m[3] * x + m[4] * y + m[5] * 1.0;
+        double tz = m[6] * x + m[7] * y + m[8] * 1.0;
+        return new double[]{tx / tz, ty / tz};
+    }
+
+    @Test
+    public void testOpaqueSynthesis() throws IOException {
+        var avatarRaw = ImageIO.read(new File("example-data/input/avatar1.png"));
+        var sticker = new BufferedImage(200, 160, BufferedImage.TYPE_INT_ARGB);
+        var g2d = sticker.createGraphics();
+        g2d.setPaint(new GradientPaint(0, 0, new Color(255, 80, 0, 255), 200, 160, new Color(0, 80, 255, 120)));
+        g2d.fillRect(0, 0, 200, 160);
+        g2d.setComposite(AlphaComposite.Clear);
+        g2d.fillRect(10, 10, 100, 100);
+        g2d.fillOval(120, 80, 90, 90);
+        g2d.dispose();
+
+        // 第 0 帧在画布内, 之后的帧部分或完全移出画布
+        var zoomPos = jsonArrayFromString("[[20,20,80,80],[150,100,80,80],[-120,-120,80,80],[60,40,90,70]]");
+        var deformPos = jsonArrayFromString("[" +
+                "[[0,0],[0,60],[70,70],[60,5],[100,20]]," +
+                "[[0,0],[0,60],[70,70],[60,5],[170,130]]," +
+                "[[0,0],[0,60],[70,70],[60,5],[-200,-200]]," +
+                "[[5,0],[0,80],[90,60],[70,0],[15,60]]]");
+        var topPos = jsonArrayFromString("[[120,10,50,50]]");
+        var extraData = new GifAvatarExtraDataProvider(
+                () -> List.of(avatarRaw), () -> List.of(avatarRaw), () -> List.of(avatarRaw), null, null);
+        var avatarList = new ArrayList<AvatarModel>();
+        avatarList.add(new AvatarModel(new AvatarData(
+                AvatarType.FROM, zoomPos, AvatarPosType.ZOOM, null, CropType.NONE, FitType.FILL,
+                List.of(), List.of(), (short) 30, TransformOrigin.CENTER, 0.8F, false, true, false,
+                null, null, true
+        ), extraData, Type.GIF));
+        avatarList.add(new AvatarModel(new AvatarData(
+                AvatarType.TO, deformPos, AvatarPosType.DEFORM, null, CropType.NONE, FitType.FILL,
+                List.of(), List.of(), (short) 0, TransformOrigin.DEFAULT, 1.0F, false, false, false,
+                null, null, true
+        ), extraData, Type.GIF));
+        avatarList.add(new AvatarModel(new AvatarData(
+                AvatarType.GROUP, topPos, AvatarPosType.ZOOM, null, CropType.NONE, FitType.FILL,
+                List.of(), List.of(), (short) 0, TransformOrigin.DEFAULT, 0.6F, true, false, true,
+                null, null, true
+        ), extraData, Type.GIF));
+
+        // 先作为每次请求生成的背景 (不缓存), 再作为模板加载的共享背景 (缓存合成结果)
+        for (boolean shared : new boolean[]{false, true}) {
+            if (shared) ImageSynthesis.setSharedBackgrounds(sticker);
+            for (boolean antialias : new boolean[]{false, true}) {
+                for (short i = 0; i < 4; i++) {
+                    var expected = ImageSynthesis.synthesisImage(
+                            sticker, avatarList, null, antialias, false, i, null);
+                    var actual = ImageSynthesis.synthesisOpaqueImage(
+                            sticker, avatarList, null, antialias, i, null);
+                    int w = expected.getWidth(), h = expected.getHeight();
+                    assert actual.getWidth() == w && actual.getHeight() == h;
+                    assert Arrays.equals(expected.getRGB(0, 0, w, h, null, 0, w),
+                            actual.getRGB(0, 0, w, h, null, 0, w));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBandedSynthesis() throws IOException {
+        var avatarRaw = ImageIO.read(new File("example-data/input/avatar1.png"));
+        var sticker = new BufferedImage(1200, 1000, BufferedImage.TYPE_INT_ARGB);
+        var g2d = sticker.createGraphics();
+        g2d.setPaint(new GradientPaint(0, 0, new Color(255, 80, 0, 255), 1200, 1000, new Color(0, 80, 255, 120)));
+        g2d.fillRect(0, 0, 1200, 1000);
+        g2d.setComposite(AlphaComposite.Clear);
+        g2d.fillRect(100, 150, 500, 500);
+        g2d.fillOval(650, 400, 450, 450);
+        g2d.dispose();
+
+        // 元素跨越条带边界
+        var extraData = new GifAvatarExtraDataProvider(
+                () -> List.of(avatarRaw), () -> List.of(avatarRaw), () -> List.of(avatarRaw), null, null);
+        var avatarList = new ArrayList<AvatarModel>();
+        avatarList.add(new AvatarModel(new AvatarData(
+                AvatarType.FROM, jsonArrayFromString("[120,180,420,420]"), AvatarPosType.ZOOM, null,
+                CropType.NONE, FitType.FILL, List.of(), List.of(), (short) 30, TransformOrigin.CENTER,
+                0.8F, false, false, false, null, null, true
+        ), extraData, Type.IMG));
+        avatarList.add(new AvatarModel(new AvatarData(
+                AvatarType.TO, jsonArrayFromString("[[0,0],[20,420],[400,380],[350,10],[680,420]]"),
+                AvatarPosType.DEFORM, null, CropType.NONE, FitType.FILL, List.of(), List.of(), (short) 0,
+                TransformOrigin.DEFAULT, 1.0F, false, false, false, null, null, true
+        ), extraData, Type.IMG));
+        avatarList.add(new AvatarModel(new AvatarData(
+                AvatarType.GROUP, jsonArrayFromString("[500,200,300,200]"), AvatarPosType.ZOOM, null,
+                CropType.NONE, FitType.COVER, List.of(), List.of(), (short) 0, TransformOrigin.DEFAULT,
+                0.6F, true, false, true, null, null, true
+        ), extraData, Type.IMG));
+        avatarList.add(new AvatarModel(new AvatarData(
+                AvatarType.GROUP, jsonArrayFromString("[820,600,260,300]"), AvatarPosType.ZOOM, null,
+                CropType.NONE, FitType.CONTAIN, List.of(), List.of(), (short) 0, TransformOrigin.DEFAULT,
+                1.0F, false, false, true, null, null, true
+        ), extraData, Type.IMG));
+        var textExtraData = new moe.dituon.petpet.share.TextExtraData("from", "to", "group", List.of());
+        var textList = List.of(
+                new moe.dituon.petpet.share.TextModel(new moe.dituon.petpet.share.TextData(
+                        "条带测试\nBanded", new int[]{200, 480}, (short) 12, "#3366cc", "SimHei", 96,
+                        TextAlign.LEFT, TextBaseline.TOP, TextWrap.NONE, TextStyle.BOLD,
+                        List.of(Position.LEFT, Position.TOP), TransformOrigin.CENTER, "#ffcc00", (short) 4, false
+                ), textExtraData),
+                new moe.dituon.petpet.share.TextModel(new moe.dituon.petpet.share.TextData(
+                        "$from -> $to\n第二行", new int[]{300, 240}, (short) -20, "#191919", "SimHei", 64,
+                        TextAlign.LEFT, TextBaseline.TOP, TextWrap.NONE, TextStyle.PLAIN,
+                        List.of(Position.RIGHT, Position.BOTTOM), TransformOrigin.DEFAULT, "#ffffff", (short) 0, false
+                ), textExtraData)
+        );
+
+        var templateAvatars = new ArrayList<moe.dituon.petpet.share.element.avatar.AvatarModel>();
+        templateAvatars.add(new AvatarBuilder(new AvatarTemplate(
+                "FROM", null, AvatarPosType.ZOOM, jsonArrayFromString("[120,180,420,420]"),
+                CropType.NONE, null, FitType.FILL, List.of(), List.of(), (short) 30, TransformOrigin.CENTER,
+                0.8F, false, false, false, true, false, true
+        )).build(() -> List.of(avatarRaw)));
+        templateAvatars.add(new AvatarBuilder(new AvatarTemplate(
+                "TO", null, AvatarPosType.DEFORM, jsonArrayFromString("[[0,0],[20,420],[400,380],[350,10],[680,420]]")
+        )).build(() -> List.of(avatarRaw)));
+        templateAvatars.add(new AvatarBuilder(new AvatarTemplate(
+                "GROUP", null, AvatarPosType.ZOOM, jsonArrayFromString("[500,200,300,200]"),
+                CropType.NONE, null, FitType.COVER, List.of(), List.of(), (short) 0, TransformOrigin.DEFAULT,
+                0.6F, true, false, true, true, false, true
+        )).build(() -> List.of(avatarRaw)));
+        var textTemplate = new TextTemplate("条带测试\nBanded", new int[]{200, 480});
+        textTemplate.setSize(96);
+        textTemplate.setAngle((short) 12);
+        textTemplate.setStrokeSize((short) 4);
+        textTemplate.setStrokeColor("#ffcc00");
+        var templateTexts = List.of(new TextBuilder(textTemplate).build(TestUtils.getTextExtraData()));
+        var background = new BackgroundModel(null, new BackgroundData(jsonArrayFromString("[1200,1000]")), 1200, 1000);
+        var template = new TemplateModel(null, background, templateAvatars, templateTexts);
+
+        int parallelism = RenderScheduler.getCurrent().getParallelism();
+        try {
+            // 并行度为 1 时整个画布为一个条带
+            RenderScheduler.resize(1);
+            var expected = ImageSynthesis.synthesisImage(sticker, avatarList, textList, true);
+            var expectedTemplate = ImageIO.read(new ByteArrayInputStream(template.getResult().getBlob()));
+            RenderScheduler.resize(4);
+            var actual = ImageSynthesis.synthesisImage(sticker, avatarList, textList, true);
+            var actualTemplate = ImageIO.read(new ByteArrayInputStream(template.getResult().getBlob()));
+
+            int w = 1200, h = 1000;
+            assert Arrays.equals(expected.getRGB(0, 0, w, h, null, 0, w), actual.getRGB(0, 0, w, h, null, 0, w));
+            assert Arrays.equals(expectedTemplate.getRGB(0, 0, w, h, null, 0, w),
+                    actualTemplate.getRGB(0, 0, w, h, null, 0, w));
+        } finally {
+            RenderScheduler.resize(parallelism);
+        }
+    }
+
+    @Test
+    public void testRasterCompositor() throws IOException {
+        var avatarRaw = ImageIO.read(new File("example-data/input/avatar1.png"));
+        var expected = new BufferedImage(300, 300, BufferedImage.TYPE_3BYTE_BGR);
+        var actual = new BufferedImage(300, 300, BufferedImage.TYPE_3BYTE_BGR);
+        var g2d = expected.createGraphics();
+        g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.8F));
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2d.drawImage(avatarRaw, -20, 40, 180, 230, null);
+        g2d.dispose();
+        assert RasterCompositor.drawImage(actual, null, avatarRaw, -20, 40, 180, 230, 0.8F, true);
+
+        for (int y = 0; y < 300; y++) {
+            for (int x = 0; x < 300; x++) {
+                int p = expected.getRGB(x, y), q = actual.getRGB(x, y);
+                for (int shift = 0; shift < 24; shift += 8) {
+                    assert Math.abs((p >> shift & 0xff) - (q >> shift & 0xff)) <= 2;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPixelPipeline() throws IOException {
+        var avatarRaw = ImageIO.read(new File("example-data/input/avatar1.png"));
+        var contrast = new ContrastFilter();
+        contrast.setContrast(1.4F);
+        contrast.setBrightness(0.9F);
+        var hsb = new HSBAdjustFilter(0.1F, 0.2F, -0.1F);
+        var expected = hsb.filter(contrast.filter(avatarRaw, null), null);
+        var actual = new PixelPipeline().contrast(1.4F, 0.9F).hsb(0.1F, 0.2F, -0.1F).flush(avatarRaw);
+
+        int w = expected.getWidth(), h = expected.getHeight();
+        assert Arrays.equals(expected.getRGB(0, 0, w, h, null, 0, w), actual.getRGB(0, 0, w, h, null, 0, w));
+    }
+
+    @Test
+    public void testDisplacementFilter() throws IOException {
+        var avatarRaw = ImageIO.read(new File("example-data/input/avatar1.png"));
+        var twirl = new TwirlFilter();
+        twirl.setRadius(120F);
+        twirl.setAngle(1.5F);
+        var expected = twirl.filter(avatarRaw, null);
+        DisplacementFilter.clearCache();
+        var before = DisplacementFilter.getStats();
+        var first = DisplacementFilter.twirl(avatarRaw, 120F, 1.5F, 0.5F, 0.5F);
+        var second = DisplacementFilter.twirl(avatarRaw, 120F, 1.5F, 0.5F, 0.5F);
+        var after = DisplacementFilter.getStats();
+        assert after.misses == before.misses + 1;
+        assert after.hits == before.hits + 1;
+        assert after.size == 1 && after.bytes > 0;
+
+        int w = expected.getWidth(), h = expected.getHeight();
+        int[] pixels = expected.getRGB(0, 0, w, h, null, 0, w);
+        assert Arrays.equals(pixels, first.getRGB(0, 0, w, h, null, 0, w));
+        assert Arrays.equals(pixels, second.getRGB(0, 0, w, h, null, 0, w));
+    }
+
+    @Test
+    public void testOilFilter() {
+        var random = new Random(22);
+        int[][] sizes = {{1, 1}, {37, 23}, {64, 5}, {301, 263}};
+        int[][] settings = {{4, 12, 8}, {1, 3, 4}, {3, 7, 16}, {5, 2, 8}, {2, 0, 8}, {6, 13, 3}};
+        for (int[] size : sizes) {
+            int w = size[0], h = size[1];
+            var image = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+            int[] pixels = new int[w * h];
+            for (int i = 0; i < pixels.length; i++) {
+                // 约四分之一为全透明像素, 其余为随机透明度
+                int alpha = random.nextInt(4) == 0 ? 0 : random.nextInt(256);
+                pixels[i] = alpha << 24 | random.nextInt(0x1000000);
+            }
+            image.setRGB(0, 0, w, h, pixels, 0, w);
+            int[] input = image.getRGB(0, 0, w, h, null, 0, w);
+
+            for (int[] setting : settings) {
+                var filter = new PetpetOilFilter();
+                filter.setSkip(setting[0]);
+                filter.setRange(setting[1]);
+                filter.setLevels(setting[2]);
+                int[] expected;
+                try {
+                    expected = oilReference(w, h, input, setting[0], setting[1], setting[2]);
+                } catch (ArithmeticException ex) {
+                    // 采样点全部落在图像外时原始实现除以零, 新实现应保持一致
+                    boolean thrown = false;
+                    try {
+                        filter.filter(image, null);
+                    } catch (ArithmeticException e) {
+                        thrown = true;
+                    }
+                    assert thrown : Arrays.toString(size) + Arrays.toString(setting);
+                    continue;
+                }
+                int[] actual = filter.filter(image, null).getRGB(0, 0, w, h, null, 0, w);
+                assert Arrays.equals(expected, actual) : Arrays.toString(size) + Arrays.toString(setting);
+            }
+        }
+    }
+
+    /**
+     * 逐像素重建直方图的原始实现
+     */
+    private static int[] oilReference(int width, int height, int[] inPixels, int skip, int range, int levels) {
+        int index = 0;
+        int[] rHistogram = new int[levels];
+        int[] gHistogram = new int[levels];
+        int[] bHistogram = new int[levels];
+        int[] rTotal = new int[levels];
+        int[] gTotal = new int[levels];
+        int[] bTotal = new int[levels];
+        int[] outPixels = new int[width * height];
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                for (int i = 0; i < levels; i++)
+                    rHistogram[i] = gHistogram[i] = bHistogram[i] = rTotal[i] = gTotal[i] = bTotal[i] = 0;
+
+                for (int row = -range; row <= range; row += skip) {
+                    int iy = y + row;
+                    if (0 <= iy && iy < height) {
+                        int ioffset = iy * width;
+                        for (int col = -range; col <= range; col += skip) {
+                            int ix = x + col;
+                            if (0 <= ix && ix < width) {
+                                int rgb = inPixels[ioffset + ix];
+                                int r = (rgb >> 16) & 0xff;
+                                int g = (rgb >> 8) & 0xff;
+                                int b = rgb & 0xff;
+                                int ri = r * levels >> 8;
+                                int gi = g * levels >> 8;
+                                int bi = b * levels >> 8;
+                                rTotal[ri] += r;
+                                gTotal[gi] += g;
+                                bTotal[bi] += b;
+                                rHistogram[ri]++;
+                                gHistogram[gi]++;
+                                bHistogram[bi]++;
+                            }
+                        }
+                    }
+                }
+
+                int r = 0, g = 0, b = 0;
+                for (int i = 1; i < levels; i++) {
+                    if (rHistogram[i] > rHistogram[r]) r = i;
+                    if (gHistogram[i] > gHistogram[g]) g = i;
+                    if (bHistogram[i] > bHistogram[b]) b = i;
+                }
+                r = rTotal[r] / rHistogram[r];
+                g = gTotal[g] / gHistogram[g];
+                b = bTotal[b] / bHistogram[b];
+                outPixels[index] = (inPixels[index] & 0xff000000) | (r << 16) | (g << 8) | b;
+                index++;
+            }
+        }
+        return outPixels;
+    }
+
+    @Test
+    public void testPreResample() throws IOException {
+        var avatarSmall = ImageIO.read(new File("example-data/input/avatar1.png"));
+        var avatarRaw = new BufferedImage(400, 400, BufferedImage.TYPE_INT_ARGB);
+        var g2d = avatarRaw.createGraphics();
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2d.drawImage(avatarSmall, 0, 0, 400, 400, null);
+        g2d.dispose();
+        var pre = buildBlurredAvatar(avatarRaw, true);
+        var full = buildBlurredAvatar(avatarRaw, false);
+        assert pre.getWidth() == full.getWidth() && pre.getHeight() == full.getHeight();
+        assert Math.max(pre.getWidth(), pre.getHeight()) == 64;
+
+        int w = pre.getWidth(), h = pre.getHeight();
+        int[] p = pre.getRGB(0, 0, w, h, null, 0, w), q = full.getRGB(0, 0, w, h, null, 0, w);
+        long diff = 0;
+        for (int i = 0; i < p.length; i++) {
+            for (int shift = 0; shift < 24; shift += 8) {
+                diff += Math.abs((p[i] >> shift & 0xff) - (q[i] >> shift & 0xff));
+            }
+        }
+        assert diff / (p.length * 3.0) < 8;
+    }
+
+    @Test
+    public void testDerivativeCache() throws IOException {
+        var first = ImageIO.read(new File("example-data/input/avatar1.png"));
+        var second = ImageIO.read(new File("example-data/input/avatar1.png"));
+        var data = new AvatarTemplate(
+                "TO", null, AvatarPosType.ZOOM, jsonArrayFromString("[0, 0, 48, 48]"),
+                CropType.NONE, null, FitType.FILL, List.of(AvatarStyle.GRAY), List.of(),
+                (short) 0, TransformOrigin.DEFAULT, 1.0F, true, false, true, true, true, true
+        );
+        var builder = new AvatarBuilder(data);
+        var before = ImageSynthesis.getDerivativeCache().getStats();
+        var a = builder.build(() -> List.of(first)).getFirstImage();
+        var b = builder.build(() -> List.of(second)).getFirstImage();
+        var after = ImageSynthesis.getDerivativeCache().getStats();
+        assert a == b;
+        assert after.hits > before.hits;
+
+        // 解码时以编码数据登记的头像
+        var c = builder.build(() -> readImageList("example-data/input/avatar1.png")).getFirstImage();
+        var d = builder.build(() -> readImageList("example-data/input/avatar1.png")).getFirstImage();
+        assert c == d;
+    }
+
+    private static List<BufferedImage> readImageList(String path) {
+        try {
+            return ImageSynthesisCore.getImageAsList(new FileInputStream(path));
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static BufferedImage buildBlurredAvatar(BufferedImage avatarRaw, boolean preResampling) {
+        var data = new AvatarTemplate(
+                "TO", null, AvatarPosType.ZOOM, jsonArrayFromString("[0, 0, 64, 64]"),
+                CropType.NONE, null, FitType.FILL, List.of(), List.of(new AvatarBlurFilter(new float[]{12F})),
+                (short) 0, TransformOrigin.DEFAULT, 1.0F, false, false, true, true, true, preResampling
+        );
+        return new AvatarBuilder(data).build(() -> List.of(avatarRaw)).getFirstImage();
+    }
+
     static JsonArray jsonArrayFromString(String str) {
         return Json.Default.decodeFromString(JsonArray.Companion.serializer(), str);
     }
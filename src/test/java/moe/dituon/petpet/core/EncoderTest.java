@@ -0,0 +1,234 @@
+package moe.dituon.petpet.core;
+
+import com.madgag.gif.fmsware.GifDecoder;
+import moe.dituon.petpet.share.BaseGifMaker;
+import moe.dituon.petpet.share.Encoder;
+import moe.dituon.petpet.share.GifPalette;
+import moe.dituon.petpet.share.GifRenderParams;
+import moe.dituon.petpet.share.GifSizeBudget;
+import moe.dituon.petpet.share.MedianCutQuantizer;
+import moe.dituon.petpet.share.Quantizer;
+import moe.dituon.petpet.share.service.GifEncoder;
+import moe.dituon.petpet.share.service.GifEncoderParam;
+import org.junit.Test;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EncoderTest {
+    static final Color[] colors = {
+            Color.RED, Color.GREEN, Color.BLUE, Color.YELLOW, Color.CYAN, Color.MAGENTA, Color.BLACK, Color.WHITE
+    };
+
+    static List<BufferedImage> createFrames(int length) {
+        var frames = new ArrayList<BufferedImage>(length);
+        for (int i = 0; i < length; i++) {
+            var image = new BufferedImage(64, 48, BufferedImage.TYPE_INT_ARGB);
+            var g2d = image.createGraphics();
+            g2d.setColor(colors[i % colors.length]);
+            g2d.fillRect(0, 0, 64, 48);
+            g2d.dispose();
+            frames.add(image);
+        }
+        return frames;
+    }
+
+    static GifDecoder decode(byte[] blob) {
+        var decoder = new GifDecoder();
+        assertEquals(GifDecoder.STATUS_OK, decoder.read(new ByteArrayInputStream(blob)));
+        return decoder;
+    }
+
+    static void assertColor(Color expected, BufferedImage image) {
+        var actual = new Color(image.getRGB(image.getWidth() / 2, image.getHeight() / 2));
+        assertEquals(expected.getRed(), actual.getRed(), 8);
+        assertEquals(expected.getGreen(), actual.getGreen(), 8);
+        assertEquals(expected.getBlue(), actual.getBlue(), 8);
+    }
+
+    @Test
+    public void testFrameOrder() {
+        var frames = createFrames(20);
+        var decoder = decode(GifEncoder.makeGifUseAnimatedLib(frames, new GifEncoderParam()));
+        assertEquals(frames.size(), decoder.getFrameCount());
+        for (int i = 0; i < frames.size(); i++) {
+            assertColor(colors[i % colors.length], decoder.getFrame(i));
+        }
+    }
+
+    @Test
+    public void testReverse() {
+        var frames = createFrames(20);
+        var decoder = decode(GifEncoder.makeGifUseAnimatedLib(
+                frames, new GifEncoderParam(65, 10, 0, true)
+        ));
+        assertEquals(frames.size(), decoder.getFrameCount());
+        for (int i = 0; i < frames.size(); i++) {
+            assertColor(colors[(frames.size() - 1 - i) % colors.length], decoder.getFrame(i));
+        }
+    }
+
+    @Test
+    public void testGlobalPalette() {
+        var frames = createFrames(20);
+        var decoder = decode(GifEncoder.makeGif(
+                frames, new GifEncoderParam(65, 10, 0, false, Encoder.GLOBAL_PALETTE)
+        ));
+        assertEquals(frames.size(), decoder.getFrameCount());
+        for (int i = 0; i < frames.size(); i++) {
+            assertColor(colors[i % colors.length], decoder.getFrame(i));
+        }
+    }
+
+    @Test
+    public void testTemplatePalette() {
+        var background = createFrames(2).toArray(BufferedImage[]::new);
+        var palette = GifPalette.learnWithReserved(background, 10);
+        // 背景中不存在的颜色由预留颜色表示
+        var frames = createFrames(8);
+        var decoder = decode(GifEncoder.makeGifUsePalette(frames, palette, new GifEncoderParam()));
+        assertEquals(frames.size(), decoder.getFrameCount());
+        for (int i = 0; i < frames.size(); i++) {
+            assertColor(colors[i], decoder.getFrame(i));
+        }
+    }
+
+    @Test
+    public void testFrameDiff() {
+        // 静态背景上移动的小方块
+        var frames = new ArrayList<BufferedImage>(12);
+        for (int i = 0; i < 12; i++) {
+            var image = new BufferedImage(96, 64, BufferedImage.TYPE_3BYTE_BGR);
+            var g2d = image.createGraphics();
+            g2d.setColor(Color.BLUE);
+            g2d.fillRect(0, 0, 96, 64);
+            g2d.setColor(Color.WHITE);
+            g2d.fillRect(0, 0, 48, 64);
+            g2d.setColor(Color.RED);
+            g2d.fillRect(i * 6, 24, 16, 16);
+            g2d.dispose();
+            frames.add(image);
+        }
+        var full = GifEncoder.makeGifUseAnimatedLib(frames, new GifEncoderParam());
+        var diff = GifEncoder.makeGifUseAnimatedLib(
+                frames, new GifEncoderParam(65, 10, 0, false, Encoder.ANIMATED_LIB, true)
+        );
+        assertTrue(diff.length < full.length);
+
+        var decoder = decode(diff);
+        assertEquals(frames.size(), decoder.getFrameCount());
+        for (int i = 0; i < frames.size(); i++) {
+            var frame = decoder.getFrame(i);
+            for (int y = 4; y < 64; y += 8) {
+                for (int x = 3; x < 96; x += 6) {
+                    var expected = new Color(frames.get(i).getRGB(x, y));
+                    var actual = new Color(frame.getRGB(x, y));
+                    assertEquals(expected.getRed(), actual.getRed(), 8);
+                    assertEquals(expected.getGreen(), actual.getGreen(), 8);
+                    assertEquals(expected.getBlue(), actual.getBlue(), 8);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMedianCut() {
+        var frames = createFrames(16);
+        var decoder = decode(GifEncoder.makeGif(
+                frames, new GifEncoderParam().withQuantizer(Quantizer.MEDIAN_CUT)
+        ));
+        assertEquals(frames.size(), decoder.getFrameCount());
+        for (int i = 0; i < frames.size(); i++) {
+            assertColor(colors[i % colors.length], decoder.getFrame(i));
+        }
+
+        // 颜色数超过 256 时进行切分
+        var gradient = new BufferedImage(256, 256, BufferedImage.TYPE_3BYTE_BGR);
+        for (int y = 0; y < 256; y++) {
+            for (int x = 0; x < 256; x++) gradient.setRGB(x, y, new Color(x, y, (x + y) / 2).getRGB());
+        }
+        var pixels = ((DataBufferByte) gradient.getRaster().getDataBuffer()).getData();
+        var palette = MedianCutQuantizer.quantize(pixels, 1);
+        long error = 0;
+        for (int k = 0; k < pixels.length; k += 3) {
+            int index = palette.map(pixels[k] & 0xff, pixels[k + 1] & 0xff, pixels[k + 2] & 0xff);
+            for (int c = 0; c < 3; c++) {
+                error += Math.abs((palette.colorTab[index * 3 + c] & 0xff) - (pixels[k + 2 - c] & 0xff));
+            }
+        }
+        assertTrue(error / (pixels.length / 3 * 3) < 8);
+    }
+
+    @Test
+    public void testDuplicateFrames() {
+        var distinct = createFrames(3);
+        var frames = List.of(
+                distinct.get(0), distinct.get(0), distinct.get(0),
+                distinct.get(1), distinct.get(1), distinct.get(2)
+        );
+        var decoder = decode(GifEncoder.makeGifUseAnimatedLib(frames, new GifEncoderParam()));
+        assertEquals(3, decoder.getFrameCount());
+        int delay = decoder.getDelay(2);
+        assertEquals(delay * 3, decoder.getDelay(0));
+        assertEquals(delay * 2, decoder.getDelay(1));
+        for (int i = 0; i < 3; i++) assertColor(colors[i], decoder.getFrame(i));
+    }
+
+    @Test
+    public void testMaxBytes() throws Exception {
+        var random = new Random(42);
+        var stickers = new BufferedImage[24];
+        for (int i = 0; i < stickers.length; i++) {
+            stickers[i] = new BufferedImage(160, 120, BufferedImage.TYPE_3BYTE_BGR);
+            for (int y = 0; y < 120; y++) {
+                for (int x = 0; x < 160; x++) stickers[i].setRGB(x, y, random.nextInt(0x1000000));
+            }
+        }
+        var gifMaker = new BaseGifMaker();
+        var params = new GifRenderParams(
+                Encoder.ANIMATED_LIB, 60, null, false, 10, false, null, false,
+                Quantizer.NEU_QUANT, 0, GifPalette.PALETTE_SIZE
+        );
+        int fullSize = gifMaker.makeGIF(List.of(), List.of(), stickers, params).readAllBytes().length;
+
+        int maxBytes = fullSize / 4;
+        var budgetParams = params.copy(
+                Encoder.ANIMATED_LIB, 60, null, false, 10, false, null, false,
+                Quantizer.NEU_QUANT, maxBytes, GifPalette.PALETTE_SIZE
+        );
+        byte[] blob = gifMaker.makeGIF(List.of(), List.of(), stickers, budgetParams).readAllBytes();
+        assertTrue(blob.length <= maxBytes);
+
+        var decoder = decode(blob);
+        int duration = 0;
+        for (int i = 0; i < decoder.getFrameCount(); i++) duration += decoder.getDelay(i);
+        assertEquals(60 * stickers.length, duration, 60 * GifSizeBudget.MAX_FRAME_STEP);
+    }
+
+    @Test
+    public void testOutputStream() throws Exception {
+        var stickers = createFrames(10).toArray(new BufferedImage[0]);
+        var gifMaker = new BaseGifMaker();
+        for (Encoder encoder : List.of(Encoder.ANIMATED_LIB, Encoder.BUFFERED_STREAM)) {
+            var params = new GifRenderParams(
+                    encoder, 60, null, false, 10, false, null, false,
+                    Quantizer.NEU_QUANT, 0, GifPalette.PALETTE_SIZE
+            );
+            byte[] expected = gifMaker.makeGIF(List.of(), List.of(), stickers, params).readAllBytes();
+            var output = new ByteArrayOutputStream();
+            gifMaker.makeGIF(List.of(), List.of(), stickers, params, output);
+            assertArrayEquals(expected, output.toByteArray());
+            assertEquals(stickers.length, decode(output.toByteArray()).getFrameCount());
+        }
+    }
+}
@@ -2,11 +2,15 @@ package moe.dituon.petpet.core;
 
 import kotlinx.serialization.json.Json;
 import kotlinx.serialization.json.JsonArray;
+import moe.dituon.petpet.share.ArithmeticParser;
+import moe.dituon.petpet.share.RenderPlan;
+import moe.dituon.petpet.share.TemplateDTO;
 import moe.dituon.petpet.share.position.PositionCollectionFactory;
 import moe.dituon.petpet.share.position.PositionDynamicData;
 import org.junit.Test;
 
 import java.util.Arrays;
+import java.util.Map;
 
 public class PositionTest {
     static JsonArray toJsonArray(String str) {
@@ -59,4 +63,16 @@ public class PositionTest {
         assert Arrays.toString(pos.getPosition(0)).equals(fPos);
         assert Arrays.toString(pos.getAnchor(0)).equals(fAnchor);
     }
+
+    @Test
+    public void testRenderPlan() {
+        var data = TemplateDTO.getData("{\"type\": \"GIF\", \"avatar\": [{\"type\": \"TO\", " +
+                "\"pos\": [[0, 0, \"width / 2\", \"height\"], [10, 10, 20, 20]]}]}");
+        var plan = new RenderPlan(data).avatars.get(0);
+        assert plan.isDynamicPos();
+        // 预编译的表达式可以代入不同尺寸多次求值
+        assert Arrays.deepToString(plan.resolvePos(100, 300)).equals("[[0, 0, 50, 300], [10, 10, 20, 20]]");
+        assert Arrays.deepToString(plan.resolvePos(40, 60)).equals("[[0, 0, 20, 60], [10, 10, 20, 20]]");
+        assert ArithmeticParser.compile("sqrt(width) + 2 ^ 3").eval(Map.of("width", 16)) == 12;
+    }
 }
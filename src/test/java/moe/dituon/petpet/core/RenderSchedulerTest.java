@@ -0,0 +1,103 @@
+package moe.dituon.petpet.core;
+
+import moe.dituon.petpet.share.RenderScheduler;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RenderSchedulerTest {
+    static final int REQUESTS = 4;
+    static final int TASKS = 50;
+
+    static List<Integer> range(int number) {
+        return IntStream.range(0, number).boxed().collect(Collectors.toList());
+    }
+
+    @Test
+    public void testResizeWhileRunning() throws Exception {
+        int parallelism = RenderScheduler.getCurrent().getParallelism();
+        ExecutorService clients = Executors.newFixedThreadPool(REQUESTS + 1);
+        var gate = new CountDownLatch(1);
+        try {
+            RenderScheduler.resize(2);
+            var old = RenderScheduler.getCurrent();
+            var started = new CountDownLatch(1);
+            var done = new AtomicInteger();
+
+            var requests = new ArrayList<Future<List<Integer>>>(REQUESTS);
+            for (int r = 0; r < REQUESTS; r++) {
+                requests.add(clients.submit(() -> RenderScheduler.invokeAll(TASKS, i -> {
+                    started.countDown();
+                    try {
+                        gate.await();
+                    } catch (InterruptedException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                    done.incrementAndGet();
+                    return i;
+                })));
+            }
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            // 等待所有请求都占用旧线程池, 否则迟到的请求会阻塞新线程池唯一的工作线程
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (RenderScheduler.getStats().requests < REQUESTS) {
+                assertTrue(System.nanoTime() < deadline);
+                Thread.sleep(1);
+            }
+
+            // 旧线程池的工作线程全部阻塞时调整并行度, 新请求在新线程池中完成
+            RenderScheduler.resize(3);
+            RenderScheduler.resize(1);
+            assertFalse(old.isShutdown());
+            var fresh = clients.submit(() -> RenderScheduler.invokeAll(TASKS, i -> i));
+            assertEquals(range(TASKS), fresh.get(10, TimeUnit.SECONDS));
+
+            gate.countDown();
+            for (var request : requests) assertEquals(range(TASKS), request.get(10, TimeUnit.SECONDS));
+            assertEquals(REQUESTS * TASKS, done.get());
+            // 旧线程池在最后一个请求结束后关闭
+            assertTrue(old.awaitTermination(10, TimeUnit.SECONDS));
+            assertEquals(0, RenderScheduler.getStats().requests);
+        } finally {
+            gate.countDown();
+            clients.shutdownNow();
+            RenderScheduler.resize(parallelism);
+        }
+    }
+
+    @Test
+    public void testNestedInvokeAll() throws Exception {
+        int parallelism = RenderScheduler.getCurrent().getParallelism();
+        ExecutorService clients = Executors.newSingleThreadExecutor();
+        try {
+            // 只有一个工作线程时, 嵌套提交只能由等待中的线程自己执行
+            RenderScheduler.resize(1);
+            var result = clients.submit(() -> RenderScheduler.invokeAll(6, i ->
+                    RenderScheduler.invokeAll(5, j ->
+                            RenderScheduler.invokeAll(4, k -> i * 100 + j * 10 + k).stream()
+                                    .mapToInt(Integer::intValue).sum()
+                    ).stream().mapToInt(Integer::intValue).sum()
+            ));
+            var sums = result.get(10, TimeUnit.SECONDS);
+            for (int i = 0; i < 6; i++) {
+                assertEquals(i * 100 * 20 + (10 + 20 + 30 + 40) * 4 + (1 + 2 + 3) * 5, (int) sums.get(i));
+            }
+        } finally {
+            clients.shutdownNow();
+            RenderScheduler.resize(parallelism);
+        }
+    }
+}
@@ -6,6 +6,7 @@ import moe.dituon.petpet.share.template.TextExtraData;
 import moe.dituon.petpet.share.element.FrameInfo;
 import moe.dituon.petpet.share.element.text.TextBuilder;
 import moe.dituon.petpet.share.element.text.TextModel;
+import moe.dituon.petpet.share.template.FrameOverlay;
 import org.junit.Test;
 
 import javax.imageio.ImageIO;
@@ -152,4 +153,69 @@ public class TextTest {
         var img = createImageGroup(list);
         saveImage(img, "wrapZoom");
     }
+
+    @Test
+    public void testFrameOverlay() {
+        var template = new TextTemplate("图层测试\nFrameOverlay", new int[]{30, 40});
+        template.setColor("#3366cc");
+        template.setStrokeSize((short) 2);
+        template.setStrokeColor("#ffcc00");
+        template.setAngle((short) 15);
+        var text = new TextBuilder(template).build(TestUtils.getTextExtraData());
+        var composite = AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.7F);
+
+        FrameOverlay.clearCache();
+        var before = FrameOverlay.getCacheStats();
+        // 两次请求, 每次两帧
+        for (int request = 0; request < 2; request++) {
+            var layer = new FrameOverlay.Layer(List.of(text), List.of(List.of(text.getContentKey())));
+            for (int index = 0; index < 2; index++) {
+                var expected = getFrameCanvas(index);
+                var actual = getFrameCanvas(index);
+                var info = new FrameInfo(index, expected.getWidth(), expected.getHeight());
+
+                var g2d = expected.createGraphics();
+                g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+                g2d.setComposite(composite);
+                info.setCanvas(expected);
+                text.draw(g2d, info);
+                g2d.dispose();
+
+                g2d = actual.createGraphics();
+                g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+                g2d.setComposite(composite);
+                info.setCanvas(actual);
+                layer.draw(g2d, info);
+                g2d.dispose();
+
+                assertSimilar(expected, actual);
+            }
+        }
+        var after = FrameOverlay.getCacheStats();
+        assert after.misses == before.misses + 1;
+        assert after.hits == before.hits + 1;
+    }
+
+    private static BufferedImage getFrameCanvas(int index) {
+        var canvas = new BufferedImage(240, 160, BufferedImage.TYPE_3BYTE_BGR);
+        var g2d = canvas.createGraphics();
+        g2d.setPaint(new GradientPaint(0, 0, Color.WHITE, 240, 160, new Color(40 * index, 120, 200)));
+        g2d.fillRect(0, 0, 240, 160);
+        g2d.dispose();
+        return canvas;
+    }
+
+    /**
+     * 预乘图层分两次混合, 抗锯齿边缘的舍入与直接绘制最多相差 2
+     */
+    private static void assertSimilar(BufferedImage expected, BufferedImage actual) {
+        int w = expected.getWidth(), h = expected.getHeight();
+        int[] p = expected.getRGB(0, 0, w, h, null, 0, w);
+        int[] q = actual.getRGB(0, 0, w, h, null, 0, w);
+        for (int i = 0; i < p.length; i++) {
+            for (int shift = 0; shift < 24; shift += 8) {
+                assert Math.abs((p[i] >> shift & 0xff) - (q[i] >> shift & 0xff)) <= 2;
+            }
+        }
+    }
 }